@@ -0,0 +1,129 @@
+package PHT;
+
+import java.util.*;
+
+/** Renders the gains of every live sound in a PHTEngine as blocks of per-frame gain factors (see PHTGainBlock),
+ *	for consumers that apply them at signal rate instead of stepping at every status message.
+ *
+ *	Each block carries on from where the last one ended, or from the engine's current time if that is later,
+ *	so several blocks can be rendered between ticks. Sounds are followed along the path they are on at the
+ *	last tick (see PHTSound.gainMapAt()), and each speaker's gain ramps linearly across the block between its
+ *	values at either end. The ramps are exact for transect sounds, unless a hop ends partway through the
+ *	block, and approximate the gain curve along a sweep, so blocks should be no longer than a tick. */
+public class PHTBlockRenderer {
+	private final PHTEngine _engine;
+	private int _blockSize;
+
+	// Blocks of the last render(), one per live sound in engine order; reused by the next render().
+	private final List<PHTGainBlock> _blocks;
+	private int _blockCount;
+
+	private double _renderedUntil; // engine time at which the last block ended
+
+	// Gains of the sound being rendered at either end of the block, and where each slot is in `_endGains`.
+	private final PHTGainMap _startGains;
+	private final PHTGainMap _endGains;
+	private int[] _endEntryOfSlot;
+
+	/** Constructs a PHTBlockRenderer for the sounds of `engine`, rendering `blockSize` frames per block. */
+	public PHTBlockRenderer(PHTEngine engine, int blockSize) {
+		_engine = engine;
+		setBlockSize(blockSize);
+
+		_blocks = new ArrayList<PHTGainBlock>();
+		_blockCount = 0;
+		_renderedUntil = Double.NEGATIVE_INFINITY;
+
+		_startGains = new PHTGainMap();
+		_endGains = new PHTGainMap();
+		_endEntryOfSlot = new int[0];
+	}
+
+	public int getBlockSize() {
+		return _blockSize;
+	}
+
+	/** Sets the number of frames per block from the next render() on. */
+	public void setBlockSize(int blockSize) {
+		if (blockSize <= 0) {
+			throw new IllegalArgumentException("Block size must be positive.");
+		}
+		_blockSize = blockSize;
+	}
+
+	/** Renders the next `duration` ms of every live sound's gains into one block each.
+	 *
+	 *	@param 	duration 	the length of the block, in ms of engine time
+	 *	@returns 			the number of blocks rendered, readable through block().
+	 */
+	public int render(double duration) {
+		double start = Math.max(_renderedUntil, _engine.now());
+		double end = start + duration;
+
+		int rigSize = _engine.speakers().size();
+		if (_endEntryOfSlot.length < rigSize) {
+			_endEntryOfSlot = new int[rigSize];
+			Arrays.fill(_endEntryOfSlot, -1);
+		}
+
+		_blockCount = _engine.soundCount();
+		while (_blocks.size() < _blockCount) {
+			_blocks.add(new PHTGainBlock(_blockSize));
+		}
+
+		for (int n = 0; n < _blockCount; n++) {
+			PHTSound sound = _engine.soundAt(n);
+			sound.gainMapAt(start, _startGains);
+			sound.gainMapAt(end, _endGains);
+
+			renderBlock(sound, _blocks.get(n));
+		}
+
+		_renderedUntil = end;
+		return _blockCount;
+	}
+
+	/** Returns the `n`th block of the last render(). */
+	public PHTGainBlock block(int n) {
+		return _blocks.get(n);
+	}
+
+	/** Returns the number of blocks from the last render(). */
+	public int blockCount() {
+		return _blockCount;
+	}
+
+	/** Starts the next block at the engine's current time, rather than where the last one ended. */
+	public void restart() {
+		_renderedUntil = Double.NEGATIVE_INFINITY;
+	}
+
+	/* ------ Helpers ------------------------------------- */
+
+	// Fills `block` with a ramp for every speaker in either _startGains or _endGains; a speaker missing
+	// 	from one end ramps from or to 0.
+	private void renderBlock(PHTSound sound, PHTGainBlock block) {
+		block.clear(sound, _blockSize);
+
+		for (int i = 0; i < _endGains.size(); i++) {
+			_endEntryOfSlot[_endGains.slot(i)] = i;
+		}
+
+		for (int i = 0; i < _startGains.size(); i++) {
+			int slot = _startGains.slot(i);
+			int endEntry = _endEntryOfSlot[slot];
+
+			block.addRamp(slot, _startGains.gain(i), endEntry >= 0 ? _endGains.gain(endEntry) : 0.);
+			_endEntryOfSlot[slot] = -1;
+		}
+
+		// Whatever is still marked only appears at the end.
+		for (int i = 0; i < _endGains.size(); i++) {
+			int slot = _endGains.slot(i);
+			if (_endEntryOfSlot[slot] >= 0) {
+				block.addRamp(slot, 0., _endGains.gain(i));
+				_endEntryOfSlot[slot] = -1;
+			}
+		}
+	}
+}
@@ -0,0 +1,8 @@
+package PHT;
+
+/** Source of time for a PHTEngine. The engine reads its clock once per tick, and every sound
+ *	acts on that reading, so a whole tick sees a single instant. */
+public interface PHTClock {
+	/** Returns the current time, in milliseconds. */
+	public long now();
+}
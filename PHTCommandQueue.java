@@ -0,0 +1,89 @@
+package PHT;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/** A queue of commands that any thread may add to, applied in batches by the one thread that owns the
+ *	state they change (for PHTEngine, the thread that ticks).
+ *
+ *	Adding never locks or blocks: commands are pushed onto a linked stack with a compare-and-set on its
+ *	head. apply() takes the whole stack in one swap and runs it in the order the commands were added,
+ *	so anything added while a batch is running waits for the next. */
+public class PHTCommandQueue {
+	private static class Node {
+		final Runnable _command;
+		Node _next;
+
+		Node(Runnable command) {
+			_command = command;
+		}
+	}
+
+	/** Receives the exceptions thrown by commands, so that one failing command neither stops the batch
+	 *	nor escapes the thread applying it. */
+	public interface FailureHandler {
+		public void commandFailed(RuntimeException e);
+	}
+
+	private final AtomicReference<Node> _head; // most recently added command, or null if empty
+
+	/** Constructs an empty PHTCommandQueue. */
+	public PHTCommandQueue() {
+		_head = new AtomicReference<Node>(null);
+	}
+
+	/** Adds `command` to the next batch. Safe to call from any thread. */
+	public void add(Runnable command) {
+		Node node = new Node(command);
+		do {
+			node._next = _head.get();
+		} while (!_head.compareAndSet(node._next, node));
+	}
+
+	/** Returns true if no commands are waiting. */
+	public boolean isEmpty() {
+		return _head.get() == null;
+	}
+
+	/** Runs every command added so far, oldest first. Only one thread may apply at a time.
+	 *	A command that throws does not stop the rest of the batch; the first exception is rethrown once
+	 *	the batch is done.
+	 *	@returns 	the number of commands run */
+	public int apply() {
+		return apply(null);
+	}
+
+	/** As apply(), but passes every exception a command throws to `handler` instead of rethrowing any.
+	 *	@param 	handler 	receives failures, or null to rethrow the first once the batch is done
+	 *	@returns 			the number of commands run */
+	public int apply(FailureHandler handler) {
+		// Reverse the stack into the order commands were added.
+		Node node = _head.getAndSet(null);
+		Node oldest = null;
+		while (node != null) {
+			Node next = node._next;
+			node._next = oldest;
+			oldest = node;
+			node = next;
+		}
+
+		int count = 0;
+		RuntimeException failure = null;
+		for (node = oldest; node != null; node = node._next) {
+			try {
+				node._command.run();
+			} catch (RuntimeException e) {
+				if (handler != null) {
+					handler.commandFailed(e);
+				} else if (failure == null) {
+					failure = e;
+				}
+			}
+			count++;
+		}
+
+		if (failure != null) {
+			throw failure;
+		}
+		return count;
+	}
+}
@@ -1,56 +1,119 @@
 package PHT;
 
-/* Represents a transect sound with a set "goal" that the sound attempts
-	to move towards. This should create straight paths whenever possible. */
+/* Represents a transect sound with a set "goal" speaker that the sound moves towards,
+	along the shortest path of links to it. */
 public class PHTDirectedTransectSound extends PHTTransectSound {
-	private final double[] _goal;
+	private int _goal; // slot of the goal speaker, or -1 once it is lost
 
-	/** Constructs a PHTDirectedTransectSound.
+	/** Constructs a PHTDirectedTransectSound heading for a speaker.
+	 * 	
+	 *	@param 	id 					the String ID of this sound.
+	 * 	@param 	initialPosition 	the initial speaker for this sound.
+	 * 	@param 	lifespan 			the duration of this sound, in milliseconds
+	 *	@param 	goal 				the "goal" speaker for this sound's path.
+	 *	@param 	engine 				the PHTEngine this sound lives in
+	 */
+	public PHTDirectedTransectSound(String id, PHTSpeaker initialPosition, long lifespan, PHTSpeaker goal, PHTEngine engine) {
+		this(engine);
+		init(id, initialPosition, lifespan, goal);
+	}
+
+	/** Constructs a PHTDirectedTransectSound heading for the speaker nearest to a point.
 	 * 	
 	 *	@param 	id 					the String ID of this sound.
 	 * 	@param 	initialPosition 	the initial speaker for this sound.
 	 * 	@param 	lifespan 			the duration of this sound, in milliseconds
 	 *	@param 	goal 				the "goal" for this sound's path, a 3D array of { x, y, z } coordinates.
+	 *	@param 	engine 				the PHTEngine this sound lives in
 	 */
-	public PHTDirectedTransectSound(String id, PHTSpeaker initialPosition, long lifespan, double[] goal) {
-		super(id, initialPosition, lifespan);
+	public PHTDirectedTransectSound(String id, PHTSpeaker initialPosition, long lifespan, double[] goal, PHTEngine engine) {
+		this(id, initialPosition, lifespan, engine.nearest(goal[0], goal[1], goal[2]), engine);
+	}
 
-		_goal = goal;
+	/** Constructs a sound to be initialized with init(), for pooling. */
+	protected PHTDirectedTransectSound(PHTEngine engine) {
+		super(engine);
 	}
 
-	/** Chooses next speaker for sound to travel to. This overrides the chooseNextDestination() method in 
+	/** Returns a directed transect sound heading for a speaker, reusing one from the engine's pool of dead
+	 *	directed transect sounds if there is one. Arguments are as for the constructor. */
+	public static PHTDirectedTransectSound obtain(String id, PHTSpeaker initialPosition, long lifespan, PHTSpeaker goal, PHTEngine engine) {
+		PHTDirectedTransectSound result = engine.recycled(PHTDirectedTransectSound.class);
+		if (result == null) {
+			result = new PHTDirectedTransectSound(engine);
+		}
+		result.init(id, initialPosition, lifespan, goal);
+		return result;
+	}
+
+	/** (Re)starts this sound at `initialPosition`, heading for `goal`. */
+	protected void init(String id, PHTSpeaker initialPosition, long lifespan, PHTSpeaker goal) {
+		init(id, initialPosition, lifespan, PHTLinkGraph.kDefaultLayerId);
+
+		_goal = goal.getSlot();
+	}
+
+	/** Chooses the link for sound to travel next. This overrides the chooseNextLink() method in 
 	 *		PHTTransectSound, adding the "goal" functionality.
 	 * 
-	 * 	@param 	from		the speaker from which the sound is traveling
-	 *	@param	linkLayer	the ID for the link layer from which to draw the link to follow
+	 * 	@param 	from		the slot of the speaker from which the sound is traveling
+	 *	@param	linkLayer	the id of the link layer from which to draw the link to follow
 	 */
-	protected PHTSpeaker chooseNextDestination(PHTSpeaker from, String linkLayer) {
-		PHTSpeaker result = from;
+	protected int chooseNextLink(int from, int linkLayer) {
+		// With the rig emptied under it, the goal is lost for good; wander.
+		PHTSpeakerStore rig = engine().speakers();
+		if (_goal < 0) {
+			return super.chooseNextLink(from, linkLayer);
+		}
 
-		for (PHTSpeakerLink link : from.linksMap().get(linkLayer)) {
-			if (distance3D(link.destination.getPosition(), _goal) < distance3D(result.getPosition(), _goal)) {
-				result = link.destination;
+		// If the goal speaker was removed from the rig, head for whichever speaker is now nearest to where it was.
+		if (!rig.isActive(_goal)) {
+			PHTSpeaker nearest = engine().nearest(rig.getX(_goal), rig.getY(_goal), rig.getZ(_goal));
+			if (nearest == null) {
+				return -1;
 			}
+			_goal = nearest.getSlot();
 		}
 
-		return result;
-	}
+		PHTRoutingTable routing = engine().routing();
+		if (routing.getLayer() == linkLayer && from != _goal) {
+			int result = routing.nextEdge(from, _goal);
+			if (result >= 0) {
+				return result;
+			}
+		}
 
-	/* ------ Helpers ------------------------------------- */
+		// No path to the goal: step to whichever neighbour is closest to it, if any is closer than here.
+		PHTSpeakerStore speakers = engine().speakers();
+		PHTLinkGraph links = speakers.links();
+		int result = -1;
+		double bestDistance = distance3D(speakers, from, _goal);
 
-	private double distance3D(double[] p0, double[] p1) {
-		if (p0.length != 3 || p1.length != 3) {
-			return -1;
+		int start = links.rowStart(linkLayer, from);
+		for (int link = start; link < start + links.degree(linkLayer, from); link++) {
+			double distance = distance3D(speakers, links.target(linkLayer, link), _goal);
+			if (distance < bestDistance) {
+				result = link;
+				bestDistance = distance;
+			}
 		}
 
-		return distance3D(p0[0], p0[1], p0[2], p1[0], p1[1], p1[2]);
+		return result;
+	}
+
+	/** Moves the hop under way and the goal onto the new rig (see PHTTransectSound.rigRenumbered()). */
+	public void rigRenumbered(PHTSpeakerStore from) {
+		super.rigRenumbered(from);
+		_goal = engine().renumberedSlot(from, _goal);
 	}
 
-	private double distance3D(double x0, double y0, double z0, double x1, double y1, double z1) {
-		double deltaX = x1 - x0;
-		double deltaY = y1 - y0;
-		double deltaZ = z1 - z0;
+	/* ------ Helpers ------------------------------------- */
+
+	private double distance3D(PHTSpeakerStore speakers, int a, int b) {
+		double deltaX = speakers.getX(b) - speakers.getX(a);
+		double deltaY = speakers.getY(b) - speakers.getY(a);
+		double deltaZ = speakers.getZ(b) - speakers.getZ(a);
 
 		return (double)Math.sqrt(deltaX * deltaX + deltaY * deltaY + deltaZ * deltaZ);
 	}
-}
\ No newline at end of file
+}
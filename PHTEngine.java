@@ -0,0 +1,1066 @@
+package PHT;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/** Core of a PHTSpeakerSet, independent of Max: holds the speaker rig and the live sounds,
+ *	and advances the sounds on each tick. PHTSpeakerSet wraps an engine for use in an mxj object. */
+public class PHTEngine {
+	/** Receives notice of sounds dying, whether killed or at the end of their life, and of queued commands
+	 *	that failed. */
+	public interface Listener {
+		/** Called after `sound` has been removed from the engine. When sounds die in a tick, this is called
+		 *	for each before the live order is closed up, so it must not walk liveSounds() or soundAt().
+		 *	@param 	message 	the sound's kill() result, or null if it has nothing to report */
+		public void soundKilled(PHTSound sound, String message);
+
+		/** Called on the ticking thread when a command queued with enqueue() throws `e`. The other commands,
+		 *	and the tick, carry on. */
+		public void commandFailed(RuntimeException e);
+	}
+
+	/** Panning modes; see setPanning(). */
+	public static final int kPanningDistance = 0;
+	public static final int kPanningDBAP = 1;
+	public static final int kPanningVBAP = 2;
+
+	private PHTSpeakerStore _speakerSet;
+	private final PHTSoundRegistry _sounds; // sounds that are currently living (active), and pools of dead ones
+	private final List<PHTSound> _liveSounds; // read-only view of _sounds
+	private PHTSpatialIndex _spatialIndex; // grid over _speakerSet for range queries in spatialize()
+	private int _spatialIndexBuiltSize; // speakers in _spatialIndex when it was laid out
+	private PHTGainCurve _gainCurve; // distance to gain lookup for spatialize()
+	private PHTRoutingTable _routing; // next hops on the default link layer, for directed sounds
+	private double _maximumDistance; // sounds past this distance from a speaker are silent on it
+
+	private int _panning; // one of the kPanning modes
+	private double _dbapExponent; // DBAP gain falls as distance to this power
+	private double _dbapBlur; // added to every DBAP distance (in quadrature), so no speaker's gain is infinite
+	private PHTTriangulation _triangulation; // VBAP triangles of the current rig, or null until next needed
+
+	// Silence culling: gains below _silenceThreshold are dropped, so nothing past _audibleDistance from
+	// 	every speaker is spatialized at all.
+	private double _silenceThreshold; // 0 for off
+	private double _audibleDistance;
+	private int _silentSoundCount; // live sounds with no audible speaker at the last tick
+
+	private long _rigVersion; // bumped whenever spatialize() might give different gains
+	private PHTTrajectoryCache _trajectories; // sampled sweep lines, or null to spatialize sweeps directly
+
+	private final PHTSpeakerFactory _speakerFactory;
+	private boolean _speakerFactoryStale; // true once the rig is replaced by another engine's, until the factory is refilled from it
+
+	// Rig sharing (see shareRig()): while shared, this engine's rig changes are published, and other engines'
+	// 	are picked up, at the start of each tick. A published rig is never edited in place; it is copied first.
+	private PHTSharedRig _sharedRig; // null while not sharing
+	private PHTRigSnapshot _publishedRig; // the shared rig this engine last published or picked up
+	private boolean _rigReadOnly; // true while other engines may be reading the current rig
+	private boolean _rigUnpublished; // true when the current rig has changed since it was shared
+
+	private int[] _toKill; // handles of sounds that died in this tick
+	private int _toKillCount;
+
+	// Parallel tick: sounds are acted on a thread pool when at least _parallelThreshold are live.
+	private int _parallelThreshold; // 0 to always tick serially
+	private ExecutorService _tickPool;
+	private List<ActTask> _actTasks;
+	private PHTSound[] _tickSounds; // snapshot of live sounds, in iteration order
+	private boolean[] _tickDead; // _tickDead[i] is set when _tickSounds[i] dies; each task writes only its own range
+
+	private PHTClock _clock;
+	private long _clockOffset; // added to clock readings, so engine time stays continuous across setClock()
+	private long _now; // engine time of the current (or last) tick, in ms
+	private final Random _random; // seeds the per-sound random number generators
+
+	private final PHTCommandQueue _commands; // changes from other threads, applied at the start of each tick
+	private final PHTCommandQueue.FailureHandler _commandFailed; // passes failed commands to the listener
+
+	private PHTEngineStats _stats; // null while stats are off
+	private long[] _tickActNanos; // _tickActNanos[i] is the cost of _tickSounds[i].act(), while stats are on
+
+	private Listener _listener;
+
+	/** Main constructor for PHTEngine. */
+	public PHTEngine() {
+		_maximumDistance = PHTToolbox.kSpatializationDistanceMaximum;
+		_speakerSet = new PHTSpeakerFactory().make();
+		_sounds = new PHTSoundRegistry();
+		_liveSounds = new AbstractList<PHTSound>() {
+			public PHTSound get(int i) {
+				return _sounds.at(i);
+			}
+
+			public int size() {
+				return _sounds.size();
+			}
+		};
+		_speakerFactory = new PHTSpeakerFactory();
+		_speakerFactoryStale = false;
+		_sharedRig = null;
+		_publishedRig = null;
+		_rigReadOnly = false;
+		_rigUnpublished = false;
+		_spatialIndex = new PHTSpatialIndex(_speakerSet, _maximumDistance);
+		_gainCurve = PHTGainCurve.standard(_maximumDistance);
+		_routing = new PHTRoutingTable(_speakerSet, PHTLinkGraph.kDefaultLayerId);
+		_panning = kPanningDistance;
+		setDBAP(6., 0.1);
+		_triangulation = null;
+		_silenceThreshold = 0.;
+		_audibleDistance = _maximumDistance;
+		_silentSoundCount = 0;
+		_rigVersion = 0;
+		_trajectories = null;
+		_toKill = new int[16];
+
+		_parallelThreshold = 0;
+		_tickSounds = new PHTSound[0];
+		_tickDead = new boolean[0];
+
+		_clock = new PHTSystemClock();
+		_clockOffset = 0;
+		_now = _clock.now();
+		_random = new Random();
+
+		_commands = new PHTCommandQueue();
+		_commandFailed = new PHTCommandQueue.FailureHandler() {
+			public void commandFailed(RuntimeException e) {
+				if (_listener != null) {
+					_listener.commandFailed(e);
+				}
+			}
+		};
+
+		_stats = null;
+		_tickActNanos = new long[0];
+	}
+
+	public void setListener(Listener listener) {
+		_listener = listener;
+	}
+
+	public Listener getListener() {
+		return _listener;
+	}
+
+	/* ------ Commands ------------------------------------- */
+
+	/** Queues `command` to run at the start of the next tick(), on the ticking thread, before sounds act.
+	 *	Never blocks, so it is safe to call from any thread (such as Max's low priority queue) while the
+	 *	engine is ticking; commands run in the order they were queued. Anything that changes sounds or the
+	 *	rig from another thread should go through here rather than call the engine directly. */
+	public void enqueue(Runnable command) {
+		_commands.add(command);
+	}
+
+	/** Runs every queued command now, on the calling thread, which must be the ticking one. Commands that
+	 *	throw are reported to the listener (see Listener.commandFailed()).
+	 *	@returns 	the number of commands run */
+	public int applyCommands() {
+		return _commands.apply(_commandFailed);
+	}
+
+	/* ------ Stats ------------------------------------- */
+
+	/** Turns collecting stats on or off (default). Collecting costs two clock readings per sound per tick.
+	 *	Turning it on again starts the stats afresh. */
+	public void setStatsEnabled(boolean enabled) {
+		if (!enabled) {
+			_stats = null;
+		} else if (_stats == null) {
+			_stats = new PHTEngineStats();
+		}
+	}
+
+	/** Returns the stats collected so far, or null if stats are off. Only read them from the ticking thread. */
+	public PHTEngineStats stats() {
+		return _stats;
+	}
+
+	/* ------ Time and randomness ------------------------------------- */
+
+	/** Replaces the engine's clock. Engine time continues from where it was, at the new clock's rate. */
+	public void setClock(PHTClock clock) {
+		_clockOffset = _now - clock.now();
+		_clock = clock;
+	}
+
+	public PHTClock getClock() {
+		return _clock;
+	}
+
+	/** Returns the engine time of the current (or last) tick, in milliseconds. New sounds start at this time. */
+	public long now() {
+		return _now;
+	}
+
+	/** Reseeds the engine's random number generator. Sounds spawned afterwards, in the same order and
+	 *	on the same clock, behave identically from run to run. */
+	public void seed(long seed) {
+		_random.setSeed(seed);
+	}
+
+	/** Returns a new random number generator for a sound, seeded from the engine's generator. */
+	public Random newRandom() {
+		return new Random(newSeed());
+	}
+
+	/** Returns a seed for a sound's random number generator, drawn from the engine's generator. */
+	public long newSeed() {
+		return _random.nextLong();
+	}
+
+	/* ------ Rig ------------------------------------- */
+
+	/** Adds a speaker to be built on the next makeSpeakers(); see PHTSpeakerFactory.addSpeaker(). */
+	public void addSpeaker(int index, double x, double y, double z, int[] linkedSpeakerIndices) {
+		speakerFactory().addSpeaker(index, x, y, z, linkedSpeakerIndices);
+	}
+
+	/** Adds links from one speaker to others on a named layer, to be built on the next makeSpeakers(). */
+	public void addLink(String linkLayer, int index, int[] linkedSpeakerIndices) {
+		speakerFactory().addLink(linkLayer, index, linkedSpeakerIndices);
+	}
+
+	/** Adds the speakers in a layout file to be built on the next makeSpeakers(); see PHTLayoutReader.
+	 *	@returns 	the number of speakers read. */
+	public int loadLayout(java.io.File file) throws java.io.IOException {
+		return PHTLayoutReader.read(file, speakerFactory());
+	}
+
+	/** Saves the current rig, with its spatial index and routing tables, as a binary snapshot.
+	 *	@param 	sourceChecksum 	PHTRigSnapshot.checksum() of the layout file the rig came from, or PHTRigSnapshot.kNoSource */
+	public void saveRig(java.io.File file, long sourceChecksum) throws java.io.IOException {
+		new PHTRigSnapshot(_speakerSet, _spatialIndex, _routing, sourceChecksum).write(file);
+	}
+
+	/** Replaces the current rig with one saved by saveRig(), unless the snapshot is stale. The speakers
+	 *	and links added for the next makeSpeakers() are replaced with the snapshot's.
+	 *
+	 *	@param 	sourceChecksum 	PHTRigSnapshot.checksum() of the layout file the rig should come from, or
+	 *							PHTRigSnapshot.kNoSource to accept any snapshot
+	 *	@returns 				false, leaving the rig unchanged, if the snapshot was compiled from a different layout
+	 *	@throws 	IOException 	if the snapshot cannot be read or is corrupt
+	 */
+	public boolean loadRig(java.io.File file, long sourceChecksum) throws java.io.IOException {
+		PHTRigSnapshot snapshot = PHTRigSnapshot.read(file);
+		if (sourceChecksum != PHTRigSnapshot.kNoSource && snapshot.sourceChecksum() != sourceChecksum) {
+			return false;
+		}
+
+		setRig(snapshot);
+		return true;
+	}
+
+	/** Replaces the current rig with `rig`, such as one read or compiled on another thread (see
+	 *	PHTRigSnapshot.read() and PHTRigSnapshot.compile()). The speakers and links added for the next
+	 *	makeSpeakers() are replaced with the rig's. `rig` is the engine's from now on; do not change it. */
+	public void setRig(PHTRigSnapshot rig) {
+		useRig(rig);
+		_speakerFactory.clear().add(_speakerSet);
+		_speakerFactoryStale = false;
+		rigReplaced();
+	}
+
+	/** Builds the speakers added so far, replacing the current rig.
+	 *	@throws 	IndexOutOfBoundsException 	if a speaker is linked to a nonexistent speaker. */
+	public void makeSpeakers() throws IndexOutOfBoundsException {
+		PHTSpeakerStore previous = _speakerSet;
+		_speakerSet = speakerFactory().make();
+		_spatialIndex = new PHTSpatialIndex(_speakerSet, _maximumDistance);
+		_spatialIndexBuiltSize = _spatialIndex.size();
+		_routing = new PHTRoutingTable(_speakerSet, PHTLinkGraph.kDefaultLayerId);
+		_triangulation = null;
+		_rigVersion++;
+		renumberSounds(previous);
+		rigReplaced();
+	}
+
+	/** Adds a speaker to the current rig at once, without a rebuild. The speaker is also recorded for
+	 *	the next makeSpeakers().
+	 *
+	 *	@throws 	IllegalArgumentException 	if the rig already has a speaker with that index
+	 *	@throws 	IndexOutOfBoundsException 	if the index is negative or a linked speaker does not exist
+	 */
+	public void insertSpeaker(int index, double x, double y, double z, int[] linkedSpeakerIndices)
+			throws IllegalArgumentException, IndexOutOfBoundsException {
+		if (index < 0) {
+			throw new IndexOutOfBoundsException("Speaker index " + index + " is negative.");
+		}
+		if (_speakerSet.slotOf(index) >= 0) {
+			throw new IllegalArgumentException("Speaker " + index + " already exists.");
+		}
+		for (int linkIdx : linkedSpeakerIndices) {
+			if (linkIdx != index && _speakerSet.slotOf(linkIdx) < 0) {
+				throw new IndexOutOfBoundsException("Tried to link speaker " + index + " to nonexistant speaker " + linkIdx + ".");
+			}
+		}
+
+		speakerFactory().addSpeaker(index, x, y, z, linkedSpeakerIndices);
+		editableRig();
+
+		int slot = _speakerSet.add(index, x, y, z);
+		PHTLinkGraph links = _speakerSet.links();
+		links.ensureSlots(_speakerSet.size());
+		for (int linkIdx : linkedSpeakerIndices) {
+			links.addLink(PHTLinkGraph.kDefaultLayerId, slot, _speakerSet.slotOf(linkIdx));
+		}
+
+		// Cells were sized for the rig as built; once it has grown well past that, lay out a new grid.
+		if (_spatialIndex.size() + 1 > 2 * _spatialIndexBuiltSize + 16) {
+			_spatialIndex = new PHTSpatialIndex(_speakerSet, _maximumDistance);
+			_spatialIndexBuiltSize = _spatialIndex.size();
+		} else {
+			_spatialIndex.insert(slot);
+		}
+
+		speakersEdited();
+	}
+
+	/** Moves a speaker of the current rig at once, updating the lengths of its links.
+	 *	@throws 	IndexOutOfBoundsException 	if there is no speaker with that index */
+	public void moveSpeaker(int index, double x, double y, double z) throws IndexOutOfBoundsException {
+		int slot = requireSlot(index);
+
+		speakerFactory().moveSpeaker(index, x, y, z);
+		editableRig();
+
+		_speakerSet.move(slot, x, y, z);
+		_speakerSet.links().remeasure(slot);
+		_spatialIndex.move(slot);
+
+		speakersEdited();
+	}
+
+	/** Removes a speaker, and all links to and from it, from the current rig at once. Sounds on or
+	 *	heading to it move on to a neighbouring speaker (see PHTTransectSound).
+	 *	@throws 	IndexOutOfBoundsException 	if there is no speaker with that index */
+	public void removeSpeaker(int index) throws IndexOutOfBoundsException {
+		int slot = requireSlot(index);
+
+		speakerFactory().removeSpeaker(index);
+		editableRig();
+
+		_speakerSet.links().unlink(slot);
+		_spatialIndex.remove(slot);
+		_speakerSet.remove(slot);
+
+		speakersEdited();
+	}
+
+	/** Links one speaker of the current rig to others on a named layer at once, creating the layer if needed.
+	 *	@throws 	IndexOutOfBoundsException 	if any of the speakers does not exist */
+	public void insertLink(String linkLayer, int index, int[] linkedSpeakerIndices) throws IndexOutOfBoundsException {
+		int from = requireSlot(index);
+		for (int linkIdx : linkedSpeakerIndices) {
+			requireSlot(linkIdx);
+		}
+
+		speakerFactory().addLink(linkLayer, index, linkedSpeakerIndices);
+		editableRig();
+
+		PHTLinkGraph links = _speakerSet.links();
+		int layer = links.addLayer(linkLayer);
+		for (int linkIdx : linkedSpeakerIndices) {
+			links.addLink(layer, from, _speakerSet.slotOf(linkIdx));
+		}
+
+		rigEdited();
+	}
+
+	/** Removes links from one speaker of the current rig to others on a named layer at once.
+	 *	Links that do not exist are ignored. */
+	public void removeLink(String linkLayer, int index, int[] linkedSpeakerIndices) {
+		speakerFactory().removeLink(linkLayer, index, linkedSpeakerIndices);
+
+		PHTLinkGraph links = _speakerSet.links();
+		int layer = links.layerId(linkLayer);
+		int from = _speakerSet.slotOf(index);
+		if (layer < 0 || from < 0) {
+			return;
+		}
+
+		editableRig();
+		links = _speakerSet.links();
+		for (int linkIdx : linkedSpeakerIndices) {
+			int to = _speakerSet.slotOf(linkIdx);
+			if (to >= 0) {
+				links.removeLink(layer, from, to);
+			}
+		}
+
+		rigEdited();
+	}
+
+	/** Returns the current rig. */
+	public PHTSpeakerStore speakers() {
+		return _speakerSet;
+	}
+
+	/** Returns the speaker with index `index`, or null if there is none. */
+	public PHTSpeaker get(int index) {
+		return _speakerSet.speakerWithIndex(index);
+	}
+
+	/** Returns the slot in the current rig for `slot` of `from`, an earlier rig that numbered its slots
+	 *	differently (see PHTSound.rigRenumbered()): the slot of the speaker with the same index if the rig
+	 *	still has one, or else of the speaker nearest where it was.
+	 *	@returns 	the slot, or -1 if `slot` is -1 or the rig is empty */
+	public int renumberedSlot(PHTSpeakerStore from, int slot) {
+		if (slot < 0 || slot >= from.size()) {
+			return -1;
+		}
+
+		int result = _speakerSet.slotOf(from.getChannel(slot));
+		if (result >= 0) {
+			return result;
+		}
+		return _spatialIndex.nearest(from.getX(slot), from.getY(slot), from.getZ(slot));
+	}
+
+	/** Returns the speaker closest to the point ( `x`, `y`, `z` ), or null if the rig is empty or the point
+	 *	is not finite. */
+	public PHTSpeaker nearest(double x, double y, double z) {
+		int slot = _spatialIndex.nearest(x, y, z);
+		return slot < 0 ? null : _speakerSet.speaker(slot);
+	}
+
+	/** Returns shortest-path routing over the default link layer of the current rig. */
+	public PHTRoutingTable routing() {
+		return _routing;
+	}
+
+	/* ------ Rig sharing ------------------------------------- */
+
+	/** Shares this engine's rig under `name` with the other engines of this JVM sharing that name (see
+	 *	PHTSharedRig), in place of any rig it shared before. The first engine to share a name publishes its
+	 *	rig; the others drop theirs and use that one. From then on, a rig this engine makes, loads or edits
+	 *	is published at its next tick, and one published by another engine is picked up at its next tick,
+	 *	replacing the speakers added for the next makeSpeakers() (as loadRig() does). Edits are made to a
+	 *	copy, never to the shared rig.
+	 *	@returns 	true if this engine picked up a rig already shared under `name`, false if it published its own */
+	public boolean shareRig(String name) {
+		unshareRig();
+
+		_sharedRig = PHTSharedRig.acquire(name);
+		_rigUnpublished = false;
+
+		PHTRigSnapshot own = new PHTRigSnapshot(_speakerSet, _spatialIndex, _routing, PHTRigSnapshot.kNoSource);
+		if (_sharedRig.publishFirst(own)) {
+			_publishedRig = own;
+			_rigReadOnly = true;
+			return false;
+		}
+
+		syncSharedRig();
+		return true;
+	}
+
+	/** Stops sharing the rig. The engine keeps the rig it has, and further changes stay its own. */
+	public void unshareRig() {
+		if (_sharedRig == null) {
+			return;
+		}
+
+		_sharedRig.release();
+		_sharedRig = null;
+		_publishedRig = null;
+		_rigUnpublished = false;
+	}
+
+	/** Returns the rig this engine shares, or null if it is not sharing one. */
+	public PHTSharedRig sharedRig() {
+		return _sharedRig;
+	}
+
+	/** Sets the distance past which sounds are silent on a speaker. */
+	public void setMaximumDistance(double d) {
+		_maximumDistance = d;
+
+		// Grid cells and the gain table are sized to the cutoff, so rebuild both for the new distance.
+		_spatialIndex = new PHTSpatialIndex(_speakerSet, _maximumDistance);
+		_spatialIndexBuiltSize = _spatialIndex.size();
+		_gainCurve = _gainCurve.withMaximumDistance(_maximumDistance);
+		_audibleDistance = _gainCurve.audibleDistance(_silenceThreshold);
+		_rigVersion++;
+	}
+
+	public double getMaximumDistance() {
+		return _maximumDistance;
+	}
+
+	/** Selects the curve used to turn distance into gain. */
+	public void setRolloff(PHTGainCurve.Rolloff rolloff) {
+		_gainCurve = new PHTGainCurve(rolloff, _maximumDistance);
+		_audibleDistance = _gainCurve.audibleDistance(_silenceThreshold);
+		_rigVersion++;
+	}
+
+	/** Sets the gain factor below which a speaker is taken to be silent, and left out of gain maps; 0
+	 *	(default) keeps every speaker within the maximum distance. Sounds too far from the rig to reach
+	 *	it are spatialized no further than a bounding box test. */
+	public void setSilenceThreshold(double gain) {
+		_silenceThreshold = Math.max(0., gain);
+		_audibleDistance = _gainCurve.audibleDistance(_silenceThreshold);
+		_rigVersion++;
+	}
+
+	public double getSilenceThreshold() {
+		return _silenceThreshold;
+	}
+
+	/** Returns the number of live sounds that reached no speaker at the last tick: culled by the silence
+	 *	threshold, or beyond the maximum distance. */
+	public int silentSoundCount() {
+		return _silentSoundCount;
+	}
+
+	/** Returns a number that changes whenever the rig or a setting changes in a way that may give spatialize()
+	 *	different gains, so that gains worked out earlier can tell they are stale. */
+	public long rigVersion() {
+		return _rigVersion;
+	}
+
+	/** Has sweep sounds sample their gains along their line once, `spacing` apart, and interpolate between
+	 *	samples instead of spatializing every tick. Sweeps along the same line (to within spacing / 8) share
+	 *	samples, through a cache of the `capacity` most recently used lines. A spacing of 0 (default) turns
+	 *	this off, so that sweeps spatialize exactly. Sweeps already live carry on as they were. */
+	public void setTrajectoryCache(double spacing, int capacity) {
+		_trajectories = spacing > 0. ? new PHTTrajectoryCache(this, spacing, capacity) : null;
+	}
+
+	/** Returns the cache of sweep trajectories, or null if sweeps spatialize directly. */
+	public PHTTrajectoryCache trajectories() {
+		return _trajectories;
+	}
+
+	/** Selects how a sound at a point is spread over the speakers:
+	 *		kPanningDistance -- every speaker within the maximum distance, by the gain curve (default)
+	 *		kPanningDBAP 	 -- distance-based amplitude panning over the speakers within the maximum distance,
+	 *							at constant power (see setDBAP())
+	 *		kPanningVBAP 	 -- vector-base amplitude panning over the two or three speakers around the point
+	 *							(see PHTTriangulation)
+	 *	With either panning mode, the gain curve at the sound's distance from the rig fades it out as it leaves.
+	 *	@throws 	IllegalArgumentException 	if `mode` is not one of these */
+	public void setPanning(int mode) throws IllegalArgumentException {
+		if (mode != kPanningDistance && mode != kPanningDBAP && mode != kPanningVBAP) {
+			throw new IllegalArgumentException("Unknown panning mode " + mode + ".");
+		}
+		_panning = mode;
+		_rigVersion++;
+	}
+
+	public int getPanning() {
+		return _panning;
+	}
+
+	/** Sets up DBAP panning.
+	 *	@param 	rolloffDB 	how far gain falls, in dB, for each doubling of distance from a speaker (6 by default)
+	 *	@param 	blur 		spatial blur, added to every distance in quadrature (0.1 by default) */
+	public void setDBAP(double rolloffDB, double blur) {
+		_dbapExponent = rolloffDB / (20. * Math.log10(2.));
+		_dbapBlur = blur;
+		_rigVersion++;
+	}
+
+	/* ------ Sounds ------------------------------------- */
+
+	/** Adds `sound` to the live sounds, replacing any live sound with the same ID. A replaced sound is
+	 *	reported to the listener with no message.
+	 *	@returns 	the new sound's handle, for sound(int) and killSound(int). */
+	public int addSound(PHTSound sound) {
+		int replaced = _sounds.handleOf(sound.id());
+		if (replaced != PHTSoundRegistry.kNoHandle) {
+			retire(replaced, null);
+		}
+
+		if (_stats != null) {
+			_stats.countSpawn();
+		}
+		return _sounds.add(sound);
+	}
+
+	/** Returns the live sound with ID `id`, or null if there is none. */
+	public PHTSound sound(String id) {
+		return _sounds.get(id);
+	}
+
+	/** Returns the live sound with handle `handle`, or null if it has died. */
+	public PHTSound sound(int handle) {
+		return _sounds.get(handle);
+	}
+
+	/** Returns a dead sound of exactly class `type` to be reinitialized, or null if there is none;
+	 *	see PHTTransectSound.obtain(). */
+	public <T extends PHTSound> T recycled(Class<T> type) {
+		return _sounds.recycled(type);
+	}
+
+	/** Returns the live sounds, in the order they were added. */
+	public Collection<PHTSound> liveSounds() {
+		return _liveSounds;
+	}
+
+	/** Returns the number of live sounds. */
+	public int soundCount() {
+		return _sounds.size();
+	}
+
+	/** Returns the `i`th live sound, in the order they were added. */
+	public PHTSound soundAt(int i) {
+		return _sounds.at(i);
+	}
+
+	/** Updates sound positions / age, killing sounds that have reached the end of their life.
+	 *	Sounds are acted in parallel when enough are live (see setParallelThreshold()); either way,
+	 *	dead sounds are killed serially in the order in which they are iterated. Queued commands (see
+	 *	enqueue()) are applied first, at the time of the last tick, as if they had been called directly;
+	 *	one that throws is reported to the listener, and the tick goes on. */
+	public void tick() {
+		PHTEngineStats stats = _stats;
+		long tickStart = stats != null ? System.nanoTime() : 0;
+		long allocatedAtStart = stats != null ? stats.allocatedBytes() : 0;
+
+		_commands.apply(_commandFailed);
+
+		if (_sharedRig != null) {
+			syncSharedRig();
+		}
+
+		_now = _clock.now() + _clockOffset;
+
+		// Triangulate before sounds might spatialize in parallel.
+		if (_panning == kPanningVBAP) {
+			triangulation();
+		}
+
+		if (_parallelThreshold > 0 && _sounds.size() >= _parallelThreshold) {
+			tickParallel();
+		} else if (_stats != null) {
+			for (int i = 0; i < _sounds.size(); i++) {
+				PHTSound s = _sounds.at(i);
+				long actStart = System.nanoTime();
+				boolean alive = s.act(_now);
+				_stats.recordAct(s, System.nanoTime() - actStart);
+
+				if (!alive) {
+					markDead(_sounds.handleAt(i));
+				}
+			}
+
+			killDead();
+		} else {
+			for (int i = 0; i < _sounds.size(); i++) {
+				if (!_sounds.at(i).act(_now)) { // PHTTransectSound.act() will return false if sound will die.
+					// We can't remove them in this loop, so add them to
+					// 	the list and remove later.
+					markDead(_sounds.handleAt(i));
+				}
+			}
+
+			killDead();
+		}
+
+		int silent = 0;
+		for (int i = 0; i < _sounds.size(); i++) {
+			if (_sounds.at(i).gainMap().size() == 0) {
+				silent++;
+			}
+		}
+		_silentSoundCount = silent;
+
+		// Stats may have been turned on by a command; the tick is only recorded if they were on throughout.
+		if (stats != null && stats == _stats) {
+			stats.recordTick(System.nanoTime() - tickStart, allocatedAtStart);
+		}
+	}
+
+	/** Removes `sound` from the live sounds and notifies the listener. */
+	public void killSound(PHTSound s) {
+		killSound(_sounds.handleOf(s.id()));
+	}
+
+	/** Removes the sound with handle `handle` from the live sounds and notifies the listener.
+	 *	Does nothing if it has already died. */
+	public void killSound(int handle) {
+		PHTSound s = _sounds.get(handle);
+		if (s != null) {
+			retire(handle, s.kill());
+		}
+	}
+
+	/** Clears the speakers added for the next makeSpeakers() and drops all live sounds. */
+	public void clear() {
+		clearSpeakers();
+		_sounds.clear();
+	}
+
+	/** Clears the speakers added for the next makeSpeakers(). The current rig and live sounds are kept. */
+	public void clearSpeakers() {
+		_speakerFactory.clear();
+		_speakerFactoryStale = false;
+	}
+
+	/** Sets the number of live sounds from which tick() acts sounds on a thread pool, one thread per core.
+	 *	@param 	threshold 	the minimum number of live sounds for a parallel tick, or 0 to always tick serially */
+	public void setParallelThreshold(int threshold) {
+		_parallelThreshold = Math.max(0, threshold);
+
+		if (_parallelThreshold > 0 && _tickPool == null) {
+			int threads = Runtime.getRuntime().availableProcessors();
+
+			_tickPool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "PHT tick");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+
+			// A few tasks per thread, so uneven sounds (sweeps vs. transects) balance out.
+			_actTasks = new ArrayList<ActTask>();
+			for (int i = 0; i < threads * 4; i++) {
+				_actTasks.add(new ActTask());
+			}
+		}
+	}
+
+	/** Stops the tick thread pool, if any. The engine falls back to serial ticks. */
+	public void shutdown() {
+		if (_tickPool != null) {
+			_tickPool.shutdown();
+			_tickPool = null;
+			_actTasks = null;
+		}
+		_parallelThreshold = 0;
+	}
+
+	/* ------ Rig editing ------------------------------------- */
+
+	// Returns the slot of the speaker with index `index`, throwing if there is none.
+	private int requireSlot(int index) throws IndexOutOfBoundsException {
+		int slot = _speakerSet.slotOf(index);
+		if (slot < 0) {
+			throw new IndexOutOfBoundsException("No speaker with index " + index + ".");
+		}
+		return slot;
+	}
+
+	// VBAP triangles are stale after speakers are added, moved or removed, and are rebuilt when next needed.
+	private void speakersEdited() {
+		_triangulation = null;
+		_rigVersion++;
+		rigEdited();
+	}
+
+	// Routes are stale after any edit; tables for the edited rig are built as sounds ask for them.
+	private void rigEdited() {
+		_routing = new PHTRoutingTable(_speakerSet, PHTLinkGraph.kDefaultLayerId, false);
+		_rigUnpublished = _sharedRig != null;
+	}
+
+	// Publishes the rig if it has changed here since it was shared, or else picks up the shared rig if another
+	// 	engine has published one since. If both have changed, this engine's rig wins.
+	private void syncSharedRig() {
+		if (_rigUnpublished) {
+			_publishedRig = new PHTRigSnapshot(_speakerSet, _spatialIndex, _routing, PHTRigSnapshot.kNoSource);
+			_sharedRig.publish(_publishedRig);
+			_rigReadOnly = true;
+			_rigUnpublished = false;
+			return;
+		}
+
+		PHTRigSnapshot current = _sharedRig.current();
+		if (current != _publishedRig) {
+			useRig(current);
+			_publishedRig = current;
+			_rigReadOnly = true;
+			_speakerFactoryStale = true;
+		}
+	}
+
+	// Returns the factory for the next makeSpeakers(), first refilling it from the current rig if that was
+	// 	picked up from another engine, so that it rebuilds the rig as it is now.
+	private PHTSpeakerFactory speakerFactory() {
+		if (_speakerFactoryStale) {
+			_speakerFactory.clear().add(_speakerSet);
+			_speakerFactoryStale = false;
+		}
+		return _speakerFactory;
+	}
+
+	// Makes the current rig safe to edit in place: a rig other engines may be reading is replaced by a copy
+	// 	of it, with every speaker in the same slot.
+	private void editableRig() {
+		if (!_rigReadOnly) {
+			return;
+		}
+
+		PHTRigSnapshot copy = new PHTRigSnapshot(_speakerSet, _spatialIndex, _routing, PHTRigSnapshot.kNoSource).copy();
+		_speakerSet = copy.speakers();
+		_spatialIndex = copy.spatialIndex();
+		_routing = copy.routing();
+		_rigReadOnly = false;
+	}
+
+	// Notes that the rig has been replaced by a newly built one, which no other engine has seen yet.
+	private void rigReplaced() {
+		_rigReadOnly = false;
+		_rigUnpublished = _sharedRig != null;
+	}
+
+	// Replaces the current rig with `rig`'s speakers, spatial index and routing.
+	private void useRig(PHTRigSnapshot rig) {
+		PHTSpeakerStore previous = _speakerSet;
+		_speakerSet = rig.speakers();
+		_spatialIndex = rig.spatialIndex();
+		_spatialIndexBuiltSize = _spatialIndex.size();
+		_routing = rig.routing();
+		_triangulation = null;
+		_rigVersion++;
+		renumberSounds(previous);
+	}
+
+	// Moves the slots live sounds hold from `previous` onto the current rig, unless it numbers them the same.
+	private void renumberSounds(PHTSpeakerStore previous) {
+		if (previous.slotLayout() == _speakerSet.slotLayout()) {
+			return;
+		}
+		for (int i = 0; i < _sounds.size(); i++) {
+			_sounds.at(i).rigRenumbered(previous);
+		}
+	}
+
+	/* ------ Parallel tick ------------------------------------- */
+
+	// Acts _tickSounds[start] up to (not including) _tickSounds[end], marking the dead in _tickDead.
+	private class ActTask implements Callable<Object> {
+		private int _start;
+		private int _end;
+
+		public Object call() {
+			if (_stats != null) {
+				for (int i = _start; i < _end; i++) {
+					long actStart = System.nanoTime();
+					_tickDead[i] = !_tickSounds[i].act(_now);
+					_tickActNanos[i] = System.nanoTime() - actStart;
+				}
+				return null;
+			}
+
+			for (int i = _start; i < _end; i++) {
+				_tickDead[i] = !_tickSounds[i].act(_now);
+			}
+			return null;
+		}
+	}
+
+	private void tickParallel() {
+		int count = _sounds.size();
+		if (_tickSounds.length < count) {
+			_tickSounds = new PHTSound[count];
+			_tickDead = new boolean[count];
+		}
+		if (_stats != null && _tickActNanos.length < count) {
+			_tickActNanos = new long[count];
+		}
+		for (int i = 0; i < count; i++) {
+			_tickSounds[i] = _sounds.at(i);
+		}
+
+		int taskCount = _actTasks.size();
+		for (int t = 0; t < taskCount; t++) {
+			ActTask task = _actTasks.get(t);
+			task._start = (int)((long)count * t / taskCount);
+			task._end = (int)((long)count * (t + 1) / taskCount);
+		}
+
+		try {
+			for (Future<Object> f : _tickPool.invokeAll(_actTasks)) {
+				f.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return;
+		} catch (ExecutionException e) {
+			throw new RuntimeException("Sound failed to act.", e.getCause());
+		} finally {
+			// Deaths are collected after the join, in iteration order, so output stays deterministic.
+			for (int i = 0; i < count; i++) {
+				if (_tickDead[i]) {
+					markDead(_sounds.handleAt(i));
+				}
+				if (_stats != null) {
+					_stats.recordAct(_tickSounds[i], _tickActNanos[i]);
+				}
+				_tickSounds[i] = null;
+				_tickDead[i] = false;
+			}
+		}
+
+		killDead();
+	}
+
+	/* ------ Sound helpers ------------------------------------- */
+
+	private void markDead(int handle) {
+		if (_toKillCount == _toKill.length) {
+			_toKill = Arrays.copyOf(_toKill, _toKillCount * 2);
+		}
+		_toKill[_toKillCount++] = handle;
+	}
+
+	// Kills the marked sounds, closing up the live order once for the lot rather than once each.
+	private void killDead() {
+		_sounds.beginRemovals();
+		try {
+			for (int i = 0; i < _toKillCount; i++) {
+				killSound(_toKill[i]);
+			}
+		} finally {
+			_sounds.endRemovals();
+			_toKillCount = 0;
+		}
+	}
+
+	// Removes a sound, tells the listener, then pools the sound for reuse.
+	private void retire(int handle, String message) {
+		PHTSound s = _sounds.remove(handle);
+
+		if (_stats != null) {
+			_stats.countKill();
+		}
+
+		if (_listener != null) {
+			_listener.soundKilled(s, message);
+		}
+
+		_sounds.recycle(s);
+	}
+
+	/* ------ Spatialization ------------------------------------- */
+
+	// Calculates gain factor for each speaker in the set to represent a point sound at the provided `position`,
+	// 	by the current panning mode, writing them into `result`. Speakers that would get a gain of 0, or below
+	// 	the silence threshold, are left out of the (sparse) result.
+	protected void spatialize(double[] position, PHTGainMap result) {
+		if (_stats != null) {
+			_stats.countSpatialize();
+		}
+
+		// Every mode fades by the gain curve at some distance from a speaker, so a point out of earshot
+		// 	of the rig's bounds is silent.
+		if (!_spatialIndex.reaches(position[0], position[1], position[2], _audibleDistance)) {
+			result.clear();
+			return;
+		}
+
+		if (_panning == kPanningVBAP) {
+			spatializeVBAP(position, result);
+		} else if (_panning == kPanningDBAP) {
+			spatializeDBAP(position, result);
+		} else {
+			spatializeByDistance(position, result);
+		}
+
+		if (_silenceThreshold > 0.) {
+			dropSilent(result, _silenceThreshold);
+		}
+	}
+
+	/** Removes the entries of `map` with gains below `threshold`, keeping the rest in order. */
+	protected static void dropSilent(PHTGainMap map, double threshold) {
+		int[] slots = map.slotArray();
+		double[] gains = map.gainArray();
+
+		int kept = 0;
+		for (int i = 0; i < map.size(); i++) {
+			if (gains[i] >= threshold) {
+				slots[kept] = slots[i];
+				gains[kept] = gains[i];
+				kept++;
+			}
+		}
+		map.setSize(kept);
+	}
+
+	// Every speaker within earshot, by the gain curve.
+	private void spatializeByDistance(double[] position, PHTGainMap result) {
+		PHTSpatialIndex spatialIndex = _spatialIndex;
+		PHTGainCurve gainCurve = _gainCurve;
+
+		double radius = _audibleDistance;
+
+		// Room for the speakers in the cells searched, not the whole rig, so the map stays sparse.
+		result.ensureCapacity(spatialIndex.candidateCount(position[0], position[1], position[2], radius));
+
+		int[] slots = result.slotArray();
+		double[] gains = result.gainArray();
+
+		// The index writes distances into the gain array, which are converted in place.
+		int count = spatialIndex.query(position[0], position[1], position[2], radius, slots, gains);
+
+		gainCurve.gains(gains, count);
+
+		result.setSize(count);
+	}
+
+	// Gains in inverse proportion to a power of distance, over the speakers within the maximum distance,
+	// 	normalized to constant power and then faded by the gain curve at the distance of the nearest.
+	private void spatializeDBAP(double[] position, PHTGainMap result) {
+		PHTSpatialIndex spatialIndex = _spatialIndex;
+		PHTGainCurve gainCurve = _gainCurve;
+
+		double radius = gainCurve.getMaximumDistance();
+
+		result.ensureCapacity(spatialIndex.candidateCount(position[0], position[1], position[2], radius));
+
+		int[] slots = result.slotArray();
+		double[] gains = result.gainArray();
+
+		int count = spatialIndex.query(position[0], position[1], position[2], radius, slots, gains);
+
+		double nearest = Double.MAX_VALUE;
+		double power = 0.;
+		double blurSquared = _dbapBlur * _dbapBlur;
+		for (int i = 0; i < count; i++) {
+			nearest = Math.min(nearest, gains[i]);
+			gains[i] = Math.pow(gains[i] * gains[i] + blurSquared, -0.5 * _dbapExponent);
+			power += gains[i] * gains[i];
+		}
+
+		if (count > 0) {
+			double scale = gainCurve.gain(nearest) / Math.sqrt(power);
+			for (int i = 0; i < count; i++) {
+				gains[i] *= scale;
+			}
+		}
+
+		result.setSize(count);
+	}
+
+	// The two or three speakers around the point, faded by the gain curve at its distance from the rig.
+	private void spatializeVBAP(double[] position, PHTGainMap result) {
+		double distance = triangulation().pan(position, result);
+		double scale = _gainCurve.gain(distance);
+
+		double[] gains = result.gainArray();
+		for (int i = 0; i < result.size(); i++) {
+			gains[i] *= scale;
+		}
+		if (scale == 0.) {
+			result.clear();
+		}
+	}
+
+	// Returns the VBAP triangulation of the current rig, building it if the rig has changed since it was made.
+	// 	tick() builds it before acting, so sounds acting on tick threads never build it.
+	private PHTTriangulation triangulation() {
+		PHTTriangulation triangulation = _triangulation;
+		if (triangulation == null) {
+			triangulation = new PHTTriangulation(_speakerSet);
+			_triangulation = triangulation;
+		}
+		return triangulation;
+	}
+}
@@ -0,0 +1,196 @@
+package PHT;
+
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Counters and timings of a PHTEngine, collected while stats are on (see PHTEngine.setStatsEnabled()) and
+ *	read back by whoever reports them. Everything is counted from the last reset().
+ *
+ *	Tick durations go into a histogram of doubling buckets, so recording a tick is a few adds, however
+ *	long the run. act() costs are kept per sound class. Allocation is read from the JVM's per-thread
+ *	counter, where it has one, for the ticking thread only; threads of a parallel tick are not counted. */
+public class PHTEngineStats {
+	/** Number of tick duration buckets. Bucket 0 holds ticks under kFirstBucketNanos, and each bucket after
+	 *	that ticks under twice the bound of the one before; the last holds everything longer. */
+	public static final int kBucketCount = 16;
+	public static final long kFirstBucketNanos = 8000L;
+
+	private long _tickCount;
+	private long _tickNanosSum;
+	private long _tickNanosMax;
+	private final long[] _histogram;
+
+	// act() cost by sound class, in parallel lists.
+	private final List<Class<?>> _soundTypes;
+	private long[] _actCounts;
+	private long[] _actNanos;
+
+	private final AtomicLong _spatializeCount; // counted from every thread of a parallel tick
+	private long _spawnCount;
+	private long _killCount;
+
+	private final com.sun.management.ThreadMXBean _threads; // null if the JVM does not count allocation
+	private long _allocatedBytes;
+	private long _startNanos;
+
+	/** Constructs empty PHTEngineStats. */
+	public PHTEngineStats() {
+		_histogram = new long[kBucketCount];
+		_soundTypes = new ArrayList<Class<?>>();
+		_actCounts = new long[4];
+		_actNanos = new long[4];
+		_spatializeCount = new AtomicLong();
+
+		java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		_threads = threads instanceof com.sun.management.ThreadMXBean
+			&& ((com.sun.management.ThreadMXBean)threads).isThreadAllocatedMemorySupported()
+			? (com.sun.management.ThreadMXBean)threads
+			: null;
+
+		reset();
+	}
+
+	/** Zeroes every counter, starting a new window. */
+	public void reset() {
+		_tickCount = 0;
+		_tickNanosSum = 0;
+		_tickNanosMax = 0;
+		Arrays.fill(_histogram, 0);
+		Arrays.fill(_actCounts, 0);
+		Arrays.fill(_actNanos, 0);
+		_spatializeCount.set(0);
+		_spawnCount = 0;
+		_killCount = 0;
+		_allocatedBytes = 0;
+		_startNanos = System.nanoTime();
+	}
+
+	/* ------ Reading ------------------------------------- */
+
+	/** Returns the number of ticks recorded. */
+	public long tickCount() {
+		return _tickCount;
+	}
+
+	/** Returns the mean tick duration, in milliseconds. */
+	public double meanTickTime() {
+		return _tickCount > 0 ? _tickNanosSum / 1e6 / _tickCount : 0.;
+	}
+
+	/** Returns the longest tick duration, in milliseconds. */
+	public double maxTickTime() {
+		return _tickNanosMax / 1e6;
+	}
+
+	/** Returns the number of ticks in duration bucket `bucket` (see kBucketCount). */
+	public long ticksInBucket(int bucket) {
+		return _histogram[bucket];
+	}
+
+	/** Returns the upper bound of duration bucket `bucket`, in milliseconds, or infinity for the last. */
+	public double bucketLimit(int bucket) {
+		return bucket < kBucketCount - 1 ? (kFirstBucketNanos << bucket) / 1e6 : Double.POSITIVE_INFINITY;
+	}
+
+	/** Returns the number of sound classes that have acted. */
+	public int soundTypeCount() {
+		return _soundTypes.size();
+	}
+
+	/** Returns the `i`th sound class to have acted. */
+	public Class<?> soundType(int i) {
+		return _soundTypes.get(i);
+	}
+
+	/** Returns the number of act() calls on sounds of the `i`th class. */
+	public long actCount(int i) {
+		return _actCounts[i];
+	}
+
+	/** Returns the mean cost of an act() on sounds of the `i`th class, in microseconds. */
+	public double meanActTime(int i) {
+		return _actCounts[i] > 0 ? _actNanos[i] / 1e3 / _actCounts[i] : 0.;
+	}
+
+	/** Returns the number of points spatialized. */
+	public long spatializeCount() {
+		return _spatializeCount.get();
+	}
+
+	/** Returns the number of sounds added. */
+	public long spawnCount() {
+		return _spawnCount;
+	}
+
+	/** Returns the number of sounds removed, whether they died or were killed. */
+	public long killCount() {
+		return _killCount;
+	}
+
+	/** Returns the bytes allocated by the ticking thread per second of real time, or -1 if the JVM
+	 *	does not count allocation. */
+	public double allocationRate() {
+		if (_threads == null) {
+			return -1.;
+		}
+		double seconds = (System.nanoTime() - _startNanos) / 1e9;
+		return seconds > 0. ? _allocatedBytes / seconds : 0.;
+	}
+
+	/* ------ Recording, for PHTEngine ------------------------------------- */
+
+	// Returns the bytes the calling thread has allocated so far, for recordTick(); 0 if not counted.
+	protected long allocatedBytes() {
+		return _threads != null ? _threads.getThreadAllocatedBytes(Thread.currentThread().getId()) : 0;
+	}
+
+	protected void recordTick(long nanos, long allocatedBytesAtStart) {
+		_tickCount++;
+		_tickNanosSum += nanos;
+		_tickNanosMax = Math.max(_tickNanosMax, nanos);
+
+		int bucket = 0;
+		for (long limit = kFirstBucketNanos; nanos >= limit && bucket < kBucketCount - 1; limit <<= 1) {
+			bucket++;
+		}
+		_histogram[bucket]++;
+
+		if (_threads != null) {
+			_allocatedBytes += allocatedBytes() - allocatedBytesAtStart;
+		}
+	}
+
+	protected void recordAct(PHTSound sound, long nanos) {
+		Class<?> type = sound.getClass();
+
+		// Only a handful of sound classes, so a scan beats hashing.
+		int i = 0;
+		while (i < _soundTypes.size() && _soundTypes.get(i) != type) {
+			i++;
+		}
+		if (i == _soundTypes.size()) {
+			_soundTypes.add(type);
+			if (i == _actCounts.length) {
+				_actCounts = Arrays.copyOf(_actCounts, i * 2);
+				_actNanos = Arrays.copyOf(_actNanos, i * 2);
+			}
+		}
+
+		_actCounts[i]++;
+		_actNanos[i] += nanos;
+	}
+
+	// Safe to call from any thread.
+	protected void countSpatialize() {
+		_spatializeCount.incrementAndGet();
+	}
+
+	protected void countSpawn() {
+		_spawnCount++;
+	}
+
+	protected void countKill() {
+		_killCount++;
+	}
+}
@@ -0,0 +1,28 @@
+package PHT;
+
+/** PHTClock that advances by a fixed step each time it is read, independent of real time.
+ *	Since a PHTEngine reads its clock once per tick, every tick lasts exactly one step. */
+public class PHTFixedStepClock implements PHTClock {
+	private long _time;
+	private final long _step;
+
+	/** Constructs a PHTFixedStepClock.
+	 *
+	 *	@param 	start 	the time returned by the first reading, in milliseconds
+	 *	@param 	step 	the time added by each reading, in milliseconds
+	 */
+	public PHTFixedStepClock(long start, long step) {
+		_time = start;
+		_step = step;
+	}
+
+	public long now() {
+		long result = _time;
+		_time += _step;
+		return result;
+	}
+
+	public long getStep() {
+		return _step;
+	}
+}
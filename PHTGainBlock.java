@@ -0,0 +1,82 @@
+package PHT;
+
+import java.util.Arrays;
+
+/** One block of a sound's gains at signal rate: for each speaker the sound reaches during the block,
+ *	a gain factor for every frame. Gains are held in one float array, speaker by speaker, so a block can
+ *	be refilled without allocating. Filled by PHTBlockRenderer. */
+public class PHTGainBlock {
+	private PHTSound _sound;
+	private int _frames;
+	private int[] _slots;
+	private float[] _gains; // frames of entry i start at i * _frames
+	private int _size;
+
+	/** Constructs an empty PHTGainBlock of `frames` frames. */
+	public PHTGainBlock(int frames) {
+		_frames = frames;
+		_slots = new int[4];
+		_gains = new float[4 * frames];
+		_size = 0;
+	}
+
+	/** Returns the sound these gains belong to. Only valid until the engine next ticks. */
+	public PHTSound sound() {
+		return _sound;
+	}
+
+	/** Returns the number of frames in this block. */
+	public int frames() {
+		return _frames;
+	}
+
+	/** Returns the number of speakers in this block. */
+	public int size() {
+		return _size;
+	}
+
+	/** Returns the speaker slot of entry `i`. */
+	public int slot(int i) {
+		return _slots[i];
+	}
+
+	/** Returns the gain factor of entry `i` at frame `frame`. */
+	public float gain(int i, int frame) {
+		return _gains[i * _frames + frame];
+	}
+
+	/** Copies the frames of entry `i` into `destination`, starting at `offset`. */
+	public void copyGains(int i, float[] destination, int offset) {
+		System.arraycopy(_gains, i * _frames, destination, offset, _frames);
+	}
+
+	/* ------ Filling, for PHTBlockRenderer ------------------------------------- */
+
+	// Empties the block and sets it up for `frames` frames of `sound`.
+	protected void clear(PHTSound sound, int frames) {
+		_sound = sound;
+		_size = 0;
+
+		if (frames != _frames) {
+			_frames = frames;
+			_gains = new float[_slots.length * frames];
+		}
+	}
+
+	// Appends an entry for `slot` ramping linearly from `startGain`, at the first frame, towards `endGain`,
+	// 	which it would reach on the frame after the last.
+	protected void addRamp(int slot, double startGain, double endGain) {
+		if (_size == _slots.length) {
+			_slots = Arrays.copyOf(_slots, _size * 2);
+			_gains = Arrays.copyOf(_gains, _size * 2 * _frames);
+		}
+
+		int offset = _size * _frames;
+		double step = (endGain - startGain) / _frames;
+		for (int frame = 0; frame < _frames; frame++) {
+			_gains[offset + frame] = (float)(startGain + step * frame);
+		}
+
+		_slots[_size++] = slot;
+	}
+}
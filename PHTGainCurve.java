@@ -0,0 +1,165 @@
+package PHT;
+
+/** Maps distance from a sound to speaker gain factor through a precomputed lookup table.
+ *	The table covers [0, maximumDistance) and is linearly interpolated; at or past maximumDistance
+ *	the gain is 0. PHTGainCurves are immutable, so a new one is built whenever the rolloff or the
+ *	maximum distance changes. */
+public class PHTGainCurve {
+	/** Shape of a gain curve, evaluated once per table entry. */
+	public interface Rolloff {
+		/** Returns the gain factor (between 0. and 1.) at `distance`, for a curve reaching silence at `maximumDistance`. */
+		public double gain(double distance, double maximumDistance);
+	}
+
+	/** Linear in decibels, from 0 dB at distance 0 to `floorDB` at the maximum distance. */
+	public static class LinearDBRolloff implements Rolloff {
+		private final double _floorDB;
+
+		public LinearDBRolloff(double floorDB) {
+			_floorDB = floorDB;
+		}
+
+		public double gain(double distance, double maximumDistance) {
+			double gainDB = _floorDB * distance / maximumDistance;
+			return Math.pow(10., (0.05 * gainDB));
+		}
+	}
+
+	/** Inverse square law for intensity: amplitude falls as referenceDistance / distance, capped at 1. */
+	public static class InverseSquareRolloff implements Rolloff {
+		private final double _referenceDistance;
+
+		public InverseSquareRolloff(double referenceDistance) {
+			_referenceDistance = referenceDistance;
+		}
+
+		public double gain(double distance, double maximumDistance) {
+			if (distance <= _referenceDistance) {
+				return 1.;
+			}
+			return _referenceDistance / distance;
+		}
+	}
+
+	/** Piecewise linear through (distance, gain) breakpoints, holding the end values beyond them. */
+	public static class BreakpointRolloff implements Rolloff {
+		private final double[] _distances;
+		private final double[] _gains;
+
+		/** @param 	distances 	breakpoint distances, in increasing order
+		 *	@param 	gains 		gain factor at each breakpoint */
+		public BreakpointRolloff(double[] distances, double[] gains) {
+			if (distances.length == 0 || distances.length != gains.length) {
+				throw new IllegalArgumentException("Breakpoint rolloff needs matching, non-empty distance and gain lists.");
+			}
+			for (int i = 1; i < distances.length; i++) {
+				if (distances[i] < distances[i - 1]) {
+					throw new IllegalArgumentException("Breakpoint distances must be increasing.");
+				}
+			}
+
+			_distances = distances.clone();
+			_gains = gains.clone();
+		}
+
+		public double gain(double distance, double maximumDistance) {
+			if (distance <= _distances[0]) {
+				return _gains[0];
+			}
+
+			for (int i = 1; i < _distances.length; i++) {
+				if (distance < _distances[i]) {
+					double t = (distance - _distances[i - 1]) / (_distances[i] - _distances[i - 1]);
+					return _gains[i - 1] + (_gains[i] - _gains[i - 1]) * t;
+				}
+			}
+
+			return _gains[_gains.length - 1];
+		}
+	}
+
+	// Number of table intervals across [0, maximumDistance).
+	private static final int kTableResolution = 4096;
+
+	private final Rolloff _rolloff;
+	private final double _maximumDistance;
+	private final double _scale; // table intervals per unit of distance
+	private final double[] _table;
+
+	/** Builds the lookup table for `rolloff` over [0, `maximumDistance`). */
+	public PHTGainCurve(Rolloff rolloff, double maximumDistance) {
+		_rolloff = rolloff;
+		_maximumDistance = maximumDistance;
+		_scale = kTableResolution / maximumDistance;
+
+		// One extra entry so interpolation never reads past the end.
+		_table = new double[kTableResolution + 2];
+		for (int i = 0; i <= kTableResolution; i++) {
+			_table[i] = rolloff.gain(i / _scale, maximumDistance);
+		}
+		_table[kTableResolution + 1] = _table[kTableResolution];
+	}
+
+	/** Returns the default curve, -80 dB at `maximumDistance` linear in decibels. */
+	public static PHTGainCurve standard(double maximumDistance) {
+		return new PHTGainCurve(new LinearDBRolloff(-80.), maximumDistance);
+	}
+
+	/** Returns a curve with the same rolloff as this one, rebuilt for `maximumDistance`. */
+	public PHTGainCurve withMaximumDistance(double maximumDistance) {
+		return new PHTGainCurve(_rolloff, maximumDistance);
+	}
+
+	public Rolloff getRolloff() {
+		return _rolloff;
+	}
+
+	public double getMaximumDistance() {
+		return _maximumDistance;
+	}
+
+	/** Returns the distance from which the gain stays below `threshold` (as far as the table resolves it),
+	 *	or the maximum distance if it is never below it before then. */
+	public double audibleDistance(double threshold) {
+		for (int i = kTableResolution; i >= 0; i--) {
+			if (_table[i] >= threshold) {
+				return Math.min(_maximumDistance, (i + 1) / _scale);
+			}
+		}
+		return 0.;
+	}
+
+	/** Returns the gain factor at `distance`. */
+	public double gain(double distance) {
+		if (distance >= _maximumDistance) {
+			return 0.;
+		}
+
+		double position = distance * _scale;
+		int i = (int)position;
+		double t = position - i;
+
+		return _table[i] + (_table[i + 1] - _table[i]) * t;
+	}
+
+	/** Replaces each of the first `count` entries of `values`, a distance, with the gain factor at it. */
+	protected void gains(double[] values, int count) {
+		double[] table = _table;
+		double scale = _scale;
+		double maximumDistance = _maximumDistance;
+
+		for (int n = 0; n < count; n++) {
+			double distance = values[n];
+			if (distance >= maximumDistance) {
+				values[n] = 0.;
+				continue;
+			}
+
+			double position = distance * scale;
+			int i = (int)position;
+			double t = position - i;
+
+			values[n] = table[i] + (table[i + 1] - table[i]) * t;
+		}
+	}
+}
@@ -0,0 +1,83 @@
+package PHT;
+
+import java.util.Arrays;
+
+/** Sparse map of speaker slot to gain factor, held in parallel primitive arrays so it can be
+ *	refilled every tick without allocating. Entries are not deduplicated; writers add each slot once. */
+public class PHTGainMap {
+	private int[] _slots;
+	private double[] _gains;
+	private int _size;
+
+	/** Constructs an empty PHTGainMap. */
+	public PHTGainMap() {
+		this(4);
+	}
+
+	/** Constructs an empty PHTGainMap with room for `capacity` entries. */
+	public PHTGainMap(int capacity) {
+		_slots = new int[Math.max(1, capacity)];
+		_gains = new double[Math.max(1, capacity)];
+		_size = 0;
+	}
+
+	/** Returns the number of entries. */
+	public int size() {
+		return _size;
+	}
+
+	/** Returns the speaker slot of entry `i`. */
+	public int slot(int i) {
+		return _slots[i];
+	}
+
+	/** Returns the gain factor of entry `i`. */
+	public double gain(int i) {
+		return _gains[i];
+	}
+
+	/** Removes all entries. */
+	public void clear() {
+		_size = 0;
+	}
+
+	/** Appends an entry for `slot`. */
+	public void add(int slot, double gain) {
+		ensureCapacity(_size + 1);
+		_slots[_size] = slot;
+		_gains[_size] = gain;
+		_size++;
+	}
+
+	/** Replaces the contents of this map with those of `other`. */
+	public void copyFrom(PHTGainMap other) {
+		ensureCapacity(other._size);
+		System.arraycopy(other._slots, 0, _slots, 0, other._size);
+		System.arraycopy(other._gains, 0, _gains, 0, other._size);
+		_size = other._size;
+	}
+
+	/** Grows the backing arrays to hold at least `capacity` entries. */
+	protected void ensureCapacity(int capacity) {
+		if (capacity > _slots.length) {
+			int newCapacity = Math.max(capacity, _slots.length * 2);
+			_slots = Arrays.copyOf(_slots, newCapacity);
+			_gains = Arrays.copyOf(_gains, newCapacity);
+		}
+	}
+
+	/* Direct access for bulk writers such as PHTSpeakerSet.spatialize(); call ensureCapacity() first
+		and setSize() after filling. */
+
+	protected int[] slotArray() {
+		return _slots;
+	}
+
+	protected double[] gainArray() {
+		return _gains;
+	}
+
+	protected void setSize(int size) {
+		_size = size;
+	}
+}
@@ -0,0 +1,128 @@
+package PHT;
+
+import java.util.Arrays;
+
+/** The gains of a point moving in a straight line through a PHTEngine's rig, sampled at evenly spaced points
+ *	along the line, so that a sweep along it can be spatialized by interpolating between samples instead of
+ *	calling spatialize() every tick. Shared between sweeps through PHTTrajectoryCache; immutable once built.
+ *
+ *	Samples are held as one sparse map each, back to back in parallel arrays, with entries sorted by slot so
+ *	neighbouring samples can be merged in one pass. */
+public class PHTGainTrajectory {
+	private final long _rigVersion; // PHTEngine.rigVersion() when sampled
+	private final int _intervals; // samples - 1
+	private final int[] _sampleStart; // entries of sample i are [_sampleStart[i], _sampleStart[i + 1])
+	private final int[] _slots;
+	private final double[] _gains;
+
+	/** Samples the gains of `engine` at `intervals` + 1 points evenly spaced from `start` to `end`, inclusive.
+	 *	Makes one spatialize() call per sample. */
+	public PHTGainTrajectory(PHTEngine engine, double[] start, double[] end, int intervals) {
+		if (intervals <= 0) {
+			throw new IllegalArgumentException("A trajectory needs at least one interval.");
+		}
+
+		_rigVersion = engine.rigVersion();
+		_intervals = intervals;
+		_sampleStart = new int[intervals + 2];
+
+		PHTGainMap sample = new PHTGainMap();
+		double[] point = new double[3];
+		int[] slots = new int[16];
+		double[] gains = new double[16];
+		int size = 0;
+
+		for (int i = 0; i <= intervals; i++) {
+			double progress = (double)i / intervals;
+			for (int d = 0; d < 3; d++) {
+				point[d] = start[d] + (end[d] - start[d]) * progress;
+			}
+			engine.spatialize(point, sample);
+
+			if (size + sample.size() > slots.length) {
+				int capacity = Math.max(size + sample.size(), slots.length * 2);
+				slots = Arrays.copyOf(slots, capacity);
+				gains = Arrays.copyOf(gains, capacity);
+			}
+
+			_sampleStart[i] = size;
+			sortBySlot(sample, slots, gains, size);
+			size += sample.size();
+		}
+		_sampleStart[intervals + 1] = size;
+
+		_slots = Arrays.copyOf(slots, size);
+		_gains = Arrays.copyOf(gains, size);
+	}
+
+	/** Returns the PHTEngine.rigVersion() the trajectory was sampled at; it is stale once that changes. */
+	public long rigVersion() {
+		return _rigVersion;
+	}
+
+	/** Returns the number of entries held over all samples, as a measure of its size. */
+	public int entryCount() {
+		return _slots.length;
+	}
+
+	/** Writes the gains at `progress` along the line into `result`, interpolating linearly between the
+	 *	samples either side, and leaving out gains below `threshold`.
+	 *	@param 	progress 	in [0., 1.]; clamped */
+	public void gainsAt(double progress, double threshold, PHTGainMap result) {
+		double position = Math.max(0., Math.min(1., progress)) * _intervals;
+		int i = Math.min((int)position, _intervals - 1);
+		double along = position - i;
+
+		// Merge the two samples' entries, both sorted by slot.
+		int a = _sampleStart[i], aEnd = _sampleStart[i + 1];
+		int b = aEnd, bEnd = _sampleStart[i + 2];
+
+		result.clear();
+		result.ensureCapacity((aEnd - a) + (bEnd - b));
+		int[] slots = result.slotArray();
+		double[] gains = result.gainArray();
+		int size = 0;
+
+		while (a < aEnd || b < bEnd) {
+			int slot;
+			double gain;
+			if (b == bEnd || (a < aEnd && _slots[a] < _slots[b])) {
+				slot = _slots[a];
+				gain = _gains[a++] * (1. - along);
+			} else if (a == aEnd || _slots[b] < _slots[a]) {
+				slot = _slots[b];
+				gain = _gains[b++] * along;
+			} else {
+				slot = _slots[a];
+				gain = _gains[a++] * (1. - along) + _gains[b++] * along;
+			}
+
+			if (gain > 0. && gain >= threshold) {
+				slots[size] = slot;
+				gains[size] = gain;
+				size++;
+			}
+		}
+
+		result.setSize(size);
+	}
+
+	/* ------ Helpers ------------------------------------- */
+
+	// Copies `sample` into `slots` / `gains` from `offset`, sorted by slot (insertion sort; samples are small).
+	private static void sortBySlot(PHTGainMap sample, int[] slots, double[] gains, int offset) {
+		for (int n = 0; n < sample.size(); n++) {
+			int slot = sample.slot(n);
+			double gain = sample.gain(n);
+
+			int j = offset + n;
+			while (j > offset && slots[j - 1] > slot) {
+				slots[j] = slots[j - 1];
+				gains[j] = gains[j - 1];
+				j--;
+			}
+			slots[j] = slot;
+			gains[j] = gain;
+		}
+	}
+}
@@ -0,0 +1,276 @@
+package PHT;
+
+import java.io.*;
+import java.util.Arrays;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/** Reads a speaker layout file straight into a PHTSpeakerFactory.
+ *
+ *	Layouts are in the coll format used by the files in test/, one entry per speaker:
+ *		<label>, <index> <x> <y> <z> [<linked-speaker-idx1> <linked-speaker-idx2> ...];
+ *	where <label> is ignored and may be quoted ("cupboard right"). Entries may span lines.
+ *	The file is streamed through a fixed buffer with a FileChannel and parsed byte by byte, so no Strings or Atoms
+ *	are made per speaker; links go on the default layer, as with the `speaker` message. */
+public class PHTLayoutReader {
+	private static final int kBufferSize = 1 << 16;
+
+	// Powers of ten that are exact as doubles.
+	private static final double[] kPowersOfTen = {
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+		1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+	};
+
+	private final String _path;
+	private final FileChannel _channel;
+	private final byte[] _bytes; // read buffer, holding valid bytes up to _limit
+	private final ByteBuffer _buffer; // wraps _bytes, for the channel to read into
+	private int _position;
+	private int _limit;
+	private int _line; // current line, for error messages
+
+	// Characters of the number being parsed, for the rare values the fast path cannot convert exactly.
+	private char[] _token;
+	private int _tokenLength;
+
+	private PHTLayoutReader(File file) throws IOException {
+		_path = file.getPath();
+		_channel = new FileInputStream(file).getChannel();
+		_bytes = new byte[kBufferSize];
+		_buffer = ByteBuffer.wrap(_bytes);
+		_position = 0;
+		_limit = 0;
+		_line = 1;
+		_token = new char[32];
+	}
+
+	/** Adds every speaker in the layout file `file` to `factory`.
+	 *
+	 *	@returns 	the number of speakers read.
+	 *	@throws 	IOException 	if the file cannot be read, or is not a valid layout
+	 */
+	public static int read(File file, PHTSpeakerFactory factory) throws IOException {
+		PHTLayoutReader reader = new PHTLayoutReader(file);
+		try {
+			return reader.readEntries(factory);
+		} finally {
+			reader._channel.close();
+		}
+	}
+
+	/* ------ Helpers ------------------------------------- */
+
+	private int readEntries(PHTSpeakerFactory factory) throws IOException {
+		int count = 0;
+
+		while (skipWhitespace() >= 0) {
+			skipLabel();
+
+			int index = parseInt();
+			double x = parseDouble();
+			double y = parseDouble();
+			double z = parseDouble();
+
+			int row;
+			try {
+				row = factory.addSpeaker(index, x, y, z);
+			} catch (IndexOutOfBoundsException e) {
+				throw error(e.getMessage());
+			}
+
+			int c;
+			while ((c = skipWhitespace()) != ';') {
+				if (c < 0) {
+					throw error("Missing ; at end of speaker " + index + ".");
+				}
+				factory.addLinkRow(PHTLinkGraph.kDefaultLayerId, index, parseInt(), row);
+			}
+			next();
+
+			count++;
+		}
+
+		return count;
+	}
+
+	// Skips the label and the comma after it.
+	private void skipLabel() throws IOException {
+		boolean quoted = false;
+		int c;
+		while ((c = next()) >= 0) {
+			if (c == '"') {
+				quoted = !quoted;
+			} else if (c == ',' && !quoted) {
+				return;
+			} else if (c == ';' && !quoted) {
+				break;
+			}
+		}
+		throw error("Expected <label>, before speaker.");
+	}
+
+	private int parseInt() throws IOException {
+		skipWhitespace();
+
+		boolean negative = false;
+		if (peek() == '-') {
+			negative = true;
+			next();
+		}
+
+		long value = 0;
+		int digits = 0;
+		int c;
+		while ((c = peek()) >= '0' && c <= '9') {
+			value = value * 10 + (c - '0');
+			if (value > Integer.MAX_VALUE) {
+				throw error("Integer out of range.");
+			}
+			digits++;
+			next();
+		}
+
+		if (digits == 0 || !isDelimiter(c)) {
+			throw error("Expected an integer.");
+		}
+		return (int)(negative ? -value : value);
+	}
+
+	// Parses a decimal number such as 4, 4., -1.5 or 2.5e-3. Values with at most 15 significant digits and a
+	// 	small exponent are exact as a long mantissa times or over a power of ten, which is correctly rounded;
+	// 	anything else goes through Double.parseDouble().
+	private double parseDouble() throws IOException {
+		skipWhitespace();
+		_tokenLength = 0;
+
+		boolean negative = false;
+		int c = peek();
+		if (c == '-' || c == '+') {
+			negative = c == '-';
+			token(next());
+		}
+
+		long mantissa = 0;
+		int significant = 0;
+		int digits = 0;
+		int scale = 0; // decimal exponent to apply to mantissa
+		boolean point = false;
+
+		while ((c = peek()) >= 0) {
+			if (c >= '0' && c <= '9') {
+				if (mantissa != 0 || c != '0') {
+					significant++;
+				}
+				if (significant <= 18) {
+					mantissa = mantissa * 10 + (c - '0');
+					if (point) {
+						scale--;
+					}
+				} else if (!point) {
+					scale++;
+				}
+				digits++;
+			} else if (c == '.' && !point) {
+				point = true;
+			} else {
+				break;
+			}
+			token(next());
+		}
+
+		if (digits == 0) {
+			throw error("Expected a number.");
+		}
+
+		if (c == 'e' || c == 'E') {
+			token(next());
+
+			boolean negativeExponent = false;
+			c = peek();
+			if (c == '-' || c == '+') {
+				negativeExponent = c == '-';
+				token(next());
+			}
+
+			int exponent = 0;
+			int exponentDigits = 0;
+			while ((c = peek()) >= '0' && c <= '9') {
+				exponent = Math.min(exponent * 10 + (c - '0'), 100000);
+				exponentDigits++;
+				token(next());
+			}
+			if (exponentDigits == 0) {
+				throw error("Expected an exponent.");
+			}
+			scale += negativeExponent ? -exponent : exponent;
+		}
+
+		if (!isDelimiter(c)) {
+			throw error("Expected a number.");
+		}
+
+		if (significant <= 15 && scale >= -22 && scale <= 22) {
+			double value = scale < 0 ? mantissa / kPowersOfTen[-scale] : mantissa * kPowersOfTen[scale];
+			return negative ? -value : value;
+		}
+		return Double.parseDouble(new String(_token, 0, _tokenLength));
+	}
+
+	private void token(int c) {
+		if (_tokenLength == _token.length) {
+			_token = Arrays.copyOf(_token, _tokenLength * 2);
+		}
+		_token[_tokenLength++] = (char)c;
+	}
+
+	private static boolean isDelimiter(int c) {
+		return c < 0 || c == ';' || isWhitespace(c);
+	}
+
+	private static boolean isWhitespace(int c) {
+		return c == ' ' || c == '\t' || c == '\n' || c == '\r';
+	}
+
+	// Skips whitespace and returns the next character, without consuming it; -1 at the end of the file.
+	private int skipWhitespace() throws IOException {
+		int c;
+		while (isWhitespace(c = peek())) {
+			next();
+		}
+		return c;
+	}
+
+	// Returns the next character without consuming it; -1 at the end of the file.
+	private int peek() throws IOException {
+		if (_position == _limit) {
+			_buffer.clear();
+			int read;
+			do {
+				read = _channel.read(_buffer);
+			} while (read == 0);
+
+			_position = 0;
+			_limit = Math.max(read, 0);
+			if (read < 0) {
+				return -1;
+			}
+		}
+		return _bytes[_position] & 0xff;
+	}
+
+	// Consumes and returns the next character; -1 at the end of the file.
+	private int next() throws IOException {
+		int c = peek();
+		if (c >= 0) {
+			_position++;
+			if (c == '\n') {
+				_line++;
+			}
+		}
+		return c;
+	}
+
+	private IOException error(String message) {
+		return new IOException(_path + ", line " + _line + ": " + message);
+	}
+}
@@ -0,0 +1,617 @@
+package PHT;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/** Directed links between the speakers of a PHTSpeakerStore, on any number of named layers.
+ *
+ *	Layer names are interned to small ints (the default layer, "--default", is always 0), and each layer
+ *	keeps its links in compressed rows: the links out of slot s are the edges rowStart(s) up to (not
+ *	including) rowStart(s) + degree(s), each with its target slot, length and travel time precomputed.
+ *	Each layer also keeps reverse rows of the links into every slot.
+ *
+ *	Links can be added and removed in place. A row that outgrows its room is moved to the end of its
+ *	layer's arrays with room to spare, so an edit touches only the rows of the speakers involved;
+ *	a layer is compacted when the space left behind by moved rows would otherwise force it to grow.
+ *	Edge numbers are therefore only stable until the next edit. */
+public class PHTLinkGraph {
+	public static final String kDefaultLayer = "--default";
+	public static final int kDefaultLayerId = 0;
+
+	// Room given to a row the first time it is moved.
+	private static final int kMinimumRowCapacity = 4;
+
+	private final PHTSpeakerStore _speakers;
+
+	private final List<String> _layerNames;
+	private final Map<String, Integer> _layerIds;
+	private int _slots; // length of the per-slot arrays
+
+	// Per layer, then per slot / edge. Row s has room for _rowCapacity[s] edges; edges past _edgeEnd are free.
+	private int[][] _rowStart;
+	private int[][] _degree;
+	private int[][] _rowCapacity;
+	private int[][] _target;
+	private double[][] _length;
+	private long[][] _travelTime; // in ms, length * PHTToolbox.kDistanceToTimeRatio
+	private int[] _edgeEnd;
+
+	// Reverse rows, laid out the same way: the links into slot s come from _inSource[], as edge _inEdge[].
+	private int[][] _inStart;
+	private int[][] _inDegree;
+	private int[][] _inCapacity;
+	private int[][] _inSource;
+	private int[][] _inEdge;
+	private int[] _inEnd;
+
+	/** Builds a graph from a list of links between slots of `speakers`. Repeated links are kept once,
+	 *	and each row is sorted by destination slot.
+	 *
+	 *	@param 	speakers 	the speakers being linked
+	 *	@param 	layerNames 	the name of each layer id; layerNames.get(0) must be kDefaultLayer
+	 *	@param 	linkLayer 	the layer id of each link
+	 *	@param 	linkFrom 	the source slot of each link
+	 *	@param 	linkTo 		the destination slot of each link
+	 *	@param 	linkCount 	the number of links
+	 */
+	protected PHTLinkGraph(PHTSpeakerStore speakers, List<String> layerNames,
+							int[] linkLayer, int[] linkFrom, int[] linkTo, int linkCount) {
+		int size = speakers.size();
+		int layers = layerNames.size();
+
+		_speakers = speakers;
+		_slots = size;
+
+		_layerNames = new ArrayList<String>(layerNames);
+		_layerIds = new HashMap<String, Integer>();
+		for (int l = 0; l < layers; l++) {
+			_layerIds.put(_layerNames.get(l), l);
+		}
+
+		allocateLayers(layers);
+
+		for (int l = 0; l < layers; l++) {
+			// Bucket this layer's links by source slot.
+			int[] start = new int[size + 1];
+			for (int i = 0; i < linkCount; i++) {
+				if (linkLayer[i] == l) {
+					start[linkFrom[i] + 1]++;
+				}
+			}
+			for (int slot = 0; slot < size; slot++) {
+				start[slot + 1] += start[slot];
+			}
+
+			int[] targets = new int[start[size]];
+			int[] fill = Arrays.copyOf(start, size);
+			for (int i = 0; i < linkCount; i++) {
+				if (linkLayer[i] == l) {
+					targets[fill[linkFrom[i]]++] = linkTo[i];
+				}
+			}
+
+			// Sort each row and squeeze out repeated links.
+			int edges = 0;
+			for (int slot = 0; slot < size; slot++) {
+				Arrays.sort(targets, start[slot], start[slot + 1]);
+
+				_rowStart[l][slot] = edges;
+				for (int i = start[slot]; i < start[slot + 1]; i++) {
+					if (i == start[slot] || targets[i] != targets[i - 1]) {
+						targets[edges++] = targets[i];
+						_degree[l][slot]++;
+					}
+				}
+				_rowCapacity[l][slot] = _degree[l][slot];
+			}
+
+			_target[l] = Arrays.copyOf(targets, edges);
+			_length[l] = new double[edges];
+			_travelTime[l] = new long[edges];
+			_edgeEnd[l] = edges;
+
+			for (int slot = 0; slot < size; slot++) {
+				for (int edge = _rowStart[l][slot]; edge < _rowStart[l][slot] + _degree[l][slot]; edge++) {
+					measure(l, edge, slot);
+				}
+			}
+
+			buildReverseRows(l);
+		}
+	}
+
+	/** Returns the number of layers. */
+	public int layerCount() {
+		return _layerNames.size();
+	}
+
+	/** Returns the id of the layer named `name`, or -1 if there is no such layer. */
+	public int layerId(String name) {
+		Integer result = _layerIds.get(name);
+		return result == null ? -1 : result;
+	}
+
+	/** Returns the name of layer `layer`. */
+	public String layerName(int layer) {
+		return _layerNames.get(layer);
+	}
+
+	/** Returns the number of links out of `slot` on `layer`. */
+	public int degree(int layer, int slot) {
+		return _degree[layer][slot];
+	}
+
+	/** Returns the first edge out of `slot` on `layer`; the others follow it. */
+	public int rowStart(int layer, int slot) {
+		return _rowStart[layer][slot];
+	}
+
+	/** Returns the destination slot of `edge` on `layer`. */
+	public int target(int layer, int edge) {
+		return _target[layer][edge];
+	}
+
+	/** Returns the length of `edge` on `layer`. */
+	public double length(int layer, int edge) {
+		return _length[layer][edge];
+	}
+
+	/** Returns the time a transect sound takes to travel `edge` on `layer`, in ms. */
+	public long travelTime(int layer, int edge) {
+		return _travelTime[layer][edge];
+	}
+
+	/** Returns the number of links into `slot` on `layer`. */
+	public int inDegree(int layer, int slot) {
+		return _inDegree[layer][slot];
+	}
+
+	/** Returns the first reverse entry of `slot` on `layer`; the others follow it. */
+	public int inRowStart(int layer, int slot) {
+		return _inStart[layer][slot];
+	}
+
+	/** Returns the source slot of reverse entry `i` on `layer`. */
+	public int inSource(int layer, int i) {
+		return _inSource[layer][i];
+	}
+
+	/** Returns the edge of reverse entry `i` on `layer`. */
+	public int inEdge(int layer, int i) {
+		return _inEdge[layer][i];
+	}
+
+	/** Returns a random edge out of `slot` on `layer`, or -1 if it has no links there. */
+	public int randomEdge(int layer, int slot, Random random) {
+		int degree = _degree[layer][slot];
+		if (degree == 0) {
+			return -1;
+		}
+		return _rowStart[layer][slot] + random.nextInt(degree);
+	}
+
+	/** Returns the edge from slot `from` to slot `to` on `layer`, or -1 if they are not linked. */
+	public int findEdge(int layer, int from, int to) {
+		int start = _rowStart[layer][from];
+		for (int edge = start; edge < start + _degree[layer][from]; edge++) {
+			if (_target[layer][edge] == to) {
+				return edge;
+			}
+		}
+		return -1;
+	}
+
+	/* ------ Snapshots ------------------------------------- */
+
+	/** Writes the links, packed, to a rig snapshot; see PHTRigSnapshot. Reverse rows are rebuilt on reading. */
+	protected void write(DataOutput out) throws IOException {
+		int size = _speakers.size();
+
+		out.writeInt(layerCount());
+		for (int l = 0; l < layerCount(); l++) {
+			PHTRigSnapshot.writeString(out, _layerNames.get(l));
+
+			int edges = 0;
+			for (int slot = 0; slot < size; slot++) {
+				edges += _degree[l][slot];
+			}
+			out.writeInt(edges);
+
+			PHTRigSnapshot.writeInts(out, _degree[l], size);
+			for (int slot = 0; slot < size; slot++) {
+				for (int edge = _rowStart[l][slot]; edge < _rowStart[l][slot] + _degree[l][slot]; edge++) {
+					out.writeInt(_target[l][edge]);
+				}
+			}
+			for (int slot = 0; slot < size; slot++) {
+				for (int edge = _rowStart[l][slot]; edge < _rowStart[l][slot] + _degree[l][slot]; edge++) {
+					out.writeDouble(_length[l][edge]);
+				}
+			}
+			for (int slot = 0; slot < size; slot++) {
+				for (int edge = _rowStart[l][slot]; edge < _rowStart[l][slot] + _degree[l][slot]; edge++) {
+					out.writeLong(_travelTime[l][edge]);
+				}
+			}
+		}
+	}
+
+	/** Reads links over `speakers` written by write(). */
+	protected static PHTLinkGraph read(PHTSpeakerStore speakers, ByteBuffer in) throws IOException {
+		int layers = in.getInt();
+		List<String> layerNames = new ArrayList<String>();
+		PHTLinkGraph result = null;
+
+		for (int l = 0; l < layers; l++) {
+			layerNames.add(PHTRigSnapshot.readString(in));
+			if (l == 0) {
+				result = new PHTLinkGraph(speakers, layerNames, new int[0], new int[0], new int[0], 0);
+			} else {
+				result.addLayer(layerNames.get(l));
+			}
+
+			int edges = in.getInt();
+			int[] degree = PHTRigSnapshot.readInts(in, speakers.size());
+
+			int start = 0;
+			for (int slot = 0; slot < speakers.size(); slot++) {
+				result._rowStart[l][slot] = start;
+				result._degree[l][slot] = degree[slot];
+				result._rowCapacity[l][slot] = degree[slot];
+				start += degree[slot];
+			}
+
+			result._target[l] = PHTRigSnapshot.readInts(in, edges);
+			result._length[l] = PHTRigSnapshot.readDoubles(in, edges);
+			result._travelTime[l] = PHTRigSnapshot.readLongs(in, edges);
+			result._edgeEnd[l] = edges;
+
+			result.buildReverseRows(l);
+		}
+
+		return result;
+	}
+
+	/* ------ Editing ------------------------------------- */
+
+	/** Returns the id of the layer named `name`, adding an empty layer if there is none. */
+	protected int addLayer(String name) {
+		Integer id = _layerIds.get(name);
+		if (id != null) {
+			return id;
+		}
+
+		int layer = _layerNames.size();
+		_layerNames.add(name);
+		_layerIds.put(name, layer);
+
+		allocateLayers(layer + 1);
+		_target[layer] = new int[0];
+		_length[layer] = new double[0];
+		_travelTime[layer] = new long[0];
+		_inSource[layer] = new int[0];
+		_inEdge[layer] = new int[0];
+
+		return layer;
+	}
+
+	/** Makes room for the slots of speakers added to the store since the graph was built. */
+	protected void ensureSlots(int size) {
+		if (size <= _slots) {
+			return;
+		}
+
+		int slots = Math.max(size, _slots * 2);
+		for (int l = 0; l < layerCount(); l++) {
+			_rowStart[l] = Arrays.copyOf(_rowStart[l], slots);
+			_degree[l] = Arrays.copyOf(_degree[l], slots);
+			_rowCapacity[l] = Arrays.copyOf(_rowCapacity[l], slots);
+			_inStart[l] = Arrays.copyOf(_inStart[l], slots);
+			_inDegree[l] = Arrays.copyOf(_inDegree[l], slots);
+			_inCapacity[l] = Arrays.copyOf(_inCapacity[l], slots);
+		}
+		_slots = slots;
+	}
+
+	/** Links slot `from` to slot `to` on `layer`.
+	 *	@returns 	false if they were already linked. */
+	protected boolean addLink(int layer, int from, int to) {
+		if (findEdge(layer, from, to) >= 0) {
+			return false;
+		}
+
+		if (_degree[layer][from] == _rowCapacity[layer][from]) {
+			moveRow(layer, from);
+		}
+		int edge = _rowStart[layer][from] + _degree[layer][from]++;
+		_target[layer][edge] = to;
+		measure(layer, edge, from);
+
+		if (_inDegree[layer][to] == _inCapacity[layer][to]) {
+			moveInRow(layer, to);
+		}
+		int i = _inStart[layer][to] + _inDegree[layer][to]++;
+		_inSource[layer][i] = from;
+		_inEdge[layer][i] = edge;
+
+		return true;
+	}
+
+	/** Removes the link from slot `from` to slot `to` on `layer`.
+	 *	@returns 	false if they were not linked. */
+	protected boolean removeLink(int layer, int from, int to) {
+		int edge = findEdge(layer, from, to);
+		if (edge < 0) {
+			return false;
+		}
+
+		removeInEntry(layer, to, from);
+
+		// Fill the hole with the row's last edge.
+		int last = _rowStart[layer][from] + --_degree[layer][from];
+		if (edge != last) {
+			int lastTarget = _target[layer][last];
+			_target[layer][edge] = lastTarget;
+			_length[layer][edge] = _length[layer][last];
+			_travelTime[layer][edge] = _travelTime[layer][last];
+			_inEdge[layer][findInEntry(layer, lastTarget, from)] = edge;
+		}
+
+		return true;
+	}
+
+	/** Removes every link into and out of `slot`, on every layer. */
+	protected void unlink(int slot) {
+		for (int l = 0; l < layerCount(); l++) {
+			while (_degree[l][slot] > 0) {
+				removeLink(l, slot, _target[l][_rowStart[l][slot] + _degree[l][slot] - 1]);
+			}
+			while (_inDegree[l][slot] > 0) {
+				removeLink(l, _inSource[l][_inStart[l][slot] + _inDegree[l][slot] - 1], slot);
+			}
+		}
+	}
+
+	/** Updates the lengths and travel times of the links into and out of `slot` after its speaker moved. */
+	protected void remeasure(int slot) {
+		for (int l = 0; l < layerCount(); l++) {
+			for (int edge = _rowStart[l][slot]; edge < _rowStart[l][slot] + _degree[l][slot]; edge++) {
+				measure(l, edge, slot);
+			}
+			for (int i = _inStart[l][slot]; i < _inStart[l][slot] + _inDegree[l][slot]; i++) {
+				measure(l, _inEdge[l][i], _inSource[l][i]);
+			}
+		}
+	}
+
+	/* ------ Helpers ------------------------------------- */
+
+	// Sets the length and travel time of `edge`, which leaves `from`.
+	private void measure(int layer, int edge, int from) {
+		int to = _target[layer][edge];
+		double dx = _speakers.getX(to) - _speakers.getX(from);
+		double dy = _speakers.getY(to) - _speakers.getY(from);
+		double dz = _speakers.getZ(to) - _speakers.getZ(from);
+
+		_length[layer][edge] = Math.sqrt(dx * dx + dy * dy + dz * dz);
+		_travelTime[layer][edge] = (long)(_length[layer][edge] * PHTToolbox.kDistanceToTimeRatio);
+	}
+
+	// Grows the per-layer arrays to `layers` layers, giving new layers empty per-slot arrays.
+	private void allocateLayers(int layers) {
+		int old = _rowStart == null ? 0 : _rowStart.length;
+		if (layers <= old) {
+			return;
+		}
+
+		if (old == 0) {
+			_rowStart = new int[layers][];
+			_degree = new int[layers][];
+			_rowCapacity = new int[layers][];
+			_target = new int[layers][];
+			_length = new double[layers][];
+			_travelTime = new long[layers][];
+			_edgeEnd = new int[layers];
+			_inStart = new int[layers][];
+			_inDegree = new int[layers][];
+			_inCapacity = new int[layers][];
+			_inSource = new int[layers][];
+			_inEdge = new int[layers][];
+			_inEnd = new int[layers];
+		} else {
+			_rowStart = Arrays.copyOf(_rowStart, layers);
+			_degree = Arrays.copyOf(_degree, layers);
+			_rowCapacity = Arrays.copyOf(_rowCapacity, layers);
+			_target = Arrays.copyOf(_target, layers);
+			_length = Arrays.copyOf(_length, layers);
+			_travelTime = Arrays.copyOf(_travelTime, layers);
+			_edgeEnd = Arrays.copyOf(_edgeEnd, layers);
+			_inStart = Arrays.copyOf(_inStart, layers);
+			_inDegree = Arrays.copyOf(_inDegree, layers);
+			_inCapacity = Arrays.copyOf(_inCapacity, layers);
+			_inSource = Arrays.copyOf(_inSource, layers);
+			_inEdge = Arrays.copyOf(_inEdge, layers);
+			_inEnd = Arrays.copyOf(_inEnd, layers);
+		}
+
+		for (int l = old; l < layers; l++) {
+			_rowStart[l] = new int[_slots];
+			_degree[l] = new int[_slots];
+			_rowCapacity[l] = new int[_slots];
+			_inStart[l] = new int[_slots];
+			_inDegree[l] = new int[_slots];
+			_inCapacity[l] = new int[_slots];
+		}
+	}
+
+	// Lays out the reverse rows of `layer` from scratch, packed, from its forward rows.
+	private void buildReverseRows(int layer) {
+		int[] inStart = _inStart[layer];
+		int[] inDegree = _inDegree[layer];
+		Arrays.fill(inDegree, 0);
+
+		for (int slot = 0; slot < _slots; slot++) {
+			for (int edge = _rowStart[layer][slot]; edge < _rowStart[layer][slot] + _degree[layer][slot]; edge++) {
+				inDegree[_target[layer][edge]]++;
+			}
+		}
+
+		int entries = 0;
+		for (int slot = 0; slot < _slots; slot++) {
+			inStart[slot] = entries;
+			_inCapacity[layer][slot] = inDegree[slot];
+			entries += inDegree[slot];
+			inDegree[slot] = 0;
+		}
+
+		_inSource[layer] = new int[entries];
+		_inEdge[layer] = new int[entries];
+		_inEnd[layer] = entries;
+
+		for (int slot = 0; slot < _slots; slot++) {
+			for (int edge = _rowStart[layer][slot]; edge < _rowStart[layer][slot] + _degree[layer][slot]; edge++) {
+				int to = _target[layer][edge];
+				int i = inStart[to] + inDegree[to]++;
+				_inSource[layer][i] = slot;
+				_inEdge[layer][i] = edge;
+			}
+		}
+	}
+
+	// Moves the row of `slot` to the end of `layer`'s edge arrays, with room for it to double.
+	private void moveRow(int layer, int slot) {
+		int degree = _degree[layer][slot];
+		int capacity = Math.max(kMinimumRowCapacity, degree * 2);
+
+		if (_edgeEnd[layer] + capacity > _target[layer].length) {
+			int live = compactRows(layer);
+			int length = Math.max(live + capacity, _target[layer].length);
+			if (live + capacity > _target[layer].length / 2) {
+				length = Math.max(length, (live + capacity) * 2);
+			}
+			_target[layer] = Arrays.copyOf(_target[layer], length);
+			_length[layer] = Arrays.copyOf(_length[layer], length);
+			_travelTime[layer] = Arrays.copyOf(_travelTime[layer], length);
+		}
+
+		int from = _rowStart[layer][slot];
+		int to = _edgeEnd[layer];
+
+		System.arraycopy(_target[layer], from, _target[layer], to, degree);
+		System.arraycopy(_length[layer], from, _length[layer], to, degree);
+		System.arraycopy(_travelTime[layer], from, _travelTime[layer], to, degree);
+
+		for (int k = 0; k < degree; k++) {
+			_inEdge[layer][findInEntry(layer, _target[layer][to + k], slot)] = to + k;
+		}
+
+		_rowStart[layer][slot] = to;
+		_rowCapacity[layer][slot] = capacity;
+		_edgeEnd[layer] += capacity;
+	}
+
+	// Packs `layer`'s rows to the front of its edge arrays, leaving each row exactly full, and
+	// 	returns the number of edges.
+	private int compactRows(int layer) {
+		int[] target = _target[layer];
+		double[] length = _length[layer];
+		long[] travelTime = _travelTime[layer];
+
+		int[] newTarget = new int[target.length];
+		double[] newLength = new double[target.length];
+		long[] newTravelTime = new long[target.length];
+
+		int edges = 0;
+		for (int slot = 0; slot < _slots; slot++) {
+			int degree = _degree[layer][slot];
+			System.arraycopy(target, _rowStart[layer][slot], newTarget, edges, degree);
+			System.arraycopy(length, _rowStart[layer][slot], newLength, edges, degree);
+			System.arraycopy(travelTime, _rowStart[layer][slot], newTravelTime, edges, degree);
+
+			_rowStart[layer][slot] = edges;
+			_rowCapacity[layer][slot] = degree;
+			edges += degree;
+		}
+
+		_target[layer] = newTarget;
+		_length[layer] = newLength;
+		_travelTime[layer] = newTravelTime;
+		_edgeEnd[layer] = edges;
+
+		// Every edge may have been renumbered.
+		buildReverseRows(layer);
+
+		return edges;
+	}
+
+	// Moves the reverse row of `slot` to the end of `layer`'s reverse arrays, with room for it to double.
+	private void moveInRow(int layer, int slot) {
+		int degree = _inDegree[layer][slot];
+		int capacity = Math.max(kMinimumRowCapacity, degree * 2);
+
+		if (_inEnd[layer] + capacity > _inSource[layer].length) {
+			compactInRows(layer);
+			int live = _inEnd[layer];
+			if (live + capacity > _inSource[layer].length / 2) {
+				int length = Math.max((live + capacity) * 2, _inSource[layer].length);
+				_inSource[layer] = Arrays.copyOf(_inSource[layer], length);
+				_inEdge[layer] = Arrays.copyOf(_inEdge[layer], length);
+			}
+		}
+
+		int from = _inStart[layer][slot];
+		int to = _inEnd[layer];
+
+		System.arraycopy(_inSource[layer], from, _inSource[layer], to, degree);
+		System.arraycopy(_inEdge[layer], from, _inEdge[layer], to, degree);
+
+		_inStart[layer][slot] = to;
+		_inCapacity[layer][slot] = capacity;
+		_inEnd[layer] += capacity;
+	}
+
+	// Packs `layer`'s reverse rows to the front of its reverse arrays.
+	private void compactInRows(int layer) {
+		int[] source = _inSource[layer];
+		int[] edge = _inEdge[layer];
+
+		int[] newSource = new int[source.length];
+		int[] newEdge = new int[source.length];
+
+		int entries = 0;
+		for (int slot = 0; slot < _slots; slot++) {
+			int degree = _inDegree[layer][slot];
+			System.arraycopy(source, _inStart[layer][slot], newSource, entries, degree);
+			System.arraycopy(edge, _inStart[layer][slot], newEdge, entries, degree);
+
+			_inStart[layer][slot] = entries;
+			_inCapacity[layer][slot] = degree;
+			entries += degree;
+		}
+
+		_inSource[layer] = newSource;
+		_inEdge[layer] = newEdge;
+		_inEnd[layer] = entries;
+	}
+
+	// Returns the reverse entry of `slot` on `layer` for the link from `source`.
+	private int findInEntry(int layer, int slot, int source) {
+		int start = _inStart[layer][slot];
+		for (int i = start; i < start + _inDegree[layer][slot]; i++) {
+			if (_inSource[layer][i] == source) {
+				return i;
+			}
+		}
+		throw new IllegalStateException("Link from slot " + source + " to slot " + slot + " has no reverse entry.");
+	}
+
+	// Removes the reverse entry of `slot` on `layer` for the link from `source`, filling the hole with the last entry.
+	private void removeInEntry(int layer, int slot, int source) {
+		int i = findInEntry(layer, slot, source);
+		int last = _inStart[layer][slot] + --_inDegree[layer][slot];
+
+		_inSource[layer][i] = _inSource[layer][last];
+		_inEdge[layer][i] = _inEdge[layer][last];
+	}
+}
@@ -0,0 +1,105 @@
+package PHT;
+
+import java.io.*;
+
+/** Steps a PHTEngine on a fixed-step clock as fast as possible, writing the gain timeline to a text file.
+ *	Each tick writes one line per live sound:
+ *		<time> <sound-id> <speaker1-index> <speaker1-gain> [<speaker2-index> <speaker2-gain> ...]
+ *	and each death writes:
+ *		<time> <sound-id> <message>
+ *	where <time> is in milliseconds since the start of the render. As in status(), a speaker that stops
+ *	receiving a sound is written once with a gain of 0. */
+public class PHTOfflineRenderer implements PHTEngine.Listener {
+	private final PHTEngine _engine;
+	private final PHTStatusEncoder _encoder;
+
+	private Writer _out;
+	private long _startTime;
+	private PHTEngine.Listener _previousListener; // the engine's listener outside the render
+
+	/** Constructs a PHTOfflineRenderer for the scene currently in `engine`. */
+	public PHTOfflineRenderer(PHTEngine engine) {
+		_engine = engine;
+		_encoder = new PHTStatusEncoder();
+	}
+
+	/** Renders `duration` ms of the engine's scene to `file`, ticking every `step` ms. The engine's clock
+	 *	and listener are restored afterwards, and engine time continues from the end of the render.
+	 *
+	 *	@returns 	the number of ticks rendered. */
+	public int render(File file, long duration, long step) throws IOException {
+		if (step <= 0) {
+			throw new IllegalArgumentException("Render step must be positive.");
+		}
+
+		PHTClock previousClock = _engine.getClock();
+		_previousListener = _engine.getListener();
+
+		_out = new BufferedWriter(new FileWriter(file));
+		_startTime = _engine.now();
+		_encoder.clear();
+
+		_engine.setClock(new PHTFixedStepClock(0, step));
+		_engine.setListener(this);
+
+		int ticks = 0;
+		try {
+			for (long t = step; t <= duration; t += step) {
+				_engine.tick();
+				writeStatus();
+				ticks++;
+			}
+		} finally {
+			_engine.setListener(_previousListener);
+			_engine.setClock(previousClock);
+			_out.close();
+			_out = null;
+		}
+
+		return ticks;
+	}
+
+	/* ------ PHTEngine.Listener ------------------------------------- */
+
+	public void soundKilled(PHTSound sound, String message) {
+		_encoder.forget(sound);
+
+		if (message != null) {
+			try {
+				_out.write((_engine.now() - _startTime) + " " + sound.id() + " " + message + "\n");
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+	/** Passes commands that fail during the render on to the engine's own listener. */
+	public void commandFailed(RuntimeException e) {
+		if (_previousListener != null) {
+			_previousListener.commandFailed(e);
+		}
+	}
+
+	/* ------ Helpers ------------------------------------- */
+
+	private void writeStatus() throws IOException {
+		PHTSpeakerStore speakers = _engine.speakers();
+		String time = Long.toString(_engine.now() - _startTime);
+		StringBuilder line = new StringBuilder();
+
+		for (int n = 0; n < _engine.soundCount(); n++) {
+			PHTSound s = _engine.soundAt(n);
+			int pairs = _encoder.encode(s, speakers.size());
+
+			line.setLength(0);
+			line.append(time).append(' ').append(s.id());
+			for (int i = 0; i < pairs; i++) {
+				line.append(' ').append(speakers.getChannel(_encoder.outputSlot(i)))
+					.append(' ').append(_encoder.outputGain(i));
+			}
+			line.append('\n');
+
+			_out.write(line.toString());
+		}
+	}
+}
@@ -0,0 +1,224 @@
+package PHT;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/** PHTOutputSink that sends each tick's output to a renderer as OSC bundles over UDP.
+ *
+ *	A tick is packed into one bundle (more only if it would not fit one datagram), holding messages:
+ *		/pht/killed ,ss <sound-id> <message> 			-- sounds that died since the last tick
+ *		/pht/tick ,h <engine-time-ms>
+ *		/pht/gains ,s[if]* <sound-id> [<speaker-index> <gain> ...]
+ *		/pht/culled ,i <count>
+ *	Bundles are timetagged "immediately". Messages are written straight into one preallocated direct buffer,
+ *	so sending allocates nothing; sound IDs are written as Latin-1, with other characters replaced by '?'.
+ *
+ *	The socket does not block: a bundle the system cannot take at once is dropped, and counted. */
+public class PHTOscSink implements PHTOutputSink {
+	/** Largest payload of a UDP datagram over IPv4. */
+	public static final int kMaxDatagram = 65507;
+
+	private static final byte[] kBundleHeader = ascii("#bundle");
+	private static final byte[] kKilledAddress = ascii("/pht/killed");
+	private static final byte[] kTickAddress = ascii("/pht/tick");
+	private static final byte[] kGainsAddress = ascii("/pht/gains");
+	private static final byte[] kCulledAddress = ascii("/pht/culled");
+
+	private final DatagramChannel _channel;
+	private final InetSocketAddress _target;
+	private final ByteBuffer _buffer; // the bundle being filled
+
+	private int _messageStart; // position of the size field of the message being written, or -1
+	private int _pairsLeft; // pairs still expected for the current /pht/gains message
+	private int _typeTagPosition; // where the next pair's type tags go
+
+	private long _sentCount;
+	private long _droppedCount;
+
+	/** Constructs a PHTOscSink sending to `host`:`port`.
+	 *	@throws 	IOException 	if the socket cannot be opened */
+	public PHTOscSink(String host, int port) throws IOException {
+		this(new InetSocketAddress(host, port));
+	}
+
+	/** Constructs a PHTOscSink sending to `target`.
+	 *	@throws 	IOException 	if the socket cannot be opened */
+	public PHTOscSink(InetSocketAddress target) throws IOException {
+		if (target.isUnresolved()) {
+			throw new IOException("Unknown host " + target.getHostName() + ".");
+		}
+
+		_target = target;
+		_channel = DatagramChannel.open();
+		_channel.configureBlocking(false);
+
+		_buffer = ByteBuffer.allocateDirect(kMaxDatagram); // big-endian, as OSC is
+		_messageStart = -1;
+		_pairsLeft = 0;
+		_sentCount = 0;
+		_droppedCount = 0;
+	}
+
+	public InetSocketAddress getTarget() {
+		return _target;
+	}
+
+	/** Returns the number of bundles sent. */
+	public long sentCount() {
+		return _sentCount;
+	}
+
+	/** Returns the number of bundles dropped because the socket could not take them. */
+	public long droppedCount() {
+		return _droppedCount;
+	}
+
+	/* ------ PHTOutputSink ------------------------------------- */
+
+	public void beginTick(long time) {
+		beginMessage(kTickAddress, 12);
+		_buffer.put((byte)',').put((byte)'h').put((byte)0).put((byte)0);
+		_buffer.putLong(time);
+		endMessage();
+	}
+
+	public void sound(String id, int pairs) {
+		// Address, type tags and the ID, then 8 bytes per pair.
+		int typeTagsLength = padded(2 + 2 * pairs);
+		int length = padded(kGainsAddress.length) + typeTagsLength + padded(id.length()) + 8 * pairs;
+		if (length + 4 > kMaxDatagram - 16) {
+			throw new IllegalArgumentException("Too many pairs for one OSC message: " + pairs + ".");
+		}
+
+		beginMessage(kGainsAddress, length - padded(kGainsAddress.length));
+
+		// Type tags are filled in pair by pair; pad them now.
+		int typeTagStart = _buffer.position();
+		_buffer.put((byte)',').put((byte)'s');
+		for (int i = 2; i < typeTagsLength; i++) {
+			_buffer.put((byte)0);
+		}
+		putString(id);
+
+		_typeTagPosition = typeTagStart + 2;
+		_pairsLeft = pairs;
+		if (pairs == 0) {
+			endMessage();
+		}
+	}
+
+	public void pair(int channel, double gain) {
+		_buffer.put(_typeTagPosition++, (byte)'i');
+		_buffer.put(_typeTagPosition++, (byte)'f');
+		_buffer.putInt(channel);
+		_buffer.putFloat((float)gain);
+
+		if (--_pairsLeft == 0) {
+			endMessage();
+		}
+	}
+
+	public void culled(int count) {
+		beginMessage(kCulledAddress, 8);
+		_buffer.put((byte)',').put((byte)'i').put((byte)0).put((byte)0);
+		_buffer.putInt(count);
+		endMessage();
+	}
+
+	public void killed(String id, String message) {
+		beginMessage(kKilledAddress, 4 + padded(id.length()) + padded(message.length()));
+		_buffer.put((byte)',').put((byte)'s').put((byte)'s').put((byte)0);
+		putString(id);
+		putString(message);
+		endMessage();
+	}
+
+	public void endTick() {
+		flush();
+	}
+
+	public void close() {
+		try {
+			_channel.close();
+		} catch (IOException e) {
+			// Nothing more can be done with it.
+		}
+	}
+
+	/* ------ Helpers ------------------------------------- */
+
+	// Starts a bundle element for a message to `address` with `length` bytes after the address, sending the
+	// 	bundle so far first if the message would not fit.
+	private void beginMessage(byte[] address, int length) {
+		int size = padded(address.length) + length;
+		if (_buffer.position() > 0 && _buffer.position() + 4 + size > kMaxDatagram) {
+			flush();
+		}
+		if (_buffer.position() == 0) {
+			_buffer.put(kBundleHeader).put((byte)0);
+			_buffer.putLong(1L); // "immediately"
+		}
+
+		_messageStart = _buffer.position();
+		_buffer.putInt(0); // size, patched in endMessage()
+		_buffer.put(address);
+		pad(address.length);
+	}
+
+	private void endMessage() {
+		_buffer.putInt(_messageStart, _buffer.position() - _messageStart - 4);
+		_messageStart = -1;
+	}
+
+	// Sends the bundle, if it holds anything, and empties the buffer.
+	private void flush() {
+		if (_buffer.position() == 0) {
+			return;
+		}
+
+		_buffer.flip();
+		try {
+			if (_channel.send(_buffer, _target) > 0) {
+				_sentCount++;
+			} else {
+				_droppedCount++;
+			}
+		} catch (IOException e) {
+			// Such as no one listening yet; the renderer picks up at the next tick.
+			_droppedCount++;
+		}
+		_buffer.clear();
+	}
+
+	// Writes `s` as an OSC string: Latin-1 bytes, a terminating 0, padded to a multiple of 4.
+	private void putString(String s) {
+		int length = s.length();
+		for (int i = 0; i < length; i++) {
+			char c = s.charAt(i);
+			_buffer.put(c < 256 && c != 0 ? (byte)c : (byte)'?');
+		}
+		pad(length);
+	}
+
+	// Writes the 0 bytes that end a string of `length` bytes and pad it to a multiple of 4.
+	private void pad(int length) {
+		for (int i = length; i < padded(length); i++) {
+			_buffer.put((byte)0);
+		}
+	}
+
+	// Size of an OSC string of `length` bytes, with its terminating 0 and padding.
+	private static int padded(int length) {
+		return (length + 4) & ~3;
+	}
+
+	private static byte[] ascii(String s) {
+		byte[] result = new byte[s.length()];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = (byte)s.charAt(i);
+		}
+		return result;
+	}
+}
@@ -0,0 +1,29 @@
+package PHT;
+
+/** Destination for the status output of each tick, as an alternative to Max outlets (see PHTOscSink).
+ *
+ *	A tick's output is one beginTick(), then for each sound to report a sound() followed by its pairs,
+ *	then endTick(). Sounds killed during a tick are reported with killed() before its beginTick().
+ *	Calls come from the ticking thread only. */
+public interface PHTOutputSink {
+	/** Starts the output of the tick at engine time `time`. */
+	public void beginTick(long time);
+
+	/** Starts the gains of the sound `id`, which are followed by exactly `pairs` calls to pair(). */
+	public void sound(String id, int pairs);
+
+	/** Reports that speaker `channel` (its index, as given to the speaker message) has gain `gain`. */
+	public void pair(int channel, double gain);
+
+	/** Reports the number of live sounds that were culled as inaudible (see PHTEngine.setSilenceThreshold()). */
+	public void culled(int count);
+
+	/** Reports that the sound `id` has died or been killed, with the message to go with it, such as "killed". */
+	public void killed(String id, String message);
+
+	/** Ends the output of a tick, sending anything still held. */
+	public void endTick();
+
+	/** Releases the sink's resources. Nothing is output after this. */
+	public void close();
+}
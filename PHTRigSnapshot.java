@@ -0,0 +1,265 @@
+package PHT;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/** A compiled speaker rig, saved to a binary file so that it can be loaded without rebuilding it from text.
+ *
+ *	A snapshot holds the speaker arrays, the link graph with its precomputed lengths, the spatial index,
+ *	and any routing tables built so far. The file starts with a fixed header:
+ *		int 	magic ("PHTR")
+ *		int 	format version (kVersion); other versions are rejected
+ *		long 	checksum of the layout the rig was compiled from, or kNoSource
+ *		long 	payload length in bytes
+ *		long 	CRC32 of the payload
+ *	followed by the payload (big-endian), which is memory-mapped on load and checked against its CRC.
+ *	The source checksum lets a loader reject a snapshot whose layout file has changed since. */
+public class PHTRigSnapshot {
+	public static final int kMagic = 0x50485452; // "PHTR"
+	public static final int kVersion = 1;
+
+	/** Source checksum of a snapshot not compiled from a layout file. */
+	public static final long kNoSource = -1;
+
+	private static final int kHeaderSize = 32;
+	private static final int kChecksumChunk = 1 << 16;
+
+	private final PHTSpeakerStore _speakers;
+	private final PHTSpatialIndex _spatialIndex;
+	private final PHTRoutingTable _routing;
+	private final long _sourceChecksum;
+
+	/** Constructs a snapshot of a rig.
+	 *
+	 *	@param 	speakers 		the speakers, with their links
+	 *	@param 	spatialIndex 	the spatial index over `speakers`
+	 *	@param 	routing 		routing over `speakers`; its built tables are saved
+	 *	@param 	sourceChecksum 	checksum() of the layout file the rig was compiled from, or kNoSource
+	 */
+	public PHTRigSnapshot(PHTSpeakerStore speakers, PHTSpatialIndex spatialIndex, PHTRoutingTable routing, long sourceChecksum) {
+		_speakers = speakers;
+		_spatialIndex = spatialIndex;
+		_routing = routing;
+		_sourceChecksum = sourceChecksum;
+	}
+
+	public PHTSpeakerStore speakers() {
+		return _speakers;
+	}
+
+	public PHTSpatialIndex spatialIndex() {
+		return _spatialIndex;
+	}
+
+	public PHTRoutingTable routing() {
+		return _routing;
+	}
+
+	/** Returns the checksum of the layout this rig was compiled from, or kNoSource. */
+	public long sourceChecksum() {
+		return _sourceChecksum;
+	}
+
+	/** Compiles the rig in a layout file (see PHTLayoutReader), with its spatial index and routing, without
+	 *	an engine, so that it can be done away from the ticking thread and handed over with PHTEngine.setRig().
+	 *
+	 *	@param 	radius 			the query radius to tune the spatial index for (see PHTEngine.getMaximumDistance())
+	 *	@param 	sourceChecksum 	checksum() of `layout`, or kNoSource
+	 *	@throws 	IOException 				if the layout cannot be read
+	 *	@throws 	IndexOutOfBoundsException 	if a speaker is linked to a nonexistent speaker
+	 */
+	public static PHTRigSnapshot compile(File layout, double radius, long sourceChecksum)
+			throws IOException, IndexOutOfBoundsException {
+		PHTSpeakerFactory factory = new PHTSpeakerFactory();
+		PHTLayoutReader.read(layout, factory);
+
+		PHTSpeakerStore speakers = factory.make();
+		return new PHTRigSnapshot(speakers, new PHTSpatialIndex(speakers, radius),
+								  new PHTRoutingTable(speakers, PHTLinkGraph.kDefaultLayerId), sourceChecksum);
+	}
+
+	/** Writes this snapshot to `file`. */
+	public void write(File file) throws IOException {
+		FileOutputStream stream = new FileOutputStream(file);
+		try {
+			CRC32 crc = new CRC32();
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, kChecksumChunk));
+
+			// Header, with the payload length and CRC filled in once the payload is written.
+			out.writeInt(kMagic);
+			out.writeInt(kVersion);
+			out.writeLong(_sourceChecksum);
+			out.writeLong(0);
+			out.writeLong(0);
+
+			DataOutputStream payload = new DataOutputStream(new java.util.zip.CheckedOutputStream(out, crc));
+			writePayload(payload);
+			payload.flush();
+
+			ByteBuffer lengths = ByteBuffer.allocate(16);
+			lengths.putLong(payload.size());
+			lengths.putLong(crc.getValue());
+			lengths.flip();
+			stream.getChannel().write(lengths, kHeaderSize - 16);
+		} finally {
+			stream.close();
+		}
+	}
+
+	/** Reads a snapshot from `file`, mapping it into memory.
+	 *	@throws 	IOException 	if the file cannot be read, is not a snapshot of this version, or is corrupt */
+	public static PHTRigSnapshot read(File file) throws IOException {
+		FileInputStream stream = new FileInputStream(file);
+		try {
+			FileChannel channel = stream.getChannel();
+			if (channel.size() < kHeaderSize) {
+				throw new IOException(file.getPath() + " is not a rig snapshot.");
+			}
+
+			MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+			if (in.getInt() != kMagic) {
+				throw new IOException(file.getPath() + " is not a rig snapshot.");
+			}
+			int version = in.getInt();
+			if (version != kVersion) {
+				throw new IOException(file.getPath() + " is a version " + version + " rig snapshot; expected version " + kVersion + ".");
+			}
+
+			long sourceChecksum = in.getLong();
+			long length = in.getLong();
+			long expectedCrc = in.getLong();
+
+			if (length != channel.size() - kHeaderSize || crc(in, (int)length) != expectedCrc) {
+				throw new IOException(file.getPath() + " is corrupt (checksum mismatch).");
+			}
+
+			return readPayload(in, sourceChecksum);
+		} catch (java.nio.BufferUnderflowException e) {
+			throw new IOException(file.getPath() + " is truncated.");
+		} finally {
+			stream.close();
+		}
+	}
+
+	/** Returns a deep copy of this snapshot, with every speaker in the same slot (and so the same
+	 *	PHTSpeakerStore.slotLayout()), that can be edited without affecting this one (see PHTSharedRig). */
+	public PHTRigSnapshot copy() {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			writePayload(out);
+			out.flush();
+
+			PHTRigSnapshot result = readPayload(ByteBuffer.wrap(bytes.toByteArray()), _sourceChecksum);
+			result._speakers.setSlotLayout(_speakers);
+			return result;
+		} catch (IOException e) {
+			// Memory streams do not fail.
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/** Returns the CRC32 of the contents of `file`, for use as a source checksum. */
+	public static long checksum(File file) throws IOException {
+		CRC32 crc = new CRC32();
+		InputStream in = new FileInputStream(file);
+		try {
+			byte[] chunk = new byte[kChecksumChunk];
+			int read;
+			while ((read = in.read(chunk)) >= 0) {
+				crc.update(chunk, 0, read);
+			}
+		} finally {
+			in.close();
+		}
+		return crc.getValue();
+	}
+
+	/* ------ Payload helpers ------------------------------------- */
+
+	private void writePayload(DataOutput out) throws IOException {
+		_speakers.write(out);
+		_speakers.links().write(out);
+		_spatialIndex.write(out);
+		_routing.write(out);
+	}
+
+	private static PHTRigSnapshot readPayload(ByteBuffer in, long sourceChecksum) throws IOException {
+		PHTSpeakerStore speakers = PHTSpeakerStore.read(in);
+		speakers.setLinks(PHTLinkGraph.read(speakers, in));
+		PHTSpatialIndex spatialIndex = PHTSpatialIndex.read(speakers, in);
+		PHTRoutingTable routing = PHTRoutingTable.read(speakers, in);
+
+		return new PHTRigSnapshot(speakers, spatialIndex, routing, sourceChecksum);
+	}
+
+	protected static void writeInts(DataOutput out, int[] values, int count) throws IOException {
+		for (int i = 0; i < count; i++) {
+			out.writeInt(values[i]);
+		}
+	}
+
+	protected static void writeDoubles(DataOutput out, double[] values, int count) throws IOException {
+		for (int i = 0; i < count; i++) {
+			out.writeDouble(values[i]);
+		}
+	}
+
+	protected static void writeLongs(DataOutput out, long[] values, int count) throws IOException {
+		for (int i = 0; i < count; i++) {
+			out.writeLong(values[i]);
+		}
+	}
+
+	protected static void writeString(DataOutput out, String value) throws IOException {
+		byte[] bytes = value.getBytes("UTF-8");
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	protected static int[] readInts(ByteBuffer in, int count) {
+		int[] result = new int[count];
+		in.asIntBuffer().get(result);
+		in.position(in.position() + count * 4);
+		return result;
+	}
+
+	protected static double[] readDoubles(ByteBuffer in, int count) {
+		double[] result = new double[count];
+		in.asDoubleBuffer().get(result);
+		in.position(in.position() + count * 8);
+		return result;
+	}
+
+	protected static long[] readLongs(ByteBuffer in, int count) {
+		long[] result = new long[count];
+		in.asLongBuffer().get(result);
+		in.position(in.position() + count * 8);
+		return result;
+	}
+
+	protected static String readString(ByteBuffer in) throws IOException {
+		byte[] bytes = new byte[in.getInt()];
+		in.get(bytes);
+		return new String(bytes, "UTF-8");
+	}
+
+	// CRC32 of the next `length` bytes of `in`, leaving its position unchanged.
+	private static long crc(ByteBuffer in, int length) {
+		CRC32 crc = new CRC32();
+		ByteBuffer view = in.duplicate();
+		byte[] chunk = new byte[kChecksumChunk];
+
+		while (length > 0) {
+			int n = Math.min(length, chunk.length);
+			view.get(chunk, 0, n);
+			crc.update(chunk, 0, n);
+			length -= n;
+		}
+		return crc.getValue();
+	}
+}
@@ -0,0 +1,229 @@
+package PHT;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/** Shortest-path next hops over one link layer of a speaker rig, for sounds heading to a goal speaker.
+ *
+ *	For each goal, a table gives the link to take next on a shortest path (by link length) from every
+ *	speaker to the goal. Tables for small rigs are all built up front; on larger rigs a goal's table is
+ *	built the first time a sound heads there (one Dijkstra pass) and kept for the life of the rig.
+ *	Lookups are safe from several threads at once. A table describes the links as they were when it was
+ *	made; after the rig is edited, the engine replaces it with a fresh (lazily built) one. */
+public class PHTRoutingTable {
+	/** Rigs up to this many speakers get every goal's table at construction. */
+	public static final int kEagerRoutingSpeakers = 512;
+
+	private final PHTLinkGraph _links;
+	private final int _layer;
+	private final int _size;
+	private final int _linkCount; // links on _layer, which bounds the Dijkstra heap
+
+	// Next-edge table of each goal slot, or null if not built yet.
+	private final AtomicReferenceArray<int[]> _nextEdges;
+
+	/** Builds routing over the links on `layer` of `speakers`, building every goal's table up front on small rigs. */
+	public PHTRoutingTable(PHTSpeakerStore speakers, int layer) {
+		this(speakers, layer, speakers.size() <= kEagerRoutingSpeakers);
+	}
+
+	/** Builds routing over the links on `layer` of `speakers`.
+	 *
+	 *	@param 	speakers 	the rig to route over; its links must not change while this table is in use
+	 *	@param 	layer 		the id of the link layer to route over
+	 *	@param 	eager 		true to build every goal's table now, false to build each on first use
+	 */
+	public PHTRoutingTable(PHTSpeakerStore speakers, int layer, boolean eager) {
+		_links = speakers.links();
+		_layer = layer;
+		_size = speakers.size();
+
+		int linkCount = 0;
+		for (int slot = 0; slot < _size; slot++) {
+			linkCount += _links.degree(layer, slot);
+		}
+		_linkCount = linkCount;
+
+		_nextEdges = new AtomicReferenceArray<int[]>(_size);
+
+		if (eager) {
+			for (int goal = 0; goal < _size; goal++) {
+				_nextEdges.set(goal, buildNextEdges(goal));
+			}
+		}
+	}
+
+	/** Returns the link layer this table routes over. */
+	public int getLayer() {
+		return _layer;
+	}
+
+	/** Returns the edge to take from slot `from` towards slot `goal`, or -1 if `from` is the goal
+	 *	or the goal cannot be reached from it. */
+	public int nextEdge(int from, int goal) {
+		int[] table = _nextEdges.get(goal);
+		if (table == null) {
+			table = buildNextEdges(goal);
+			// Another thread may have got there first; either table is correct.
+			if (!_nextEdges.compareAndSet(goal, null, table)) {
+				table = _nextEdges.get(goal);
+			}
+		}
+		return table[from];
+	}
+
+	/** Returns the slot of the next speaker on a shortest path from slot `from` to slot `goal`:
+	 *	`goal` itself once there, or -1 if `goal` cannot be reached from `from`. */
+	public int nextHop(int from, int goal) {
+		if (from == goal) {
+			return goal;
+		}
+
+		int edge = nextEdge(from, goal);
+		return edge < 0 ? -1 : _links.target(_layer, edge);
+	}
+
+	/* ------ Snapshots ------------------------------------- */
+
+	/** Writes the tables built so far to a rig snapshot; see PHTRigSnapshot. */
+	protected void write(DataOutput out) throws IOException {
+		out.writeInt(_layer);
+
+		int built = 0;
+		for (int goal = 0; goal < _size; goal++) {
+			if (_nextEdges.get(goal) != null) {
+				built++;
+			}
+		}
+		out.writeInt(built);
+
+		// The graph is written with its rows packed in slot order, so edges are renumbered to match.
+		int[] packedStart = new int[_size];
+		for (int slot = 1; slot < _size; slot++) {
+			packedStart[slot] = packedStart[slot - 1] + _links.degree(_layer, slot - 1);
+		}
+
+		for (int goal = 0; goal < _size; goal++) {
+			int[] table = _nextEdges.get(goal);
+			if (table != null) {
+				out.writeInt(goal);
+				for (int from = 0; from < _size; from++) {
+					int edge = table[from];
+					out.writeInt(edge < 0 ? -1 : packedStart[from] + edge - _links.rowStart(_layer, from));
+				}
+			}
+		}
+	}
+
+	/** Reads routing over `speakers` written by write(); tables that were not built are built on first use. */
+	protected static PHTRoutingTable read(PHTSpeakerStore speakers, ByteBuffer in) {
+		PHTRoutingTable result = new PHTRoutingTable(speakers, in.getInt(), false);
+
+		int built = in.getInt();
+		for (int i = 0; i < built; i++) {
+			int goal = in.getInt();
+			result._nextEdges.set(goal, PHTRigSnapshot.readInts(in, result._size));
+		}
+		return result;
+	}
+
+	/* ------ Helpers ------------------------------------- */
+
+	// Dijkstra outwards from `goal` over reversed links.
+	private int[] buildNextEdges(int goal) {
+		int size = _size;
+		int[] next = new int[size];
+		double[] cost = new double[size];
+		boolean[] done = new boolean[size];
+
+		Arrays.fill(next, -1);
+		Arrays.fill(cost, Double.POSITIVE_INFINITY);
+		cost[goal] = 0.;
+
+		// Binary min-heap of (cost, slot); a slot is pushed again whenever its cost drops, and stale
+		// 	entries are skipped when popped.
+		int capacity = _linkCount + 1;
+		int[] heapSlot = new int[capacity];
+		double[] heapCost = new double[capacity];
+		int heapSize = 0;
+
+		heapSlot[0] = goal;
+		heapCost[0] = 0.;
+		heapSize++;
+
+		while (heapSize > 0) {
+			int current = heapSlot[0];
+			heapSize--;
+			heapSlot[0] = heapSlot[heapSize];
+			heapCost[0] = heapCost[heapSize];
+			siftDown(heapSlot, heapCost, heapSize);
+
+			if (done[current]) {
+				continue;
+			}
+			done[current] = true;
+
+			// Anyone linking to `current` can reach the goal through it.
+			int start = _links.inRowStart(_layer, current);
+			for (int i = start; i < start + _links.inDegree(_layer, current); i++) {
+				int source = _links.inSource(_layer, i);
+				int edge = _links.inEdge(_layer, i);
+				double viaCurrent = cost[current] + _links.length(_layer, edge);
+
+				if (!done[source] && viaCurrent < cost[source]) {
+					cost[source] = viaCurrent;
+					next[source] = edge;
+
+					// Each link relaxes at most once, so the heap never outgrows `capacity`.
+					heapSlot[heapSize] = source;
+					heapCost[heapSize] = viaCurrent;
+					siftUp(heapSlot, heapCost, heapSize++);
+				}
+			}
+		}
+
+		return next;
+	}
+
+	private static void siftUp(int[] slots, double[] costs, int i) {
+		int slot = slots[i];
+		double cost = costs[i];
+		while (i > 0) {
+			int parent = (i - 1) / 2;
+			if (costs[parent] <= cost) {
+				break;
+			}
+			slots[i] = slots[parent];
+			costs[i] = costs[parent];
+			i = parent;
+		}
+		slots[i] = slot;
+		costs[i] = cost;
+	}
+
+	private static void siftDown(int[] slots, double[] costs, int size) {
+		if (size == 0) {
+			return;
+		}
+
+		int slot = slots[0];
+		double cost = costs[0];
+		int i = 0;
+		while (2 * i + 1 < size) {
+			int child = 2 * i + 1;
+			if (child + 1 < size && costs[child + 1] < costs[child]) {
+				child++;
+			}
+			if (cost <= costs[child]) {
+				break;
+			}
+			slots[i] = slots[child];
+			costs[i] = costs[child];
+			i = child;
+		}
+		slots[i] = slot;
+		costs[i] = cost;
+	}
+}
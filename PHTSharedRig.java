@@ -0,0 +1,105 @@
+package PHT;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicReference;
+
+/** A compiled rig shared by name between the engines of one JVM, such as several PHTSpeakerSet objects
+ *	driving the same speakers, so that the speaker arrays, link graph, spatial index and routing tables
+ *	exist once per rig rather than once per engine.
+ *
+ *	The rig is a PHTRigSnapshot, which engines only ever read once it is published. A changed rig is
+ *	published whole, replacing the last one in one atomic swap that also bumps the version, so a reader
+ *	sees either the old rig or the new one, never a mix. If two engines publish at once, the last wins.
+ *
+ *	Shared rigs are counted references: acquire() finds or creates the rig with a name, and each acquire()
+ *	is matched by one release(). The name is forgotten with its last reference. */
+public class PHTSharedRig {
+	private static final Map<String, PHTSharedRig> kRigs = new HashMap<String, PHTSharedRig>(); // guarded by kRigs
+
+	private final String _name;
+	private int _references; // guarded by kRigs
+	private final AtomicReference<Published> _published;
+
+	// A rig and its version, swapped as one.
+	private static class Published {
+		final PHTRigSnapshot _rig;
+		final long _version;
+
+		Published(PHTRigSnapshot rig, long version) {
+			_rig = rig;
+			_version = version;
+		}
+	}
+
+	private PHTSharedRig(String name) {
+		_name = name;
+		_references = 0;
+		_published = new AtomicReference<Published>(new Published(null, 0));
+	}
+
+	/** Returns the shared rig named `name`, creating it (with no rig published yet) if there is none, and
+	 *	counts a reference to it. Release it with release() when done. */
+	public static PHTSharedRig acquire(String name) {
+		synchronized (kRigs) {
+			PHTSharedRig result = kRigs.get(name);
+			if (result == null) {
+				result = new PHTSharedRig(name);
+				kRigs.put(name, result);
+			}
+			result._references++;
+			return result;
+		}
+	}
+
+	/** Drops a reference taken by acquire(). After the last, the name is free to be used for a new rig. */
+	public void release() {
+		synchronized (kRigs) {
+			if (_references <= 0) {
+				throw new IllegalStateException("Shared rig " + _name + " released more often than acquired.");
+			}
+			if (--_references == 0) {
+				kRigs.remove(_name);
+			}
+		}
+	}
+
+	public String getName() {
+		return _name;
+	}
+
+	/** Returns the number of references to this rig. */
+	public int references() {
+		synchronized (kRigs) {
+			return _references;
+		}
+	}
+
+	/** Returns the rig published last, or null if none has been. */
+	public PHTRigSnapshot current() {
+		return _published.get()._rig;
+	}
+
+	/** Returns the version of the rig published last: 0 before the first, and one more with each publish(). */
+	public long version() {
+		return _published.get()._version;
+	}
+
+	/** Publishes `rig` in place of the current one. Its objects must not be changed from now on.
+	 *	@returns 	the new version */
+	public long publish(PHTRigSnapshot rig) {
+		while (true) {
+			Published last = _published.get();
+			Published next = new Published(rig, last._version + 1);
+			if (_published.compareAndSet(last, next)) {
+				return next._version;
+			}
+		}
+	}
+
+	/** Publishes `rig` only if no rig has been published yet, as the first engine to share a name does.
+	 *	@returns 	true if `rig` was published */
+	public boolean publishFirst(PHTRigSnapshot rig) {
+		Published last = _published.get();
+		return last._rig == null && _published.compareAndSet(last, new Published(rig, last._version + 1));
+	}
+}
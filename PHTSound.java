@@ -1,25 +1,40 @@
 package PHT;
 
-import java.util.Map;
-import com.cycling74.max.*;
-
 /** Interface for representing a sound to be placed in a PHTSpeakerSet. */
 public interface PHTSound {
-	/** Updates this sound's speaker map, relying on computer's clock. 
-	 *	@returns 	true if sound is still alive, else false.
+	/** Updates this sound's speaker map for time `now`.
+	 *	@param 	now 	the engine time of this tick, in ms (see PHTEngine.now())
+	 *	@returns 		true if sound is still alive, else false.
 	 */
-	public boolean act();
+	public boolean act(long now);
 
 	/** Returns a map of speakers to gain factor.
-	 *  @returns 	a Map of PHTSpeaker to the corresponding gain factor (between 0. and 1.).
+	 *  @returns 	a PHTGainMap of speaker slot to the corresponding gain factor (between 0. and 1.).
+	 */
+	public PHTGainMap gainMap();
+
+	/** Writes the gains this sound will have at engine time `time`, supposing it carries on along the path it
+	 *	is on at the last act(); does not change the sound. Used to render gains between ticks (see PHTBlockRenderer).
+	 *	@param 	time 	an engine time in ms, usually a little after the last act()
+	 *	@param 	result 	receives speaker slot to gain factor (between 0. and 1.), replacing its contents
 	 */
-	public Map<PHTSpeaker, Double> speakerMap();
+	public void gainMapAt(double time, PHTGainMap result);
 
 	/** Returns this sound's String ID. */
 	public String id();
 
 	/** Called on kill. 
-	 * @returns 	an array of Atoms to output through outlet0, or null if no output
+	 * @returns 	a message to output after this sound's ID (such as "killed"), or null if no output
 	 */
-	public Atom[] kill();
+	public String kill();
+
+	/** Called when the engine's rig is replaced by one that numbers its slots differently (see
+	 *	PHTSpeakerStore.slotLayout()), before the next act(). Moves every speaker slot the sound holds onto the
+	 *	new rig, with PHTEngine.renumberedSlot().
+	 *	@param 	from 	the rig the sound's slots refer to */
+	public void rigRenumbered(PHTSpeakerStore from);
+
+	/** Called once the sound has been removed from the engine, before it is pooled for reuse
+	 *	(see PHTSoundRegistry). Drops anything the sound need not hold on to while pooled. */
+	public void reset();
 }
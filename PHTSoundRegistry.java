@@ -0,0 +1,279 @@
+package PHT;
+
+import java.util.*;
+
+/** The live sounds of a PHTEngine, addressed by int handles.
+ *
+ *	Sounds live in a slot array; a handle packs a slot with the slot's generation, which is bumped when
+ *	its sound is removed, so a stale handle never reaches a newer sound in the same slot. Live sounds
+ *	are also kept densely, in the order they were added, for iteration; removing one leaves a hole that
+ *	is closed up at once, or, between beginRemovals() and endRemovals(), once for the whole batch. String ids are only looked up
+ *	through a side table (open addressing, no allocation per sound) for Max-facing calls such as
+ *	kill_sound.
+ *
+ *	Removed sounds are kept in pools by class, so that spawning in steady state reuses old sounds
+ *	instead of allocating new ones; see recycled(). */
+public class PHTSoundRegistry {
+	/** Handle that names no sound. */
+	public static final int kNoHandle = -1;
+
+	private static final int kSlotBits = 20; // up to a million live sounds
+	private static final int kSlotMask = (1 << kSlotBits) - 1;
+	private static final int kGenerationMask = (1 << (31 - kSlotBits)) - 1; // handles stay positive
+
+	private PHTSound[] _sounds; // by slot, null where free
+	private int[] _generation; // by slot
+	private int[] _free; // stack of free slots
+	private int _freeCount;
+	private int _slotCount; // slots ever used
+
+	private int[] _live; // slots of live sounds, in the order added; -1 for a hole left by remove()
+	private int[] _livePosition; // by slot, index into _live
+	private int _liveEnd; // entries of _live in use, holes included
+	private int _liveCount;
+	private int _firstHole; // lowest hole in _live, or _liveEnd if there are none
+	private boolean _deferCompaction;
+
+	// Id side table: open addressing with linear probing; _idSlot[i] is the sound slot of key _idKey[i].
+	private String[] _idKey;
+	private int[] _idSlot;
+
+	private final Map<Class<?>, List<PHTSound>> _pools;
+
+	/** Constructs an empty PHTSoundRegistry. */
+	public PHTSoundRegistry() {
+		_sounds = new PHTSound[16];
+		_generation = new int[16];
+		_free = new int[16];
+		_live = new int[16];
+		_livePosition = new int[16];
+		_idKey = new String[32];
+		_idSlot = new int[32];
+		_pools = new HashMap<Class<?>, List<PHTSound>>();
+	}
+
+	/** Returns the number of live sounds. */
+	public int size() {
+		return _liveCount;
+	}
+
+	/** Returns the `i`th live sound, in the order added. Not to be called between beginRemovals() and
+	 *	endRemovals(). */
+	public PHTSound at(int i) {
+		return _sounds[_live[i]];
+	}
+
+	/** Returns the handle of the `i`th live sound, in the order added. Not to be called between
+	 *	beginRemovals() and endRemovals(). */
+	public int handleAt(int i) {
+		return handle(_live[i]);
+	}
+
+	/** Returns the live sound with handle `handle`, or null if it has been removed. */
+	public PHTSound get(int handle) {
+		int slot = handle & kSlotMask;
+		if (handle < 0 || slot >= _slotCount || handle(slot) != handle) {
+			return null;
+		}
+		return _sounds[slot];
+	}
+
+	/** Returns the live sound with ID `id`, or null if there is none. */
+	public PHTSound get(String id) {
+		int i = findId(id);
+		return _idKey[i] == null ? null : _sounds[_idSlot[i]];
+	}
+
+	/** Returns the handle of the live sound with ID `id`, or kNoHandle if there is none. */
+	public int handleOf(String id) {
+		int i = findId(id);
+		return _idKey[i] == null ? kNoHandle : handle(_idSlot[i]);
+	}
+
+	/** Adds `sound`, which must not have the ID of a live sound.
+	 *	@returns 	the new sound's handle. */
+	public int add(PHTSound sound) {
+		int slot;
+		if (_freeCount > 0) {
+			slot = _free[--_freeCount];
+		} else {
+			if (_slotCount == _sounds.length) {
+				if (_slotCount > kSlotMask) {
+					throw new IllegalStateException("Too many live sounds.");
+				}
+				_sounds = Arrays.copyOf(_sounds, _slotCount * 2);
+				_generation = Arrays.copyOf(_generation, _slotCount * 2);
+				_free = Arrays.copyOf(_free, _slotCount * 2);
+				_livePosition = Arrays.copyOf(_livePosition, _slotCount * 2);
+			}
+			slot = _slotCount++;
+		}
+		_sounds[slot] = sound;
+
+		if (_liveEnd == _live.length) {
+			_live = Arrays.copyOf(_live, _liveEnd * 2);
+		}
+		if (_firstHole == _liveEnd) {
+			_firstHole++;
+		}
+		_livePosition[slot] = _liveEnd;
+		_live[_liveEnd++] = slot;
+		_liveCount++;
+
+		if ((_liveCount + 1) * 2 > _idKey.length) {
+			rehash(_idKey.length * 2);
+		}
+		int i = findId(sound.id());
+		_idKey[i] = sound.id();
+		_idSlot[i] = slot;
+
+		return handle(slot);
+	}
+
+	/** Removes the live sound with handle `handle`. Pass it to recycle() once nothing refers to it.
+	 *	The live sounds after it are moved up at once, unless between beginRemovals() and endRemovals().
+	 *	@returns 	the removed sound, or null if there was no such sound. */
+	public PHTSound remove(int handle) {
+		PHTSound sound = get(handle);
+		if (sound == null) {
+			return null;
+		}
+		int slot = handle & kSlotMask;
+
+		int position = _livePosition[slot];
+		_live[position] = -1;
+		_liveCount--;
+		if (position < _firstHole) {
+			_firstHole = position;
+		}
+		if (!_deferCompaction) {
+			compact();
+		}
+
+		removeId(sound.id());
+
+		_sounds[slot] = null;
+		_generation[slot] = (_generation[slot] + 1) & kGenerationMask;
+		_free[_freeCount++] = slot;
+
+		return sound;
+	}
+
+	/** Resets a removed sound and puts it in the pool for its class. */
+	public void recycle(PHTSound sound) {
+		List<PHTSound> pool = _pools.get(sound.getClass());
+		if (pool == null) {
+			pool = new ArrayList<PHTSound>();
+			_pools.put(sound.getClass(), pool);
+		}
+		sound.reset();
+		pool.add(sound);
+	}
+
+	/** Removes and recycles every live sound. */
+	public void clear() {
+		while (_liveCount > 0) {
+			recycle(remove(handleAt(_liveCount - 1)));
+		}
+	}
+
+	/** Starts a batch of remove() calls, which leave their holes in the live order until endRemovals()
+	 *	closes them all up in one pass. Adding sounds in between is fine; at() and handleAt() are not. */
+	public void beginRemovals() {
+		_deferCompaction = true;
+	}
+
+	/** Ends a batch started by beginRemovals(), closing up the live order. */
+	public void endRemovals() {
+		_deferCompaction = false;
+		compact();
+	}
+
+	/** Takes a sound of exactly class `type` from the pool of removed sounds, or returns null if the pool
+	 *	is empty. The caller must reinitialize it before adding it. */
+	public <T extends PHTSound> T recycled(Class<T> type) {
+		List<PHTSound> pool = _pools.get(type);
+		if (pool == null || pool.isEmpty()) {
+			return null;
+		}
+		return type.cast(pool.remove(pool.size() - 1));
+	}
+
+	/* ------ Helpers ------------------------------------- */
+
+	private int handle(int slot) {
+		return (_generation[slot] << kSlotBits) | slot;
+	}
+
+	// Closes up the holes in _live, keeping the rest in the order added.
+	private void compact() {
+		int to = _firstHole;
+		for (int from = _firstHole; from < _liveEnd; from++) {
+			int slot = _live[from];
+			if (slot >= 0) {
+				_live[to] = slot;
+				_livePosition[slot] = to;
+				to++;
+			}
+		}
+		_liveEnd = to;
+		_firstHole = to;
+	}
+
+	// Returns the index of `id` in the id table, or of the empty entry where it would go.
+	private int findId(String id) {
+		int mask = _idKey.length - 1;
+		int i = mix(id.hashCode()) & mask;
+		while (_idKey[i] != null && !_idKey[i].equals(id)) {
+			i = (i + 1) & mask;
+		}
+		return i;
+	}
+
+	private void removeId(String id) {
+		int mask = _idKey.length - 1;
+		int i = findId(id);
+		if (_idKey[i] == null) {
+			return;
+		}
+		_idKey[i] = null;
+
+		// Shift later entries of the probe run back into the gap, so lookups still find them.
+		int j = i;
+		while (true) {
+			j = (j + 1) & mask;
+			if (_idKey[j] == null) {
+				return;
+			}
+			int home = mix(_idKey[j].hashCode()) & mask;
+			boolean movable = (i <= j) ? (home <= i || home > j) : (home <= i && home > j);
+			if (movable) {
+				_idKey[i] = _idKey[j];
+				_idSlot[i] = _idSlot[j];
+				_idKey[j] = null;
+				i = j;
+			}
+		}
+	}
+
+	private void rehash(int capacity) {
+		String[] keys = _idKey;
+		int[] slots = _idSlot;
+		_idKey = new String[capacity];
+		_idSlot = new int[capacity];
+
+		for (int i = 0; i < keys.length; i++) {
+			if (keys[i] != null) {
+				int j = findId(keys[i]);
+				_idKey[j] = keys[i];
+				_idSlot[j] = slots[i];
+			}
+		}
+	}
+
+	// Spreads String hash codes, whose low bits are weak for ids like "sound1", "sound2", ...
+	private static int mix(int hash) {
+		hash *= 0x9E3779B9;
+		return hash ^ (hash >>> 16);
+	}
+}
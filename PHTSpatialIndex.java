@@ -0,0 +1,499 @@
+package PHT;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/** Uniform grid over the speakers of a PHTSpeakerStore, used to find the speakers within a radius
+ *	of a point without visiting the whole set.
+ *
+ *	Speakers can be inserted, moved and removed in place. The grid keeps the extent it was built with;
+ *	speakers placed outside it are filed in the nearest border cell, which stays correct (every candidate
+ *	is distance-checked) but slower, so a full rebuild on the next make_speakers is worthwhile after
+ *	large moves. */
+public class PHTSpatialIndex {
+	// Upper bound on grid cells per speaker; sparse rigs get coarser cells instead of a huge grid.
+	private static final int kMaximumCellsPerSpeaker = 8;
+
+	// Room given to a cell the first time it is moved.
+	private static final int kMinimumCellCapacity = 4;
+
+	private final PHTSpeakerStore _store;
+	private final double _cellSize;
+	private final double[] _origin; // minimum corner of the grid
+	private final int _cellsX, _cellsY, _cellsZ;
+
+	// Bounding box of every position ever indexed; queries missing it return at once.
+	private final double[] _boundsMin, _boundsMax;
+
+	// Speakers sorted by cell; cell c holds items _cellStart[c] up to (not including) _cellStart[c] + _cellCount[c],
+	// 	with room for _cellCapacity[c]. Positions are copied in cell order so that queries stream through
+	// 	contiguous memory. A cell that outgrows its room is moved to _itemEnd.
+	private final int[] _cellStart;
+	private final int[] _cellCount;
+	private final int[] _cellCapacity;
+	private int[] _itemSlot;
+	private double[] _itemX, _itemY, _itemZ;
+	private int _itemEnd;
+	private int _size;
+
+	private int[] _itemOfSlot; // item holding each store slot, -1 if not indexed
+
+	/** Builds an index over the speakers in `store`, sized for queries of radius `radius`.
+	 *
+	 *	@param 	store 		the speakers to index
+	 *	@param 	radius 		the query radius the grid is tuned for (usually PHTToolbox.kSpatializationDistanceMaximum)
+	 */
+	public PHTSpatialIndex(PHTSpeakerStore store, double radius) {
+		int slots = store.size();
+		double[] min = new double[] { Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE };
+		double[] max = new double[] { -Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE };
+
+		int size = 0;
+		for (int slot = 0; slot < slots; slot++) {
+			if (!store.isActive(slot)) {
+				continue;
+			}
+			min[0] = Math.min(min[0], store.getX(slot));
+			min[1] = Math.min(min[1], store.getY(slot));
+			min[2] = Math.min(min[2], store.getZ(slot));
+			max[0] = Math.max(max[0], store.getX(slot));
+			max[1] = Math.max(max[1], store.getY(slot));
+			max[2] = Math.max(max[2], store.getZ(slot));
+			size++;
+		}
+
+		if (size == 0) {
+			min = new double[] { 0., 0., 0. };
+			max = new double[] { 0., 0., 0. };
+		}
+
+		// Grow cells until the grid is no bigger than a small multiple of the speaker count.
+		double cellSize = radius > 0. ? radius : 1.;
+		long cellLimit = Math.max(1, (long)size * kMaximumCellsPerSpeaker);
+		while (cellCount(min, max, cellSize) > cellLimit) {
+			cellSize *= 2.;
+		}
+
+		_store = store;
+		_cellSize = cellSize;
+		_origin = min;
+		_cellsX = cellsAlong(min[0], max[0], cellSize);
+		_cellsY = cellsAlong(min[1], max[1], cellSize);
+		_cellsZ = cellsAlong(min[2], max[2], cellSize);
+		_boundsMin = Arrays.copyOf(min, 3);
+		_boundsMax = Arrays.copyOf(max, 3);
+
+		// Counting sort of speakers into cells.
+		int cells = _cellsX * _cellsY * _cellsZ;
+		_cellStart = new int[cells];
+		_cellCount = new int[cells];
+		_cellCapacity = new int[cells];
+		_itemSlot = new int[size];
+		_itemX = new double[size];
+		_itemY = new double[size];
+		_itemZ = new double[size];
+		_itemOfSlot = new int[slots];
+		Arrays.fill(_itemOfSlot, -1);
+
+		for (int slot = 0; slot < slots; slot++) {
+			if (store.isActive(slot)) {
+				_cellCapacity[cellOf(store.getX(slot), store.getY(slot), store.getZ(slot))]++;
+			}
+		}
+		for (int c = 1; c < cells; c++) {
+			_cellStart[c] = _cellStart[c - 1] + _cellCapacity[c - 1];
+		}
+
+		for (int slot = 0; slot < slots; slot++) {
+			if (store.isActive(slot)) {
+				int c = cellOf(store.getX(slot), store.getY(slot), store.getZ(slot));
+				setItem(_cellStart[c] + _cellCount[c]++, slot);
+			}
+		}
+
+		_itemEnd = size;
+		_size = size;
+	}
+
+	// Restores an index written by write(), with its cells packed.
+	private PHTSpatialIndex(PHTSpeakerStore store, double cellSize, double[] origin, int[] cells,
+							double[] boundsMin, double[] boundsMax, int[] cellCount, int[] itemSlot) {
+		_store = store;
+		_cellSize = cellSize;
+		_origin = origin;
+		_cellsX = cells[0];
+		_cellsY = cells[1];
+		_cellsZ = cells[2];
+		_boundsMin = boundsMin;
+		_boundsMax = boundsMax;
+
+		_cellCount = cellCount;
+		_cellCapacity = Arrays.copyOf(cellCount, cellCount.length);
+		_cellStart = new int[cellCount.length];
+		for (int c = 1; c < cellCount.length; c++) {
+			_cellStart[c] = _cellStart[c - 1] + cellCount[c - 1];
+		}
+
+		int size = itemSlot.length;
+		_itemSlot = new int[size];
+		_itemX = new double[size];
+		_itemY = new double[size];
+		_itemZ = new double[size];
+		_itemOfSlot = new int[store.size()];
+		Arrays.fill(_itemOfSlot, -1);
+
+		for (int i = 0; i < size; i++) {
+			setItem(i, itemSlot[i]);
+		}
+
+		_itemEnd = size;
+		_size = size;
+	}
+
+	/** Returns the number of indexed speakers, which bounds the number of results of a query. */
+	public int size() {
+		return _size;
+	}
+
+	/** Finds every indexed speaker within `radius` of the point ( `x`, `y`, `z` ).
+	 *
+	 *	@param 	x, y, z 	the query point
+	 *	@param 	radius 		the query radius
+	 *	@param 	slots 		receives the store slots of matching speakers; must hold at least candidateCount() entries
+	 *						for the same point and radius (size() is always enough)
+	 *	@param 	distances 	receives the distance from the query point to each matching speaker; as large as `slots`
+	 *	@returns 			the number of matching speakers written to `slots` and `distances`.
+	 */
+	public int query(double x, double y, double z, double radius, int[] slots, double[] distances) {
+		if (!reaches(x, y, z, radius)) {
+			return 0;
+		}
+
+		int x0 = cellAlong(x - radius, 0, _cellsX);
+		int x1 = cellAlong(x + radius, 0, _cellsX);
+		int y0 = cellAlong(y - radius, 1, _cellsY);
+		int y1 = cellAlong(y + radius, 1, _cellsY);
+		int z0 = cellAlong(z - radius, 2, _cellsZ);
+		int z1 = cellAlong(z + radius, 2, _cellsZ);
+
+		int count = 0;
+
+		double radiusSquared = radius * radius;
+
+		for (int cz = z0; cz <= z1; cz++) {
+			for (int cy = y0; cy <= y1; cy++) {
+				int row = (cz * _cellsY + cy) * _cellsX;
+
+				for (int c = row + x0; c <= row + x1; c++) {
+					int end = _cellStart[c] + _cellCount[c];
+
+					for (int i = _cellStart[c]; i < end; i++) {
+						double dx = _itemX[i] - x;
+						double dy = _itemY[i] - y;
+						double dz = _itemZ[i] - z;
+						double distanceSquared = dx * dx + dy * dy + dz * dz;
+
+						if (distanceSquared < radiusSquared) {
+							slots[count] = _itemSlot[i];
+							distances[count] = Math.sqrt(distanceSquared);
+							count++;
+						}
+					}
+				}
+			}
+		}
+
+		return count;
+	}
+
+	/** Returns the number of speakers query() would distance-check for the same arguments: an upper bound on
+	 *	its results, found by visiting the cells alone, for sizing its output arrays. */
+	public int candidateCount(double x, double y, double z, double radius) {
+		if (!reaches(x, y, z, radius)) {
+			return 0;
+		}
+
+		int x0 = cellAlong(x - radius, 0, _cellsX);
+		int x1 = cellAlong(x + radius, 0, _cellsX);
+		int y0 = cellAlong(y - radius, 1, _cellsY);
+		int y1 = cellAlong(y + radius, 1, _cellsY);
+		int z0 = cellAlong(z - radius, 2, _cellsZ);
+		int z1 = cellAlong(z + radius, 2, _cellsZ);
+
+		int count = 0;
+		for (int cz = z0; cz <= z1; cz++) {
+			for (int cy = y0; cy <= y1; cy++) {
+				int row = (cz * _cellsY + cy) * _cellsX;
+				for (int c = row + x0; c <= row + x1; c++) {
+					count += _cellCount[c];
+				}
+			}
+		}
+		return count;
+	}
+
+	/** Returns false if no indexed speaker can be within `radius` of the point ( `x`, `y`, `z` ), by a
+	 *	bounding box test alone; true means there may be one. */
+	public boolean reaches(double x, double y, double z, double radius) {
+		return x + radius >= _boundsMin[0] && x - radius <= _boundsMax[0]
+			&& y + radius >= _boundsMin[1] && y - radius <= _boundsMax[1]
+			&& z + radius >= _boundsMin[2] && z - radius <= _boundsMax[2];
+	}
+
+	/** Returns the slot of the indexed speaker closest to the point ( `x`, `y`, `z` ), or -1 if there are
+	 *	none or the point is not finite. Allocates nothing, and is safe to call from parallel ticks. */
+	public int nearest(double x, double y, double z) {
+		if (_size == 0 || Double.isNaN(x + y + z) || Double.isInfinite(x + y + z)) {
+			return -1;
+		}
+
+		int cx = cellAlong(x, 0, _cellsX);
+		int cy = cellAlong(y, 1, _cellsY);
+		int cz = cellAlong(z, 2, _cellsZ);
+		int shells = Math.max(Math.max(Math.max(cx, _cellsX - 1 - cx), Math.max(cy, _cellsY - 1 - cy)),
+								Math.max(cz, _cellsZ - 1 - cz));
+
+		int best = -1; // item
+
+		// Search shells of cells outward from the point's cell, until nothing unsearched can be closer.
+		for (int r = 0; r <= shells; r++) {
+			int z0 = Math.max(0, cz - r), z1 = Math.min(_cellsZ - 1, cz + r);
+			int y0 = Math.max(0, cy - r), y1 = Math.min(_cellsY - 1, cy + r);
+
+			for (int c2 = z0; c2 <= z1; c2++) {
+				for (int c1 = y0; c1 <= y1; c1++) {
+					int row = (c2 * _cellsY + c1) * _cellsX;
+
+					if (c2 == cz - r || c2 == cz + r || c1 == cy - r || c1 == cy + r) {
+						// A face of the shell: the whole row.
+						for (int c0 = Math.max(0, cx - r); c0 <= Math.min(_cellsX - 1, cx + r); c0++) {
+							best = nearestInCell(row + c0, x, y, z, best);
+						}
+					} else {
+						// Inside the shell's extent: only its two ends.
+						if (cx - r >= 0) {
+							best = nearestInCell(row + cx - r, x, y, z, best);
+						}
+						if (r > 0 && cx + r < _cellsX) {
+							best = nearestInCell(row + cx + r, x, y, z, best);
+						}
+					}
+				}
+			}
+
+			if (best >= 0) {
+				// Unsearched cells lie outside the box searched so far; border cells reach to infinity,
+				// 	as they hold any speakers off the grid.
+				double clearance = Math.min(Math.min(
+					clearance(x, 0, cx - r, cx + r, _cellsX),
+					clearance(y, 1, cy - r, cy + r, _cellsY)),
+					clearance(z, 2, cz - r, cz + r, _cellsZ));
+				if (distanceSquared(best, x, y, z) <= clearance * clearance) {
+					break;
+				}
+			}
+		}
+
+		return best < 0 ? -1 : _itemSlot[best];
+	}
+
+	/* ------ Snapshots ------------------------------------- */
+
+	/** Writes the grid, with its cells packed, to a rig snapshot; see PHTRigSnapshot. Positions are
+	 *	not written, as they are copied back from the store on reading. */
+	protected void write(DataOutput out) throws IOException {
+		out.writeDouble(_cellSize);
+		PHTRigSnapshot.writeDoubles(out, _origin, 3);
+		out.writeInt(_cellsX);
+		out.writeInt(_cellsY);
+		out.writeInt(_cellsZ);
+		PHTRigSnapshot.writeDoubles(out, _boundsMin, 3);
+		PHTRigSnapshot.writeDoubles(out, _boundsMax, 3);
+
+		PHTRigSnapshot.writeInts(out, _cellCount, _cellCount.length);
+		out.writeInt(_size);
+		for (int c = 0; c < _cellStart.length; c++) {
+			for (int i = _cellStart[c]; i < _cellStart[c] + _cellCount[c]; i++) {
+				out.writeInt(_itemSlot[i]);
+			}
+		}
+	}
+
+	/** Reads an index over `store` written by write(). */
+	protected static PHTSpatialIndex read(PHTSpeakerStore store, ByteBuffer in) {
+		double cellSize = in.getDouble();
+		double[] origin = PHTRigSnapshot.readDoubles(in, 3);
+		int[] cells = PHTRigSnapshot.readInts(in, 3);
+		double[] boundsMin = PHTRigSnapshot.readDoubles(in, 3);
+		double[] boundsMax = PHTRigSnapshot.readDoubles(in, 3);
+		int[] cellCount = PHTRigSnapshot.readInts(in, cells[0] * cells[1] * cells[2]);
+		int[] itemSlot = PHTRigSnapshot.readInts(in, in.getInt());
+
+		return new PHTSpatialIndex(store, cellSize, origin, cells, boundsMin, boundsMax, cellCount, itemSlot);
+	}
+
+	/* ------ Editing ------------------------------------- */
+
+	/** Indexes the speaker in `slot` at its current position in the store. */
+	protected void insert(int slot) {
+		if (slot >= _itemOfSlot.length) {
+			int oldLength = _itemOfSlot.length;
+			_itemOfSlot = Arrays.copyOf(_itemOfSlot, Math.max(slot + 1, oldLength * 2));
+			Arrays.fill(_itemOfSlot, oldLength, _itemOfSlot.length, -1);
+		}
+
+		double x = _store.getX(slot);
+		double y = _store.getY(slot);
+		double z = _store.getZ(slot);
+		int c = cellOf(x, y, z);
+
+		if (_cellCount[c] == _cellCapacity[c]) {
+			moveCell(c);
+		}
+		setItem(_cellStart[c] + _cellCount[c]++, slot);
+		_size++;
+
+		_boundsMin[0] = Math.min(_boundsMin[0], x);
+		_boundsMin[1] = Math.min(_boundsMin[1], y);
+		_boundsMin[2] = Math.min(_boundsMin[2], z);
+		_boundsMax[0] = Math.max(_boundsMax[0], x);
+		_boundsMax[1] = Math.max(_boundsMax[1], y);
+		_boundsMax[2] = Math.max(_boundsMax[2], z);
+	}
+
+	/** Drops the speaker in `slot` from the index. */
+	protected void remove(int slot) {
+		int i = slot < _itemOfSlot.length ? _itemOfSlot[slot] : -1;
+		if (i < 0) {
+			return;
+		}
+
+		int c = cellOf(_itemX[i], _itemY[i], _itemZ[i]);
+		int last = _cellStart[c] + --_cellCount[c];
+		if (i != last) {
+			setItem(i, _itemSlot[last]);
+		}
+
+		_itemOfSlot[slot] = -1;
+		_size--;
+	}
+
+	/** Re-indexes the speaker in `slot` after it moved in the store. */
+	protected void move(int slot) {
+		int i = _itemOfSlot[slot];
+		if (cellOf(_itemX[i], _itemY[i], _itemZ[i]) == cellOf(_store.getX(slot), _store.getY(slot), _store.getZ(slot))) {
+			// Same cell: just refresh the copied position.
+			setItem(i, slot);
+		} else {
+			remove(slot);
+			insert(slot);
+		}
+	}
+
+	/* ------ Helpers ------------------------------------- */
+
+	// Copies the speaker in `slot` into item `i`.
+	private void setItem(int i, int slot) {
+		_itemSlot[i] = slot;
+		_itemX[i] = _store.getX(slot);
+		_itemY[i] = _store.getY(slot);
+		_itemZ[i] = _store.getZ(slot);
+		_itemOfSlot[slot] = i;
+	}
+
+	// Moves cell `c` to the end of the item arrays, with room for it to double.
+	private void moveCell(int c) {
+		int count = _cellCount[c];
+		int capacity = Math.max(kMinimumCellCapacity, count * 2);
+
+		if (_itemEnd + capacity > _itemSlot.length) {
+			compactCells();
+			if (_itemEnd + capacity > _itemSlot.length / 2) {
+				int length = Math.max((_itemEnd + capacity) * 2, _itemSlot.length);
+				_itemSlot = Arrays.copyOf(_itemSlot, length);
+				_itemX = Arrays.copyOf(_itemX, length);
+				_itemY = Arrays.copyOf(_itemY, length);
+				_itemZ = Arrays.copyOf(_itemZ, length);
+			}
+		}
+
+		int from = _cellStart[c];
+		int to = _itemEnd;
+		for (int k = 0; k < count; k++) {
+			setItem(to + k, _itemSlot[from + k]);
+		}
+
+		_cellStart[c] = to;
+		_cellCapacity[c] = capacity;
+		_itemEnd += capacity;
+	}
+
+	// Packs the cells to the front of the item arrays, in cell order, leaving each cell exactly full.
+	private void compactCells() {
+		int[] itemSlot = _itemSlot;
+		_itemSlot = new int[itemSlot.length];
+
+		int items = 0;
+		for (int c = 0; c < _cellStart.length; c++) {
+			int start = _cellStart[c];
+			_cellStart[c] = items;
+			_cellCapacity[c] = _cellCount[c];
+
+			for (int k = 0; k < _cellCount[c]; k++) {
+				setItem(items++, itemSlot[start + k]);
+			}
+		}
+
+		_itemEnd = items;
+	}
+
+	// Returns whichever is closest to the point: item `best` (or none, if -1), or an item of cell `c`.
+	private int nearestInCell(int c, double x, double y, double z, int best) {
+		double bestSquared = best < 0 ? Double.POSITIVE_INFINITY : distanceSquared(best, x, y, z);
+		int end = _cellStart[c] + _cellCount[c];
+		for (int i = _cellStart[c]; i < end; i++) {
+			double distanceSquared = distanceSquared(i, x, y, z);
+			if (distanceSquared < bestSquared) {
+				best = i;
+				bestSquared = distanceSquared;
+			}
+		}
+		return best;
+	}
+
+	private double distanceSquared(int i, double x, double y, double z) {
+		double dx = _itemX[i] - x;
+		double dy = _itemY[i] - y;
+		double dz = _itemZ[i] - z;
+		return dx * dx + dy * dy + dz * dz;
+	}
+
+	// Distance along dimension `d` from `value` to the nearer side of the cells `from` to `to`, where a side at
+	// 	the edge of the grid is infinitely far.
+	private double clearance(double value, int d, int from, int to, int cells) {
+		double low = from <= 0 ? Double.POSITIVE_INFINITY : value - (_origin[d] + from * _cellSize);
+		double high = to >= cells - 1 ? Double.POSITIVE_INFINITY : _origin[d] + (to + 1) * _cellSize - value;
+		return Math.min(low, high);
+	}
+
+	private int cellOf(double x, double y, double z) {
+		return (cellAlong(z, 2, _cellsZ) * _cellsY + cellAlong(y, 1, _cellsY)) * _cellsX + cellAlong(x, 0, _cellsX);
+	}
+
+	// Cell along dimension `d` holding `value`, clamped to the grid.
+	private int cellAlong(double value, int d, int cells) {
+		double cell = Math.floor((value - _origin[d]) / _cellSize);
+		return cell < 0. ? 0 : (cell >= cells ? cells - 1 : (int)cell);
+	}
+
+	private static int cellsAlong(double min, double max, double cellSize) {
+		return (int)Math.floor((max - min) / cellSize) + 1;
+	}
+
+	private static long cellCount(double[] min, double[] max, double cellSize) {
+		return (long)cellsAlong(min[0], max[0], cellSize)
+				* cellsAlong(min[1], max[1], cellSize)
+				* cellsAlong(min[2], max[2], cellSize);
+	}
+}
@@ -2,82 +2,51 @@ package PHT;
 
 import java.util.*;
 
-/** Represents a speaker (audio channel) in 3D space, with sets of links to other speakers. */
+/** Represents a speaker (audio channel) in 3D space, with sets of links to other speakers.
+ *	Position and index are read from the PHTSpeakerStore that owns this speaker's slot,
+ *	and links from the store's PHTLinkGraph. */
 public class PHTSpeaker {
-	// Integer index of speaker.
-	private final int _index;
-	// Position of speaker in 3D.
-	private final double[] _position;
-	// Can hold multiple "layers" of links, using a string identifier for each group.
-	private Map<String, List<PHTSpeakerLink>> _linksMap;
-	private final java.util.Random _rand;
-
-	/** Constructs a PHTSpeaker at a given position.
+	private final PHTSpeakerStore _store;
+	// Slot of this speaker in _store.
+	private final int _slot;
+
+	/** Constructs a view of the speaker in `slot` of `store`.
 	 *
-	 *	@param 	index 	integer index of this speaker (usually, the output channel)
-	 *	@param 	x 		spatial x coordinate
-	 *	@param 	y 		spatial y coordinate
-	 *	@param 	z 		spatial z coordinate
+	 *	@param 	store 	the store holding this speaker's data
+	 *	@param 	slot 	the slot of this speaker in the store
 	 */
-	public PHTSpeaker(int index, double x, double y, double z) {
-		_index = index;
-		_position = new double[]{ x, y, z };
-		_linksMap = new HashMap<String, List<PHTSpeakerLink>>();
-
-		_rand = new java.util.Random();
+	protected PHTSpeaker(PHTSpeakerStore store, int slot) {
+		_store = store;
+		_slot = slot;
 	}
 
-	/** Returns the spatial position of this speaker, in an array of { x, y, z } coordinates. */
+	/** Returns the spatial position of this speaker, in a new array of { x, y, z } coordinates. */
 	public double[] getPosition() {
-		return _position;
+		return new double[]{ _store.getX(_slot), _store.getY(_slot), _store.getZ(_slot) };
 	}
 
 	/** Returns the integer index of this speaker. */
 	public int getIndex() {
-		return _index;
+		return _store.getChannel(_slot);
 	}
 
-	/** Links this speaker to another speaker on the specified link group.
-	 *
-	 *	@param 	speaker 	the speaker to which this speaker will be linked.
-	 *	@param 	linkGroup	the name of the link group for the new link.
-	 */
-	public void linkTo(PHTSpeaker speaker, String linkGroup) {
-		addLink(new PHTSpeakerLink(this, speaker), linkGroup);
-	}
-
-	/** Links this speaker to another speaker on the default link group (specifically, the "--default" group).
-	 *
-	 *	@param 	speaker 	the speaker to which this speaker will be linked.
-	 */
-	public void linkTo(PHTSpeaker speaker) {
-		addLink(new PHTSpeakerLink(this, speaker), "--default");
+	/** Returns the slot of this speaker in its PHTSpeakerStore. */
+	public int getSlot() {
+		return _slot;
 	}
 
 	/** Returns a random linked speaker from the specified link group.
 	 *
 	 *	@param 	linkGroup 	the name of the link group to pull from
+	 *	@param 	random 		the random number generator to draw with
 	 *	@returns 			the random linked speaker, or null if no linked speakers in that group.
 	 */
-	public PHTSpeaker randomLinked(String linkGroup) {
-		List<PHTSpeakerLink> linked = _linksMap.get(linkGroup);
-		if (linked != null && linked.size() > 0) {
-			return linked.get(_rand.nextInt(linked.size(
-				))).destination;
-		} 
-
-		return null;
-	}
+	public PHTSpeaker randomLinked(String linkGroup, Random random) {
+		PHTLinkGraph links = _store.links();
+		int layer = links.layerId(linkGroup);
+		int edge = layer < 0 ? -1 : links.randomEdge(layer, _slot, random);
 
-	protected Map<String, List<PHTSpeakerLink>> linksMap() {
-		return _linksMap;
-	}
-
-	protected void addLink(PHTSpeakerLink link, String linkGroup) {
-		if (!_linksMap.containsKey(linkGroup)) {
-			_linksMap.put(linkGroup, new ArrayList<PHTSpeakerLink>());
-		}
-		_linksMap.get(linkGroup).add(link);
+		return edge < 0 ? null : _store.speaker(links.target(layer, edge));
 	}
 
 	@Override
@@ -92,26 +61,30 @@ public class PHTSpeaker {
 
 	    PHTSpeaker other = (PHTSpeaker) o;
 
-	    return  (this.getPosition()[0] == other.getPosition()[0]) &&
-	    		(this.getPosition()[1] == other.getPosition()[1]) &&
-	    		(this.getPosition()[2] == other.getPosition()[2]) &&
-	    		(this.getIndex() == other.getIndex());
+	    return  (this._store == other._store) &&
+	    		(this._slot == other._slot);
 	}
 
 	@Override
 	public int hashCode() {
-		return _index; // indices should not overlap
+		return _slot; // slots are dense and unique within a store
 	}
 
 	@Override
 	public String toString() {
-		String result = String.format("%d - position: { %.2f, %.2f, %.2f }; links: { ", _index, _position[0], _position[1], _position[2]);
+		String result = String.format("%d - position: { %.2f, %.2f, %.2f }; links: { ", getIndex(), _store.getX(_slot), _store.getY(_slot), _store.getZ(_slot));
+		PHTLinkGraph links = _store.links();
+
+		for (int layer = 0; layer < links.layerCount(); layer++) {
+			if (links.degree(layer, _slot) == 0) {
+				continue;
+			}
 
-		for (String linkKey : _linksMap.keySet()) {
-			result += linkKey + ":[ ";
+			result += links.layerName(layer) + ":[ ";
 
-			for (PHTSpeakerLink aLink : _linksMap.get(linkKey)) {
-				result += aLink.destination.getIndex() + " ";
+			int start = links.rowStart(layer, _slot);
+			for (int edge = start; edge < start + links.degree(layer, _slot); edge++) {
+				result += _store.getChannel(links.target(layer, edge)) + " ";
 			}
 
 			result += "] ";
@@ -120,4 +93,4 @@ public class PHTSpeaker {
 		result += " }";
 		return result;
 	}
-}	
\ No newline at end of file
+}
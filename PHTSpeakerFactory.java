@@ -2,30 +2,35 @@ package PHT;
 
 import java.util.*;
 
-/** This class is used to create a set of linked PHTSpeakers. */
+/** This class is used to create a set of linked PHTSpeakers.
+ *	Speakers and links are collected in growable primitive arrays and built into a PHTSpeakerStore
+ *	(with its PHTLinkGraph) by make(). */
 public class PHTSpeakerFactory {
-	private class PHTRawSpeaker {
-		public final int index;
-		public final double[] position;
-		// Link set does not hold links, but the indices of connected speakers.
-		public Set<Integer> linkSet;
-
-		public PHTRawSpeaker(int index, double[] position, int[] linkedSpeakerIndices) {
-			this.index = index;
-			this.position = position;
-
-			this.linkSet = new HashSet<Integer>();
-			for (int idx : linkedSpeakerIndices) {
-				this.linkSet.add(idx);
-			}
-		}
-	}
+	// Layer of a link that has since been removed.
+	private static final int kRemovedLink = -1;
+
+	// Raw speakers, in order of addition. A later speaker with the same index replaces an earlier one.
+	private int _speakerCount;
+	private int[] _index;
+	private double[] _x, _y, _z;
+	private int[] _rowOfIndex; // latest row of each speaker index, -1 if none
+
+	// Raw links between speaker indices, in order of addition.
+	private int _linkCount;
+	private int[] _linkLayer;
+	private int[] _linkFrom;
+	private int[] _linkTo;
+	private int[] _linkOwner; // row of the speaker that declared the link, or -1 if added with addLink()
 
-	private Map<Integer, PHTRawSpeaker> _rawSpeakerSet;
+	// Interned link layer names; layer 0 is always the default layer.
+	private final List<String> _layerNames;
+	private final Map<String, Integer> _layerIds;
 
 	/** Main constructor for PHTSpeakerFactory. */
 	public PHTSpeakerFactory() {
-		_rawSpeakerSet = new HashMap<Integer, PHTRawSpeaker>();
+		_layerNames = new ArrayList<String>();
+		_layerIds = new HashMap<String, Integer>();
+		clear();
 	}
 
 	/** Adds speaker to factory, without constructing actual PHTSpeaker representation.
@@ -33,46 +38,241 @@ public class PHTSpeakerFactory {
 	 *	@param 	x						the spatial x coordinate of the speaker being added
 	 *	@param 	y						the spatial y coordinate of the speaker being added
 	 *	@param 	z						the spatial z coordinate of the speaker being added
-	 *	@param 	linkedSpeakerIndices	the indices of the speakers to which this speaker is linked.
+	 *	@param 	linkedSpeakerIndices	the indices of the speakers to which this speaker is linked (on the default layer).
 	 */
-	public PHTSpeakerFactory addSpeaker(int index, double x, double y, double z, int[] linkedSpeakerIndices) {
-		_rawSpeakerSet.put(index, new PHTRawSpeaker(index, new double[]{x, y, z,}, linkedSpeakerIndices));
+	public PHTSpeakerFactory addSpeaker(int index, double x, double y, double z, int[] linkedSpeakerIndices) throws IndexOutOfBoundsException {
+		int row = addSpeaker(index, x, y, z);
+
+		for (int linkIdx : linkedSpeakerIndices) {
+			addLinkRow(PHTLinkGraph.kDefaultLayerId, index, linkIdx, row);
+		}
 		return this;
 	}
 
-	/** Constructs PHTSpeaker representations 
-	 *	@returns 	a mapping of speaker index to PHTSpeaker representation. */ 
-	public Map<Integer, PHTSpeaker> make() throws IndexOutOfBoundsException {
-		Map<Integer, PHTSpeaker> result = new HashMap<Integer, PHTSpeaker>();
+	/** Adds links from one speaker to others on a named link layer. The links are kept even if the
+	 *	speaker is later replaced with addSpeaker().
+	 *	@param 	linkLayer 				the name of the layer for the new links
+	 *	@param 	index 					the index of the speaker the links start from
+	 *	@param 	linkedSpeakerIndices	the indices of the speakers to which it is linked.
+	 */
+	public PHTSpeakerFactory addLink(String linkLayer, int index, int[] linkedSpeakerIndices) {
+		int layer = internLayer(linkLayer);
 
-		Set<Integer> keySet = _rawSpeakerSet.keySet();
+		for (int linkIdx : linkedSpeakerIndices) {
+			addLinkRow(layer, index, linkIdx, -1);
+		}
+		return this;
+	}
 
-		// Construct PHTSpeaker representations.
-		for (Integer i : keySet) {
-			PHTSpeaker cooked = new PHTSpeaker(_rawSpeakerSet.get(i).index, 
-												_rawSpeakerSet.get(i).position[0], 
-												_rawSpeakerSet.get(i).position[1], 
-												_rawSpeakerSet.get(i).position[2]);
-			result.put(i, cooked);
-		}
-
-		// Make links.
-		for (Integer i : keySet) {
-			for (Integer linkIdx : _rawSpeakerSet.get(i).linkSet) {
-				if (result.get(linkIdx) != null) {
-					result.get(i).linkTo(result.get(linkIdx));
-				} else {
-					throw new IndexOutOfBoundsException("Tried to link speaker " + i + " to nonexistant speaker " + linkIdx + ".");
+	/** Moves a speaker already added to the factory, keeping its links.
+	 *	@returns 	false if no speaker with that index has been added. */
+	public boolean moveSpeaker(int index, double x, double y, double z) {
+		int row = index >= 0 && index < _rowOfIndex.length ? _rowOfIndex[index] : -1;
+		if (row < 0) {
+			return false;
+		}
+
+		_x[row] = x;
+		_y[row] = y;
+		_z[row] = z;
+		return true;
+	}
+
+	/** Forgets a speaker, along with every link to or from it.
+	 *	@returns 	false if no speaker with that index has been added. */
+	public boolean removeSpeaker(int index) {
+		if (index < 0 || index >= _rowOfIndex.length || _rowOfIndex[index] < 0) {
+			return false;
+		}
+
+		_rowOfIndex[index] = -1;
+		for (int i = 0; i < _linkCount; i++) {
+			if (_linkFrom[i] == index || _linkTo[i] == index) {
+				_linkLayer[i] = kRemovedLink;
+			}
+		}
+		return true;
+	}
+
+	/** Forgets the links from one speaker to others on a named link layer, however they were added. */
+	public PHTSpeakerFactory removeLink(String linkLayer, int index, int[] linkedSpeakerIndices) {
+		Integer layer = _layerIds.get(linkLayer);
+		if (layer == null) {
+			return this;
+		}
+
+		for (int linkIdx : linkedSpeakerIndices) {
+			for (int i = 0; i < _linkCount; i++) {
+				if (_linkLayer[i] == layer && _linkFrom[i] == index && _linkTo[i] == linkIdx) {
+					_linkLayer[i] = kRemovedLink;
 				}
 			}
 		}
+		return this;
+	}
+
+	/** Adds every speaker and link of `store`, so that make() rebuilds the same rig. */
+	public PHTSpeakerFactory add(PHTSpeakerStore store) {
+		PHTLinkGraph links = store.links();
+
+		int[] rowOfSlot = new int[store.size()];
+		for (int slot = 0; slot < store.size(); slot++) {
+			if (store.isActive(slot)) {
+				rowOfSlot[slot] = addSpeaker(store.getChannel(slot), store.getX(slot), store.getY(slot), store.getZ(slot));
+			}
+		}
+
+		for (int l = 0; l < links.layerCount(); l++) {
+			int layer = internLayer(links.layerName(l));
+
+			for (int slot = 0; slot < store.size(); slot++) {
+				int start = links.rowStart(l, slot);
+				for (int edge = start; edge < start + links.degree(l, slot); edge++) {
+					// Default links belong to their speaker, as if given in its `speaker` message.
+					addLinkRow(layer, store.getChannel(slot), store.getChannel(links.target(l, edge)),
+								layer == PHTLinkGraph.kDefaultLayerId ? rowOfSlot[slot] : -1);
+				}
+			}
+		}
+		return this;
+	}
+
+	/** Constructs PHTSpeaker representations, packed into a PHTSpeakerStore.
+	 *	@returns 	a store holding every speaker added to this factory, in order of speaker index. */
+	public PHTSpeakerStore make() throws IndexOutOfBoundsException {
+		// Slots follow speaker index order.
+		int size = 0;
+		int maximumIndex = -1;
+		for (int index = 0; index < _rowOfIndex.length; index++) {
+			if (_rowOfIndex[index] >= 0) {
+				size++;
+				maximumIndex = index;
+			}
+		}
+
+		PHTSpeakerStore result = new PHTSpeakerStore(size, maximumIndex);
+
+		// Construct PHTSpeaker representations.
+		int slot = 0;
+		for (int index = 0; index <= maximumIndex; index++) {
+			int row = _rowOfIndex[index];
+			if (row >= 0) {
+				result.set(slot++, index, _x[row], _y[row], _z[row]);
+			}
+		}
+
+		// Make links, skipping those declared by speakers that were since replaced.
+		int[] linkFrom = new int[_linkCount];
+		int[] linkTo = new int[_linkCount];
+		int[] linkLayer = new int[_linkCount];
+		int links = 0;
+
+		for (int i = 0; i < _linkCount; i++) {
+			int owner = _linkOwner[i];
+			if (_linkLayer[i] == kRemovedLink || (owner >= 0 && _rowOfIndex[_index[owner]] != owner)) {
+				continue;
+			}
+
+			int from = result.slotOf(_linkFrom[i]);
+			int to = result.slotOf(_linkTo[i]);
+
+			if (from < 0) {
+				throw new IndexOutOfBoundsException("Tried to link nonexistant speaker " + _linkFrom[i] + " to speaker " + _linkTo[i] + ".");
+			}
+			if (to < 0) {
+				throw new IndexOutOfBoundsException("Tried to link speaker " + _linkFrom[i] + " to nonexistant speaker " + _linkTo[i] + ".");
+			}
+
+			linkFrom[links] = from;
+			linkTo[links] = to;
+			linkLayer[links] = _linkLayer[i];
+			links++;
+		}
+
+		result.setLinks(new PHTLinkGraph(result, _layerNames, linkLayer, linkFrom, linkTo, links));
 
 		return result;
 	}
 
 	/** Resets factory. */
 	public PHTSpeakerFactory clear() {
-		_rawSpeakerSet.clear();
+		_speakerCount = 0;
+		_index = new int[16];
+		_x = new double[16];
+		_y = new double[16];
+		_z = new double[16];
+		_rowOfIndex = new int[0];
+
+		_linkCount = 0;
+		_linkLayer = new int[16];
+		_linkFrom = new int[16];
+		_linkTo = new int[16];
+		_linkOwner = new int[16];
+
+		_layerNames.clear();
+		_layerIds.clear();
+		internLayer(PHTLinkGraph.kDefaultLayer);
+
 		return this;
 	}
-}
\ No newline at end of file
+
+	/* ------ Helpers ------------------------------------- */
+
+	// Appends a raw speaker and returns its row.
+	protected int addSpeaker(int index, double x, double y, double z) throws IndexOutOfBoundsException {
+		if (index < 0) {
+			throw new IndexOutOfBoundsException("Speaker index " + index + " is negative.");
+		}
+
+		if (_speakerCount == _index.length) {
+			int capacity = _speakerCount * 2;
+			_index = Arrays.copyOf(_index, capacity);
+			_x = Arrays.copyOf(_x, capacity);
+			_y = Arrays.copyOf(_y, capacity);
+			_z = Arrays.copyOf(_z, capacity);
+		}
+
+		if (index >= _rowOfIndex.length) {
+			int oldLength = _rowOfIndex.length;
+			_rowOfIndex = Arrays.copyOf(_rowOfIndex, Math.max(index + 1, oldLength * 2));
+			Arrays.fill(_rowOfIndex, oldLength, _rowOfIndex.length, -1);
+		}
+
+		int row = _speakerCount++;
+		_index[row] = index;
+		_x[row] = x;
+		_y[row] = y;
+		_z[row] = z;
+		_rowOfIndex[index] = row;
+
+		return row;
+	}
+
+	// Appends a raw link from speaker index `from` to speaker index `to`.
+	protected void addLinkRow(int layer, int from, int to, int owner) {
+		if (_linkCount == _linkLayer.length) {
+			int capacity = _linkCount * 2;
+			_linkLayer = Arrays.copyOf(_linkLayer, capacity);
+			_linkFrom = Arrays.copyOf(_linkFrom, capacity);
+			_linkTo = Arrays.copyOf(_linkTo, capacity);
+			_linkOwner = Arrays.copyOf(_linkOwner, capacity);
+		}
+
+		_linkLayer[_linkCount] = layer;
+		_linkFrom[_linkCount] = from;
+		_linkTo[_linkCount] = to;
+		_linkOwner[_linkCount] = owner;
+		_linkCount++;
+	}
+
+	// Returns the id of layer `name`, assigning the next id if it is new.
+	protected int internLayer(String name) {
+		Integer id = _layerIds.get(name);
+		if (id == null) {
+			id = _layerNames.size();
+			_layerNames.add(name);
+			_layerIds.put(name, id);
+		}
+		return id;
+	}
+}
@@ -1,20 +1,90 @@
 package PHT;
 
+import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 import com.cycling74.max.*;
 
-/** Represents a set of spatialized speakers, allowing for sounds to be distributed through the set. */
-public class PHTSpeakerSet extends MaxObject {
-	private Map<Integer, PHTSpeaker> _speakerSet;
-	private Map<String, PHTSound> _liveSounds; // sounds that are currently living (active)
+/** Represents a set of spatialized speakers, allowing for sounds to be distributed through the set.
+ *	This is the mxj wrapper around a PHTEngine, which does the actual work.
+ *
+ *	Max may send messages from its scheduler and its low priority queue at once, so messages that change
+ *	sounds or the rig are queued on the engine (see PHTEngine.enqueue()) and applied by the next bang,
+ *	on whichever thread sends it. */
+public class PHTSpeakerSet extends MaxObject implements PHTEngine.Listener {
+	private final PHTEngine _engine;
+	private final AtomicBoolean _ticking; // set while a bang or the scheduler runs the engine
 
-	private final PHTSpeakerFactory _speakerFactory;
+	// Status output: which pairs to send, and reusable Atoms / Atom arrays to send them in.
+	private final PHTStatusEncoder _statusEncoder;
+	private final List<Atom[]> _atomBuffers; // pooled Atom arrays, indexed by length
+	private final Map<PHTSound, Atom> _idAtoms;
+	private Atom[] _channelAtoms; // speaker index Atom of each slot
+	private PHTSpeakerStore _statusSpeakers; // the rig _statusEncoder and _channelAtoms are for
+	private PHTOutputSink _sink; // status goes here instead of outlet0 when set (see osc_target)
+
+	// Record / replay (see record and replay): status is also logged to _recorder while it is set, and
+	// 	bangs play _player's next tick instead of ticking the engine while that is set.
+	private PHTTickRecorder _recorder;
+	private PHTTickPlayer _player;
+	private final PHTOutputSink _outletSink; // replays to outlet0
+
+	// Block output (see block_size): null while off.
+	private PHTBlockRenderer _blockRenderer;
+	private long _lastTickTime;
+	private final Atom _blockAtom;
+
+	// Internal scheduler (see scheduler): null until first started. While it runs, ticks happen on its thread
+	// 	and output is queued in _outbox, for _outboxQelem to send from Max's thread.
+	private PHTTickScheduler _scheduler;
+	private volatile boolean _scheduled;
+	private final PHTCommandQueue _outbox;
+	private final MaxQelem _outboxQelem;
+
+	// Diagnostics: posts at levels above _logLevel are skipped, and stats are output every _statsInterval ms
+	// 	of engine time (0 for only on the stats message).
+	private static final int kLogError = 0;
+	private static final int kLogInfo = 1;
+	private static final int kLogDebug = 2;
+	private volatile int _logLevel;
+	private long _statsInterval;
+	private long _lastStatsTime;
+	private final Atom _statsAtom;
 
 	/** Main constructor for PHTSpeakerSet. */
 	public PHTSpeakerSet() {
-		_speakerSet = new HashMap<Integer, PHTSpeaker>();
-		_liveSounds = new HashMap<String, PHTSound>();
-		_speakerFactory = new PHTSpeakerFactory();
+		_engine = new PHTEngine();
+		_engine.setListener(this);
+		_ticking = new AtomicBoolean(false);
+
+		_statusEncoder = new PHTStatusEncoder();
+		_atomBuffers = new ArrayList<Atom[]>();
+		_idAtoms = new IdentityHashMap<PHTSound, Atom>();
+		_channelAtoms = new Atom[0];
+		_statusSpeakers = _engine.speakers();
+		_sink = null;
+		_recorder = null;
+		_player = null;
+		_outletSink = new OutletSink();
+
+		_blockRenderer = null;
+		_lastTickTime = -1;
+		_blockAtom = Atom.newAtom("block");
+
+		_scheduler = null;
+		_scheduled = false;
+		_outbox = new PHTCommandQueue();
+		_outboxQelem = new MaxQelem(new Executable() {
+			public void execute() {
+				_outbox.apply();
+			}
+		});
+
+		_logLevel = kLogInfo;
+		_statsInterval = 0;
+		_lastStatsTime = 0;
+		_statsAtom = Atom.newAtom("stats");
 
 		// MaxObject stuff
 		declareInlets(new int[]{ DataTypes.MESSAGE });
@@ -26,279 +96,1477 @@ public class PHTSpeakerSet extends MaxObject {
 	/** Adds a speaker to the set.
 	 *	args: speaker <index> <x-pos> <y-pos> <z-pos> [<linked-speaker-idx1> <linked-speaker-idx2> ...]
  	 */
-	public void speaker(Atom[] args) {
-		if (args.length >= 4) {
-			int[] linkedIndices = new int[args.length - 4];
-			for (int i = 0; i < linkedIndices.length; i++) {
-				linkedIndices[i] = args[i + 4].getInt();
-			}
+	public void speaker(final Atom[] args) {
+		_engine.enqueue(new Runnable() {
+			public void run() {
+				if (args.length >= 4) {
+					int[] linkedIndices = new int[args.length - 4];
+					for (int i = 0; i < linkedIndices.length; i++) {
+						linkedIndices[i] = args[i + 4].getInt();
+					}
 
-			_speakerFactory.addSpeaker(args[0].getInt(), 
+					_engine.addSpeaker(args[0].getInt(), 
 										args[1].getFloat(),
 										args[2].getFloat(), 
 										args[3].getFloat(), 
 										linkedIndices);
+				}
+			}
+		});
+	}
+
+	/** Links a speaker to others on a named link layer (the `speaker` message links on the default layer).
+	 *	args: link <layer-name> <speaker-index> <linked-speaker-idx1> [<linked-speaker-idx2> ...]
+	 *	Like speakers, links take effect on the next make_speakers. */
+	public void link(final Atom[] args) {
+		_engine.enqueue(new Runnable() {
+			public void run() {
+				if (args.length < 3 || !args[0].isString()) {
+					post("Invalid args for link.");
+					return;
+				}
+
+				int[] linkedIndices = new int[args.length - 2];
+				for (int i = 0; i < linkedIndices.length; i++) {
+					linkedIndices[i] = args[i + 2].getInt();
+				}
+
+				_engine.addLink(args[0].getString(), args[1].getInt(), linkedIndices);
+			}
+		});
+	}
+
+	/** Reads a layout file of speakers in coll format (see PHTLayoutReader) and makes the speakers,
+	 *	as if each line had been sent as a speaker message followed by make_speakers.
+	 *	args: load_layout <path> */
+	public void load_layout(final String path) {
+		_engine.enqueue(new Runnable() {
+			public void run() {
+				try {
+					int count = _engine.loadLayout(new java.io.File(path));
+					if (logs(kLogInfo)) {
+						post("Loaded " + count + " speakers from " + path + ".");
+					}
+				} catch (java.io.IOException e) {
+					post("Could not load layout " + path + ": " + e.getMessage());
+					return;
+				}
+
+				makeSpeakers();
+			}
+		});
+	}
+
+	/** Saves the current rig as a binary snapshot, for load_rig. Giving the layout file the rig was
+	 *	loaded from lets load_rig tell when the snapshot is out of date.
+	 *	args: save_rig <snapshot-path> [<layout-path>] */
+	public void save_rig(final Atom[] args) {
+		_engine.enqueue(new Runnable() {
+			public void run() {
+				if (args.length < 1 || args.length > 2) {
+					post("Invalid number of args for save_rig.");
+					return;
+				}
+
+				try {
+					long sourceChecksum = args.length == 2
+						? PHTRigSnapshot.checksum(new java.io.File(args[1].getString()))
+						: PHTRigSnapshot.kNoSource;
+
+					_engine.saveRig(new java.io.File(args[0].getString()), sourceChecksum);
+				} catch (java.io.IOException e) {
+					post("Could not save rig to " + args[0].getString() + ": " + e.getMessage());
+				}
+			}
+		});
+	}
+
+	/** Loads a rig saved with save_rig, in place of make_speakers. If a layout file is given and the snapshot
+	 *	was not saved from that file as it is now (or cannot be read), the layout is loaded instead and the
+	 *	snapshot rewritten, so the next load is fast again. The rig is read (or rebuilt) at once, on the
+	 *	thread sending the message, and replaces the current one at the next bang.
+	 *	args: load_rig <snapshot-path> [<layout-path>] */
+	public void load_rig(Atom[] args) {
+		if (args.length < 1 || args.length > 2) {
+			post("Invalid number of args for load_rig.");
+			return;
 		}
+
+		java.io.File snapshot = new java.io.File(args[0].getString());
+		java.io.File layout = args.length == 2 ? new java.io.File(args[1].getString()) : null;
+
+		// Read or rebuild the rig here, so that a big one does not hold up ticks; only the swap is queued.
+		PHTRigSnapshot rig = null;
+		try {
+			long sourceChecksum = layout != null ? PHTRigSnapshot.checksum(layout) : PHTRigSnapshot.kNoSource;
+
+			try {
+				rig = PHTRigSnapshot.read(snapshot);
+				if (sourceChecksum != PHTRigSnapshot.kNoSource && rig.sourceChecksum() != sourceChecksum) {
+					post(snapshot.getPath() + " is out of date with " + layout.getPath() + "; rebuilding it.");
+					rig = null;
+				}
+			} catch (java.io.IOException e) {
+				if (layout == null) {
+					throw e;
+				}
+				post("Could not load rig " + snapshot.getPath() + " (" + e.getMessage() + "); rebuilding it.");
+			}
+
+			if (rig == null) {
+				rig = PHTRigSnapshot.compile(layout, _engine.getMaximumDistance(), sourceChecksum);
+				try {
+					rig.write(snapshot);
+				} catch (java.io.IOException e) {
+					post("Could not rewrite " + snapshot.getPath() + ": " + e.getMessage());
+				}
+			}
+		} catch (java.io.IOException e) {
+			post("Could not load rig " + snapshot.getPath() + ": " + e.getMessage());
+			return;
+		} catch (RuntimeException e) {
+			// Such as a layout linking to a nonexistent speaker.
+			post("Could not load rig " + snapshot.getPath() + ": " + e.getMessage());
+			return;
+		}
+
+		final PHTRigSnapshot loaded = rig;
+		_engine.enqueue(new Runnable() {
+			public void run() {
+				_engine.setRig(loaded);
+				rigReplaced();
+			}
+		});
+	}
+
+	/** Adds a speaker to the running rig at the next bang, without make_speakers. Links must be to existing speakers.
+	 *	args: add_speaker <index> <x-pos> <y-pos> <z-pos> [<linked-speaker-idx1> <linked-speaker-idx2> ...] */
+	public void add_speaker(final Atom[] args) {
+		_engine.enqueue(new Runnable() {
+			public void run() {
+				if (args.length < 4) {
+					post("Invalid number of args for add_speaker.");
+					return;
+				}
+
+				int[] linkedIndices = new int[args.length - 4];
+				for (int i = 0; i < linkedIndices.length; i++) {
+					linkedIndices[i] = args[i + 4].getInt();
+				}
+
+				try {
+					_engine.insertSpeaker(args[0].getInt(), args[1].getFloat(), args[2].getFloat(), args[3].getFloat(), linkedIndices);
+				} catch (IndexOutOfBoundsException e) {
+					post(e.getMessage());
+				} catch (IllegalArgumentException e) {
+					post(e.getMessage() + " Use move_speaker to move it.");
+				}
+
+				updateChannelAtoms();
+			}
+		});
+	}
+
+	/** Moves a speaker of the running rig at the next bang. Its links are kept.
+	 *	args: move_speaker <index> <x-pos> <y-pos> <z-pos> */
+	public void move_speaker(final Atom[] args) {
+		_engine.enqueue(new Runnable() {
+			public void run() {
+				if (args.length != 4) {
+					post("Invalid number of args for move_speaker.");
+					return;
+				}
+
+				try {
+					_engine.moveSpeaker(args[0].getInt(), args[1].getFloat(), args[2].getFloat(), args[3].getFloat());
+				} catch (IndexOutOfBoundsException e) {
+					post(e.getMessage());
+				}
+			}
+		});
+	}
+
+	/** Removes a speaker, and its links, from the running rig at the next bang. Sounds on it move elsewhere. */
+	public void remove_speaker(final int index) {
+		_engine.enqueue(new Runnable() {
+			public void run() {
+				try {
+					_engine.removeSpeaker(index);
+				} catch (IndexOutOfBoundsException e) {
+					post(e.getMessage());
+				}
+			}
+		});
+	}
+
+	/** Links speakers of the running rig at the next bang.
+	 *	args: add_link <layer-name> <speaker-index> <linked-speaker-idx1> [<linked-speaker-idx2> ...] */
+	public void add_link(final Atom[] args) {
+		_engine.enqueue(new Runnable() {
+			public void run() {
+				if (args.length < 3 || !args[0].isString()) {
+					post("Invalid args for add_link.");
+					return;
+				}
+
+				int[] linkedIndices = new int[args.length - 2];
+				for (int i = 0; i < linkedIndices.length; i++) {
+					linkedIndices[i] = args[i + 2].getInt();
+				}
+
+				try {
+					_engine.insertLink(args[0].getString(), args[1].getInt(), linkedIndices);
+				} catch (IndexOutOfBoundsException e) {
+					post(e.getMessage());
+				}
+			}
+		});
+	}
+
+	/** Unlinks speakers of the running rig at the next bang.
+	 *	args: remove_link <layer-name> <speaker-index> <linked-speaker-idx1> [<linked-speaker-idx2> ...] */
+	public void remove_link(final Atom[] args) {
+		_engine.enqueue(new Runnable() {
+			public void run() {
+				if (args.length < 3 || !args[0].isString()) {
+					post("Invalid args for remove_link.");
+					return;
+				}
+
+				int[] linkedIndices = new int[args.length - 2];
+				for (int i = 0; i < linkedIndices.length; i++) {
+					linkedIndices[i] = args[i + 2].getInt();
+				}
+
+				_engine.removeLink(args[0].getString(), args[1].getInt(), linkedIndices);
+			}
+		});
 	}
 
 	/** Called after all speakers have been input to construct internal representations. */
 	public void make_speakers() {
-		_speakerSet = _speakerFactory.make();
+		_engine.enqueue(new Runnable() {
+			public void run() {
+				makeSpeakers();
+			}
+		});
+	}
 
-		// DEBUG: Print speaker set.
-		for (Integer i : _speakerSet.keySet()) {
-			post(i + ": " + _speakerSet.get(i));
-		}
+	/** Shares the rig between every PHTSpeakerSet in Max using the same name, from the next bang, so that it is
+	 *	built and held once rather than once per object (see PHTSharedRig). The first object to share a name
+	 *	shares its rig; the others take that one up in place of theirs. After that, make_speakers, load_layout,
+	 *	load_rig and live edits in any of them change the rig for all, from each one's next bang.
+	 *	args: share_rig <name>
+	 *		  share_rig off 	-- keep the rig as it is, but stop sharing changes (default) */
+	public void share_rig(final String name) {
+		_engine.enqueue(new Runnable() {
+			public void run() {
+				if (name.equals("off")) {
+					_engine.unshareRig();
+					return;
+				}
+
+				boolean joined = _engine.shareRig(name);
+				if (logs(kLogInfo)) {
+					post((joined ? "Using shared rig " : "Sharing rig as ") + name + " ("
+						+ _engine.sharedRig().references() + " sharing).");
+				}
+			}
+		});
 	}
 
 	/** Starts a new transect sound.
-	 * args: transect_sound <id> <initial-speaker-index> [<lifespan>] */
-	public void transect_sound(Atom[] args) {
-		if (args.length == 3) {
-			if (args[0].isString() && args[1].isInt() && args[2].isInt()) {
-				PHTSpeaker initialSpeaker = get(args[1].getInt());
+	 * args: transect_sound <id> <initial-speaker-index> [<lifespan> [<link-layer>]] */
+	public void transect_sound(final Atom[] args) {
+		_engine.enqueue(new Runnable() {
+			public void run() {
+				if (args.length == 4) {
+					if (args[0].isString() && args[1].isInt() && args[2].isInt() && args[3].isString()) {
+						PHTSpeaker initialSpeaker = get(args[1].getInt());
+						int linkLayer = _engine.speakers().links().layerId(args[3].getString());
+
+						if (initialSpeaker != null && linkLayer >= 0) {
+							PHTSound newSound = PHTTransectSound.obtain(args[0].getString(), initialSpeaker, args[2].getInt(), linkLayer, _engine);
+							_engine.addSound(newSound);
+						} else if (initialSpeaker == null) {
+							post("Invalid initial speaker index " + args[1].getInt() + " for transect sound " + args[0].getString() + ".");
+						} else {
+							post("Invalid link layer " + args[3].getString() + " for transect sound " + args[0].getString() + ".");
+						}
+					}
+				} else if (args.length == 3) {
+					if (args[0].isString() && args[1].isInt() && args[2].isInt()) {
+						PHTSpeaker initialSpeaker = get(args[1].getInt());
 
-				if (initialSpeaker != null) {
-					PHTSound newSound = new PHTTransectSound(args[0].getString(), initialSpeaker, args[2].getInt());
-					_liveSounds.put(newSound.id(), newSound);
+						if (initialSpeaker != null) {
+							PHTSound newSound = PHTTransectSound.obtain(args[0].getString(), initialSpeaker, args[2].getInt(),
+								PHTLinkGraph.kDefaultLayerId, _engine);
+							_engine.addSound(newSound);
+						} else {
+							post("Invalid initial speaker index " + args[1].getInt() + " for transect sound " + args[0].getString() + ".");
+						}
+					}
+				} else if (args.length == 2) {
+					if (args[0].isString() && args[1].isInt()) {
+						PHTSpeaker initialSpeaker = get(args[1].getInt());
+
+						if (initialSpeaker != null) {
+							PHTSound newSound = PHTTransectSound.obtain(args[0].getString(), initialSpeaker, Long.MAX_VALUE,
+								PHTLinkGraph.kDefaultLayerId, _engine);
+							_engine.addSound(newSound);
+						} else {
+							post("Invalid initial speaker index " + args[1].getInt() + " for transect sound " + args[0].getString() + ".");
+						}
+					}
+				}
+
+				if (logs(kLogDebug)) {
+					postSounds();
+				}
+			}
+		});
+	}
+
+	/** Starts a new directed transect sound.
+	 *  args: directed_transect_sound <id> <goal-x> <goal-y> <goal-z> <initial-speaker-index> <lifespan>
+	 *  alternative: directed_transect_sound <id> <goal-speaker-index> <initial-speaker-index> <lifespan>
+	 *  The sound follows the shortest path of links to the goal speaker, or to the speaker nearest the goal point. */
+	public void directed_transect_sound(final Atom[] args) {
+		_engine.enqueue(new Runnable() {
+			public void run() {
+				if (args.length == 6) {
+					if (args[0].isString()
+						&& args[1].isFloat() && args[2].isFloat() && args[3].isFloat()
+						&& args[4].isInt() && args[5].isInt()) {
+						PHTSpeaker initialSpeaker = get(args[4].getInt());
+
+						if (initialSpeaker != null) {
+							PHTSpeaker goalSpeaker = _engine.nearest(args[1].getFloat(), args[2].getFloat(), args[3].getFloat());
+							PHTSound newSound = PHTDirectedTransectSound.obtain(args[0].getString(), initialSpeaker, args[5].getInt(),
+								goalSpeaker, _engine);
+							_engine.addSound(newSound);
+						} else {
+							post("Invalid initial speaker index " + args[4].getInt() + " for directed transect sound " + args[0].getString() + ".");
+						}
+					}
+				} else if (args.length == 4) {
+					if (args[0].isString()
+						&& args[1].isInt()
+						&& args[2].isInt() && args[3].isInt()) {
+						PHTSpeaker initialSpeaker = get(args[2].getInt());
+						PHTSpeaker goalSpeaker = get(args[1].getInt());
+
+						if (initialSpeaker != null && goalSpeaker != null) {
+							PHTSound newSound = PHTDirectedTransectSound.obtain(args[0].getString(), initialSpeaker, args[3].getInt(), goalSpeaker, _engine);
+							_engine.addSound(newSound);
+						} else {
+							if (initialSpeaker == null) {
+								post("Invalid initial speaker index " + args[2].getInt() + " for directed transect sound " + args[0].getString() + ".");
+							}
+							if (goalSpeaker == null) {
+								post("Invalid goal speaker index " + args[1].getInt() + " for directed transect sound " + args[0].getString() + ".");
+							}
+						}
+					}
 				} else {
-					post("Invalid initial speaker index " + args[1].getInt() + " for transect sound " + args[0].getString() + ".");
+					post("Invalid number of args for directed_transect_sound.");
+					return;
+				}
+
+				if (logs(kLogDebug)) {
+					postSounds();
+				}
+			}
+		});
+	}
+
+	/** Starts a new sweeping sound.
+	 * args: sweep_sound <id> <start-x> <start-y> <start-z> <end-x> <end-y> <end-z> <travel-time> */
+	public void sweep_sound(final Atom[] args) {
+		_engine.enqueue(new Runnable() {
+			public void run() {
+				if (args.length != 8) {
+					post("Invalid number of args for sweep_sound.");
+					return;
+				}
+
+				PHTSweepSound newSound = PHTSweepSound.obtain(args[0].getString(),
+															new double[] {args[1].getFloat(), args[2].getFloat(), args[3].getFloat()},
+															new double[] {args[4].getFloat(), args[5].getFloat(), args[6].getFloat()},
+															args[7].getInt(),
+															_engine);
+
+				_engine.addSound(newSound);
+
+				if (logs(kLogDebug)) {
+					postSounds();
 				}
 			}
-		} else if (args.length == 2) {
-			if (args[0].isString() && args[1].isInt()) {
+		});
+	}
+
+	/** Starts a new swarm of particles, each hopping between linked speakers like a transect sound. Status
+	 *	reports the share of the swarm at each speaker; see swarm_particles for each particle's gains.
+	 * args: swarm_sound <id> <initial-speaker-index> <particle-count> [<lifespan> [<link-layer>]] */
+	public void swarm_sound(final Atom[] args) {
+		_engine.enqueue(new Runnable() {
+			public void run() {
+				if (args.length < 3 || args.length > 5 || !args[0].isString()) {
+					post("Invalid args for swarm_sound.");
+					return;
+				}
+
 				PHTSpeaker initialSpeaker = get(args[1].getInt());
+				int count = args[2].getInt();
+				long lifespan = args.length > 3 ? args[3].getInt() : Long.MAX_VALUE;
+				int linkLayer = args.length > 4
+					? _engine.speakers().links().layerId(args[4].getString())
+					: PHTLinkGraph.kDefaultLayerId;
 
-				if (initialSpeaker != null) {
-					PHTSound newSound = new PHTTransectSound(args[0].getString(), initialSpeaker);
-					_liveSounds.put(newSound.id(), newSound);
+				if (initialSpeaker == null) {
+					post("Invalid initial speaker index " + args[1].getInt() + " for swarm sound " + args[0].getString() + ".");
+				} else if (count <= 0) {
+					post("Invalid particle count " + count + " for swarm sound " + args[0].getString() + ".");
+				} else if (linkLayer < 0) {
+					post("Invalid link layer " + args[4].getString() + " for swarm sound " + args[0].getString() + ".");
 				} else {
-					post("Invalid initial speaker index " + args[1].getInt() + " for transect sound " + args[0].getString() + ".");
+					_engine.addSound(PHTSwarmSound.obtain(args[0].getString(), initialSpeaker, count, lifespan, linkLayer, _engine));
+				}
+
+				if (logs(kLogDebug)) {
+					postSounds();
 				}
 			}
+		});
+	}
+
+	/** Outputs the gains of every particle of the swarm sound `id`, as of the last bang:
+	 * outlet0: particle <sound-id> <particle-index> <speaker1-index> <speaker1-gain> [<speaker2-index> <speaker2-gain>] */
+	public void swarm_particles(final String id) {
+		_engine.enqueue(new Runnable() {
+			public void run() {
+				PHTSound s = _engine.sound(id);
+				if (!(s instanceof PHTSwarmSound)) {
+					post("No swarm sound " + id + ".");
+					return;
+				}
+
+				PHTSwarmSound swarm = (PHTSwarmSound)s;
+				PHTGainMap gains = new PHTGainMap(2);
+				Atom particleAtom = Atom.newAtom("particle");
+
+				for (int p = 0; p < swarm.particleCount(); p++) {
+					swarm.particleGainMap(p, gains);
+
+					Atom[] result = atomBuffer(gains.size() * 2 + 3);
+					int counter = 0;
+
+					result[counter++] = particleAtom;
+					result[counter++] = idAtom(s);
+					result[counter++] = Atom.newAtom(p);
+					for (int i = 0; i < gains.size(); i++) {
+						result[counter++] = _channelAtoms[gains.slot(i)];
+						result[counter++] = Atom.newAtom(gains.gain(i));
+					}
+
+					send(result);
+				}
+			}
+		});
+	}
+
+	/** Kills the sound specified by `id` at the next bang, if it is live then.
+	 *	@param 	id  	the String ID of the sound to kill */
+	public void kill_sound(final String id) {
+		_engine.enqueue(new Runnable() {
+			public void run() {
+				PHTSound s = _engine.sound(id);
+
+				if (s != null) {
+					_engine.killSound(s);
+				}
+			}
+		});
+	}
+
+	/** Bang to update sound positions / age and output status, followed by gain blocks if block_size is set.
+	 *	Messages that change sounds or the rig take effect at the start of the next bang. A bang that arrives
+	 *	while another is still ticking, from another thread, is dropped, as are bangs while the internal
+	 *	scheduler runs. */
+	public void bang() {
+		if (_scheduled && !_scheduler.isRunning()) {
+			post("The scheduler has stopped; ticking on bangs again.");
+			unschedule();
 		}
+		if (!_scheduled) {
+			tryTick();
+		}
+	}
 
-		// DEBUG: Print sound set.
-		post("--- SOUNDS ---");
-		for (String s : _liveSounds.keySet()) {
-			post(_liveSounds.get(s).id());
+	/** Ticks on an internal thread at a steady rate instead of on bangs, timed by the system's high
+	 *	resolution timer. Ticks that fall behind are caught up, up to PHTTickScheduler.kMaxCatchUpTicks at
+	 *	a time, and every tick is timed as if it ran on schedule. Output is handed to Max's main thread.
+	 *	A tick that fails is posted and the next goes ahead; should the thread itself die, the next bang
+	 *	goes back to ticking on bangs.
+	 *	args: scheduler <ticks-per-second>	-- start (or change the rate of) the scheduler
+	 *		  scheduler off					-- stop it, and go back to ticking on bangs and the system clock */
+	public void scheduler(Atom[] args) {
+		if (args.length == 1 && args[0].isString() && args[0].getString().equals("off")) {
+			if (_scheduler != null && _scheduled) {
+				_scheduler.stop();
+				unschedule();
+			}
+			return;
+		}
+
+		if (args.length != 1 || args[0].isString() || !(args[0].getFloat() > 0.)) {
+			post("Invalid args for scheduler; expected a tick rate or off.");
+			return;
+		}
+
+		if (_scheduler == null) {
+			_scheduler = new PHTTickScheduler(new Runnable() {
+				public void run() {
+					if (tryTick()) {
+						_outboxQelem.set();
+					}
+				}
+			}, new PHTTickScheduler.FailureHandler() {
+				public void tickFailed(RuntimeException e) {
+					post("A scheduled tick failed: " + e);
+					// Send whatever the tick output before it failed.
+					_outboxQelem.set();
+				}
+			});
+		}
+
+		_scheduler.setRate(args[0].getFloat());
+		if (!_scheduler.isRunning()) {
+			final PHTTickScheduler scheduler = _scheduler;
+			_engine.enqueue(new Runnable() {
+				public void run() {
+					_engine.setClock(scheduler);
+				}
+			});
+
+			_scheduled = true;
+			_scheduler.start();
 		}
 	}
 
-	/** Starts a new directed transect sound.
-	 *  args: directed_transect_sound <id> <goal-x> <goal-y> <goal-z> <initial-speaker-index> <lifespan>
-	 *  alternative: directed_transect_sound <id> <goal-speaker-index> <initial-speaker-index> <lifespan> */
-	public void directed_transect_sound(Atom[] args) {
-		if (args.length == 6) {
-			if (args[0].isString()
-				&& args[1].isFloat() && args[2].isFloat() && args[3].isFloat()
-				&& args[4].isInt() && args[5].isInt()) {
-				PHTSpeaker initialSpeaker = get(args[4].getInt());
-
-				if (initialSpeaker != null) {
-					PHTSound newSound = new PHTDirectedTransectSound(args[0].getString(), initialSpeaker, args[5].getInt(),
-						new double[] {args[1].getFloat(), args[2].getFloat(), args[3].getFloat()});
-					_liveSounds.put(newSound.id(), newSound);
+	/** Outputs how closely the internal scheduler has kept time since this was last sent, then starts
+	 *	measuring afresh:
+	 * outlet0: jitter <ticks> <mean-late-ms> <max-late-ms> <overruns> <skipped> */
+	public void jitter() {
+		if (_scheduler == null) {
+			post("The scheduler has not been started.");
+			return;
+		}
+
+		outlet(0, "jitter", new Atom[] {
+			Atom.newAtom((int)_scheduler.tickCount()),
+			Atom.newAtom(_scheduler.meanJitter()),
+			Atom.newAtom(_scheduler.maxJitter()),
+			Atom.newAtom((int)_scheduler.overrunCount()),
+			Atom.newAtom((int)_scheduler.skippedCount())
+		});
+		_scheduler.resetStats();
+	}
+
+	/** Collects timings and counts of the engine's work, and outputs them at the next bang:
+	 * outlet0: stats ticks <count> <mean-ms> <max-ms>
+	 *			stats histogram <count> ...	-- ticks by duration: under 0.008 ms, under 0.016 ms, and so on doubling
+	 *			stats act <sound-class> <count> <mean-us>	-- for each class of sound that acted
+	 *			stats spatialize <count>
+	 *			stats sounds <live> <spawned> <killed>
+	 *			stats alloc <bytes-per-second>	-- allocated by the ticking thread; -1 if the JVM does not say
+	 * Counts start afresh after each output.
+	 *	args: stats 				-- output what has been collected, or start collecting if off
+	 *		  stats <interval-ms> 	-- also output every <interval-ms> of engine time
+	 *		  stats off 			-- stop collecting */
+	public void stats(final Atom[] args) {
+		if (args.length == 1 && args[0].isString() && args[0].getString().equals("off")) {
+			_engine.enqueue(new Runnable() {
+				public void run() {
+					_statsInterval = 0;
+					_engine.setStatsEnabled(false);
+				}
+			});
+			return;
+		}
+
+		if (args.length > 1 || (args.length == 1 && (args[0].isString() || args[0].getInt() < 0))) {
+			post("Invalid args for stats.");
+			return;
+		}
+
+		_engine.enqueue(new Runnable() {
+			public void run() {
+				if (_engine.stats() == null) {
+					_engine.setStatsEnabled(true);
+					_lastStatsTime = _engine.now();
 				} else {
-					post("Invalid initial speaker index " + args[4].getInt() + " for directed transect sound " + args[0].getString() + ".");
+					outputStats();
+				}
+				if (args.length == 1) {
+					_statsInterval = args[0].getInt();
 				}
 			}
-		} else if (args.length == 4) {
-			if (args[0].isString()
-				&& args[1].isInt()
-				&& args[2].isInt() && args[3].isInt()) {
-				PHTSpeaker initialSpeaker = get(args[2].getInt());
-				PHTSpeaker goalSpeaker = get(args[1].getInt());
+		});
+	}
 
-				if (initialSpeaker != null && goalSpeaker != null) {
-					PHTSound newSound = new PHTDirectedTransectSound(args[0].getString(), initialSpeaker, args[3].getInt(), goalSpeaker.getPosition());
-					_liveSounds.put(newSound.id(), newSound);
-				} else {
-					if (initialSpeaker == null) {
-						post("Invalid initial speaker index " + args[2].getInt() + " for directed transect sound " + args[0].getString() + ".");
-					}
-					if (goalSpeaker == null) {
-						post("Invalid goal speaker index " + args[1].getInt() + " for directed transect sound " + args[0].getString() + ".");
-					}
+	/** Sets which posts to the Max window are made.
+	 *	args: log_level error 	-- only errors
+	 *		  log_level info 	-- also notes such as layouts loaded (default)
+	 *		  log_level debug 	-- also every sound spawned or killed, and the rig on make_speakers */
+	public void log_level(String level) {
+		if (level.equals("error")) {
+			_logLevel = kLogError;
+		} else if (level.equals("info")) {
+			_logLevel = kLogInfo;
+		} else if (level.equals("debug")) {
+			_logLevel = kLogDebug;
+		} else {
+			post("Invalid log level " + level + "; expected error, info or debug.");
+		}
+	}
+
+	/** Outputs a series of Max message for each sound's status:
+	 * outlet0:	<sound-id> <speaker1-index> <speaker1-gain> [<speaker2-index> <speaker2-gain> ...]
+	 * Before output, a "begin" message is sent through outlet0. 
+	 * When all have been output, a "done" message is sent through outlet0. 
+	 *
+	 * A speaker that stops receiving a sound is sent once with a gain of 0. In delta mode (see status_mode),
+	 * only pairs whose gain changed by more than the epsilon are sent, and unchanged sounds are skipped.
+	 * With a silence threshold set, sounds that reach no speaker are skipped too, and a
+	 * "culled <count>" message counting them is sent before "done".
+	 *
+	 * With an OSC target set (see osc_target), status goes there as one bundle instead.
+	 *
+	 * Every bang outputs status; this message asks for it once more, at the next bang, before that bang's own. */
+	public void status() {
+		_engine.enqueue(new Runnable() {
+			public void run() {
+				outputStatus();
+			}
+		});
+	}
+
+	// Outputs status as in status(), at once; called on the ticking thread.
+	private void outputStatus() {
+		followRig();
+
+		long now = _engine.now();
+		int rigSize = _engine.speakers().size();
+
+		if (_sink != null) {
+			_sink.beginTick(now);
+		} else {
+			send("begin");
+		}
+		if (_recorder != null) {
+			_recorder.beginTick(now);
+		}
+
+		for (int n = 0; n < _engine.soundCount(); n++) {
+			PHTSound s = _engine.soundAt(n);
+			int pairs = _statusEncoder.encode(s, rigSize);
+			if (pairs == 0 && (_statusEncoder.isDelta() || _engine.getSilenceThreshold() > 0.)) {
+				continue;
+			}
+
+			if (_sink != null) {
+				statusTo(_sink, s, pairs);
+			} else {
+				Atom[] result = atomBuffer(pairs * 2 + 1);
+				int counter = 0;
+
+				result[counter++] = idAtom(s);
+
+				for (int i = 0; i < pairs; i++) {
+					result[counter++] = _channelAtoms[_statusEncoder.outputSlot(i)];
+					result[counter++] = Atom.newAtom(_statusEncoder.outputGain(i));
 				}
+
+				send(result);
+			}
+			if (_recorder != null) {
+				statusTo(_recorder, s, pairs);
 			}
+		}
+
+		if (_engine.getSilenceThreshold() > 0.) {
+			int culled = _engine.silentSoundCount();
+			if (_sink != null) {
+				_sink.culled(culled);
+			} else {
+				send(new Atom[] { Atom.newAtom("culled"), Atom.newAtom(culled) });
+			}
+			if (_recorder != null) {
+				_recorder.culled(culled);
+			}
+		}
+
+		if (_sink != null) {
+			_sink.endTick();
 		} else {
-			post("Invalid number of args for directed_transect_sound.");
+			send("done");
+		}
+		if (_recorder != null) {
+			_recorder.endTick();
+		}
+	}
+
+	/** Outputs one block of per-frame gains for every speaker of every live sound, covering `duration` ms
+	 *	of engine time from where the last block ended (see PHTBlockRenderer):
+	 * outlet0: block <sound-id> <speaker-index> <gain-frame-0> [<gain-frame-1> ...]
+	 * A signal-rate consumer can write these into a buffer~ and play them back across the next tick,
+	 * for smooth panning at a low bang rate. Blocks are output at the next bang, before its status. */
+	public void blocks(final float duration) {
+		_engine.enqueue(new Runnable() {
+			public void run() {
+				renderBlocks(duration);
+			}
+		});
+	}
+
+	// Outputs blocks as in blocks(), at once; called on the ticking thread.
+	private void renderBlocks(float duration) {
+		if (_blockRenderer == null) {
+			post("Set a block size with block_size before asking for blocks.");
 			return;
 		}
 
-		// DEBUG: Print sound set.
-		post("--- SOUNDS ---");
-		for (String s : _liveSounds.keySet()) {
-			post(_liveSounds.get(s).id());
+		int count = _blockRenderer.render(duration);
+
+		for (int n = 0; n < count; n++) {
+			PHTGainBlock block = _blockRenderer.block(n);
+
+			for (int i = 0; i < block.size(); i++) {
+				Atom[] result = atomBuffer(block.frames() + 3);
+				int counter = 0;
+
+				result[counter++] = _blockAtom;
+				result[counter++] = idAtom(block.sound());
+				result[counter++] = _channelAtoms[block.slot(i)];
+				for (int frame = 0; frame < block.frames(); frame++) {
+					result[counter++] = Atom.newAtom(block.gain(i, frame));
+				}
+
+				send(result);
+			}
 		}
 	}
 
-	/** Starts a new sweeping sound.
-	 * args: sweep_sound <id> <start-x> <start-y> <start-z> <end-x> <end-y> <end-z> <travel-time> */
-	public void sweep_sound(Atom[] args) {
-		if (args.length != 8) {
-			post("Invalid number of args for sweep_sound.");
+	/** Sets the number of frames in each gain block output after status on every bang; 0 (default) turns
+	 *	block output off. Applies from the next bang. */
+	public void block_size(final int frames) {
+		if (frames < 0) {
+			post("Invalid block size " + frames + ".");
 			return;
 		}
 
-		PHTSweepSound newSound = new PHTSweepSound(args[0].getString(), 
-													new double[] {args[1].getFloat(), args[2].getFloat(), args[3].getFloat()},
-													new double[] {args[4].getFloat(), args[5].getFloat(), args[6].getFloat()},
-													args[7].getInt(),
-													this);
+		_engine.enqueue(new Runnable() {
+			public void run() {
+				if (frames == 0) {
+					_blockRenderer = null;
+				} else if (_blockRenderer == null) {
+					_blockRenderer = new PHTBlockRenderer(_engine, frames);
+				} else {
+					_blockRenderer.setBlockSize(frames);
+				}
+			}
+		});
+	}
 
-		_liveSounds.put(newSound.id(), newSound);
+	/** Selects how status() reports gains.
+	 *	args: status_mode full 	-- every speaker/gain pair of every sound, every time (default)
+	 *		  status_mode delta	-- only pairs that changed by more than delta_epsilon since last sent
+	 *	Applies from the next bang. */
+	public void status_mode(String mode) {
+		final boolean delta;
+		if (mode.equals("full")) {
+			delta = false;
+		} else if (mode.equals("delta")) {
+			delta = true;
+		} else {
+			post("Invalid status mode " + mode + "; expected full or delta.");
+			return;
+		}
 
-		// DEBUG: Print sound set.
-		post("--- SOUNDS ---");
-		for (String s : _liveSounds.keySet()) {
-			post(_liveSounds.get(s).id());
+		_engine.enqueue(new Runnable() {
+			public void run() {
+				_statusEncoder.setDelta(delta);
+			}
+		});
+	}
+
+	/** Sends status to a renderer as OSC bundles over UDP instead of through outlet0 (see PHTOscSink), from
+	 *	the next bang. Dying sounds are reported there too; other output still goes through outlet0.
+	 *	args: osc_target <host> <port>
+	 *		  osc_target off 	-- back to outlet0 (default) */
+	public void osc_target(Atom[] args) {
+		final PHTOutputSink sink;
+		if (args.length == 1 && args[0].isString() && args[0].getString().equals("off")) {
+			sink = null;
+		} else if (args.length == 2 && args[1].isInt()) {
+			try {
+				// Resolve the host here, rather than hold up a tick.
+				sink = new PHTOscSink(new InetSocketAddress(args[0].toString(), args[1].getInt()));
+			} catch (IOException e) {
+				post("Couldn't open OSC target: " + e.getMessage());
+				return;
+			} catch (IllegalArgumentException e) {
+				post("Invalid OSC port " + args[1].getInt() + ".");
+				return;
+			}
+		} else {
+			post("Invalid osc_target; expected <host> <port> or off.");
+			return;
 		}
+
+		_engine.enqueue(new Runnable() {
+			public void run() {
+				if (_sink != null) {
+					_sink.close();
+				}
+				_sink = sink;
+				// The new target has seen nothing, so send every pair afresh.
+				_statusEncoder.clear();
+			}
+		});
 	}
 
-	/** Immediately kills the sound specified by `id` if it is currently live.
-	 *	@param 	id  	the String ID of the sound to kill */
-	public void kill_sound(String id) {
-		PHTSound s = _liveSounds.get(id);
+	/** Records what status sends (and dying sounds) on every bang to a binary log, for replay, from the next
+	 *	bang. Gains are kept to within 1 / 131072. Output carries on as usual while recording.
+	 *	args: record <path>
+	 *		  record off 	-- stop recording, keeping the log (default) */
+	public void record(String path) {
+		PHTTickRecorder recorder = null;
+		if (!path.equals("off")) {
+			try {
+				recorder = new PHTTickRecorder(new java.io.File(path));
+			} catch (java.io.IOException e) {
+				post("Could not record to " + path + ": " + e.getMessage());
+				return;
+			}
+		}
 
-		if (s != null) {
-			killSound(s);
+		final PHTTickRecorder newRecorder = recorder;
+		_engine.enqueue(new Runnable() {
+			public void run() {
+				if (_recorder != null) {
+					if (logs(kLogInfo)) {
+						post("Recorded " + _recorder.tickCount() + " ticks to " + _recorder.getFile().getPath() + ".");
+					}
+					_recorder.close();
+				}
+				_recorder = newRecorder;
+				// The log starts with every pair, even in delta mode.
+				_statusEncoder.clear();
+			}
+		});
+	}
+
+	/** Plays back a log made with record, one recorded tick per bang, in place of status, from the next bang.
+	 *	Sounds are neither moved nor spatialized while replaying; messages still apply. Output goes wherever
+	 *	status would go (outlet0, or the OSC target). Replay stops after the last tick.
+	 *	args: replay <path>
+	 *		  replay off 	-- back to live status (default) */
+	public void replay(String path) {
+		PHTTickPlayer player = null;
+		if (!path.equals("off")) {
+			try {
+				player = new PHTTickPlayer(new java.io.File(path));
+			} catch (java.io.IOException e) {
+				post("Could not replay " + path + ": " + e.getMessage());
+				return;
+			}
 		}
+
+		final PHTTickPlayer newPlayer = player;
+		_engine.enqueue(new Runnable() {
+			public void run() {
+				_player = newPlayer;
+				_statusEncoder.clear();
+			}
+		});
 	}
 
-	/** Bang to update sound positions / age and output status. */
-	public void bang() {
-		Collection<PHTSound> allLiveSounds = _liveSounds.values();
-		Collection<PHTSound> toKill = new LinkedList<PHTSound>();
+	/** Sets the smallest gain change sent in delta status mode, from the next bang. */
+	public void delta_epsilon(final float epsilon) {
+		_engine.enqueue(new Runnable() {
+			public void run() {
+				_statusEncoder.setEpsilon(epsilon);
+			}
+		});
+	}
+
+	/** Clears speaker set and kills all live sounds. */
+	public void clear() {
+		_engine.enqueue(new Runnable() {
+			public void run() {
+				_engine.clear();
+				_statusEncoder.clear();
+				_idAtoms.clear();
+			}
+		});
+	}
+
+	/** Acts sounds on one thread per core when at least `threshold` sounds are live; 0 (default) turns this off.
+	 *	Output order is the same either way. Applies from the next bang. */
+	public void parallel(final int threshold) {
+		_engine.enqueue(new Runnable() {
+			public void run() {
+				_engine.setParallelThreshold(threshold);
+			}
+		});
+	}
 
-		for (PHTSound s : allLiveSounds) {
-			if (!s.act()) { // PHTTransectSound.act() will return false if sound will die.
-				// We can't remove them in this loop, so add them to
-				// 	the list and remove later.
-				toKill.add(s);
+	/** Seeds the random number generator used by sounds spawned from now on, for reproducible runs. The seed
+	 *	takes effect in order with other messages, so sounds spawned before it still use the old sequence. */
+	public void seed(final int seed) {
+		_engine.enqueue(new Runnable() {
+			public void run() {
+				_engine.seed(seed);
 			}
+		});
+	}
+
+	/** Selects the engine's clock.
+	 *	args: clock system 			-- wall clock time (default)
+	 *		  clock fixed <step-ms>	-- every bang advances time by exactly <step-ms>
+	 *	Applies from the next bang; engine time carries on from where it was. */
+	public void clock(Atom[] args) {
+		final PHTClock clock;
+		if (args.length == 1 && args[0].isString() && args[0].getString().equals("system")) {
+			clock = new PHTSystemClock();
+		} else if (args.length == 2 && args[0].isString() && args[0].getString().equals("fixed") && args[1].getInt() > 0) {
+			clock = new PHTFixedStepClock(0, args[1].getInt());
+		} else {
+			post("Invalid args for clock; expected system or fixed <step-ms>.");
+			return;
 		}
 
-		for (PHTSound s : toKill) {
-			killSound(s);
+		_engine.enqueue(new Runnable() {
+			public void run() {
+				_engine.setClock(clock);
+			}
+		});
+	}
+
+	/** Renders the current scene offline, as fast as possible, writing the gain timeline to a file
+	 *	(see PHTOfflineRenderer for the format). Sounds age through the render; nothing is output.
+	 *	The render runs at the next bang, which goes on from where the render ends.
+	 *	args: render <path> <duration-ms> [<step-ms>] */
+	public void render(Atom[] args) {
+		if (args.length < 2 || args.length > 3) {
+			post("Invalid number of args for render.");
+			return;
 		}
 
-		status();
+		final String path = args[0].getString();
+		final long duration = args[1].getInt();
+		final long step = args.length == 3 ? args[2].getInt() : 10;
+
+		_engine.enqueue(new Runnable() {
+			public void run() {
+				try {
+					int ticks = new PHTOfflineRenderer(_engine).render(new java.io.File(path), duration, step);
+					post("Rendered " + ticks + " ticks to " + path + ".");
+				} catch (java.io.IOException e) {
+					post("Could not render to " + path + ": " + e.getMessage());
+				} catch (IllegalArgumentException e) {
+					post(e.getMessage());
+				}
+
+				// Sounds may have died during the render, and all have moved on.
+				_statusEncoder.clear();
+				_idAtoms.clear();
+			}
+		});
 	}
 
-	/** Outputs a series of Max message for each sound's status:
-	 * outlet0:	<sound-id> <speaker1-index> <speaker1-gain> [<speaker2-index> <speaker2-gain> ...]
-	 * Before output, a "begin" message is sent through outlet0. 
-	 * When all have been output, a "done" message is sent through outlet0. */
-	public void status() {
-		outlet(0, "begin");
+	// DEBUG: Change maximum spatialization distance.
+	public void maximum_dist(final float d) {
+		_engine.enqueue(new Runnable() {
+			public void run() {
+				_engine.setMaximumDistance(d);
+			}
+		});
+	}
 
-		Collection<PHTSound> allLiveSounds = _liveSounds.values();
+	/** Selects how sweep sounds are spread over the speakers.
+	 *	args: panning distance 						-- every speaker within maximum_dist, by the rolloff curve (default)
+	 *		  panning dbap [<rolloff-db> [<blur>]]	-- distance-based amplitude panning; gain falls <rolloff-db> (default 6)
+	 *												   per doubling of distance, with spatial blur <blur> (default 0.1)
+	 *		  panning vbap 							-- vector-base amplitude panning over the 2 or 3 speakers around the sound
+	 *	Under dbap and vbap, sounds still fade by the rolloff curve as they move away from the rig.
+	 *	Applies from the next bang. */
+	public void panning(final Atom[] args) {
+		if (args.length == 0 || !args[0].isString()) {
+			post("Invalid args for panning.");
+			return;
+		}
 
-		for (PHTSound s : allLiveSounds) {
-			Map<PHTSpeaker, Double> speakerMap = s.speakerMap();
-			Atom[] result = new Atom[speakerMap.size() * 2 + 1];
-			int counter = 0;
+		String mode = args[0].getString();
+		final int panning;
 
-			result[counter++] = Atom.newAtom(s.id());
+		if (mode.equals("distance")) {
+			panning = PHTEngine.kPanningDistance;
+		} else if (mode.equals("dbap")) {
+			panning = PHTEngine.kPanningDBAP;
+		} else if (mode.equals("vbap")) {
+			panning = PHTEngine.kPanningVBAP;
+		} else {
+			post("Invalid panning " + mode + "; expected distance, dbap or vbap.");
+			return;
+		}
 
-			Set<PHTSpeaker> speakerKeys = speakerMap.keySet();
-			for (PHTSpeaker speaker : speakerKeys) {
-				result[counter++] = Atom.newAtom(speaker.getIndex());
-				result[counter++] = Atom.newAtom(speakerMap.get(speaker));
+		final double rolloffDB = args.length > 1 ? args[1].getFloat() : 6.;
+		final double blur = args.length > 2 ? args[2].getFloat() : 0.1;
+
+		_engine.enqueue(new Runnable() {
+			public void run() {
+				if (panning == PHTEngine.kPanningDBAP) {
+					_engine.setDBAP(rolloffDB, blur);
+				}
+				_engine.setPanning(panning);
 			}
+		});
+	}
 
-			outlet(0, result);
+	/** Leaves speakers out of a sound's gains where they would be quieter than a threshold, and skips
+	 *	spatializing sounds too far from the rig to be heard at all.
+	 *	args: silence_threshold <db>	-- drop gains below <db> (such as -60)
+	 *		  silence_threshold off		-- keep every gain within maximum_dist (default)
+	 *	Applies from the next bang. */
+	public void silence_threshold(Atom[] args) {
+		final double threshold;
+		if (args.length == 1 && args[0].isString() && args[0].getString().equals("off")) {
+			threshold = 0.;
+		} else if (args.length == 1 && !args[0].isString()) {
+			threshold = Math.pow(10., args[0].getFloat() / 20.);
+		} else {
+			post("Invalid args for silence_threshold.");
+			return;
 		}
 
-		outlet(0, "done");
+		_engine.enqueue(new Runnable() {
+			public void run() {
+				_engine.setSilenceThreshold(threshold);
+			}
+		});
 	}
 
-	/** Clears speaker set and kills all live sounds. */
-	public void clear() {
-		_speakerFactory.clear();
-		_liveSounds = new HashMap<String, PHTSound>();
+	/** Has sweeps interpolate gains sampled along their line, instead of spatializing every tick. Sweeps along
+	 *	the same line share their samples, so repeated cue sweeps cost no spatializing once sampled.
+	 *	args: trajectory_cache <spacing> [<capacity>]	-- sample every <spacing> units, keeping the <capacity>
+	 *													   (default 32) most recently used lines
+	 *		  trajectory_cache off 						-- spatialize sweeps exactly (default) */
+	public void trajectory_cache(final Atom[] args) {
+		final double spacing;
+		final int capacity;
+		if (args.length == 1 && args[0].isString() && args[0].getString().equals("off")) {
+			spacing = 0.;
+			capacity = 0;
+		} else if (args.length >= 1 && args.length <= 2 && !args[0].isString() && args[0].getFloat() > 0.
+					&& (args.length == 1 || args[1].getInt() > 0)) {
+			spacing = args[0].getFloat();
+			capacity = args.length == 2 ? args[1].getInt() : 32;
+		} else {
+			post("Invalid args for trajectory_cache.");
+			return;
+		}
+
+		_engine.enqueue(new Runnable() {
+			public void run() {
+				_engine.setTrajectoryCache(spacing, capacity);
+			}
+		});
 	}
 
-	// DEBUG: Change maximum spatialization distance.
-	public void maximum_dist(float d) {
-		PHTToolbox.kSpatializationDistanceMaximum = d;
+	/** Selects the curve used to turn distance into gain. Gains are always 0 past maximum_dist.
+	 *	args: rolloff linear_db [<floor-db>]					-- linear in dB down to <floor-db> (default -80) at maximum_dist
+	 *		  rolloff inverse_square [<reference-distance>]	-- amplitude falls as <reference-distance> / distance (default 1)
+	 *		  rolloff breakpoints <d1> <g1> [<d2> <g2> ...]	-- piecewise linear gain factors at increasing distances
+	 *	Applies from the next bang. */
+	public void rolloff(Atom[] args) {
+		if (args.length == 0 || !args[0].isString()) {
+			post("Invalid args for rolloff.");
+			return;
+		}
+
+		String shape = args[0].getString();
+		PHTGainCurve.Rolloff rolloff = null;
+
+		if (shape.equals("linear_db")) {
+			rolloff = new PHTGainCurve.LinearDBRolloff(args.length > 1 ? args[1].getFloat() : -80.);
+		} else if (shape.equals("inverse_square")) {
+			rolloff = new PHTGainCurve.InverseSquareRolloff(args.length > 1 ? args[1].getFloat() : 1.);
+		} else if (shape.equals("breakpoints")) {
+			if (args.length < 3 || args.length % 2 != 1) {
+				post("Invalid number of args for rolloff breakpoints.");
+				return;
+			}
+
+			double[] distances = new double[(args.length - 1) / 2];
+			double[] gains = new double[distances.length];
+			for (int i = 0; i < distances.length; i++) {
+				distances[i] = args[2 * i + 1].getFloat();
+				gains[i] = args[2 * i + 2].getFloat();
+			}
+
+			try {
+				rolloff = new PHTGainCurve.BreakpointRolloff(distances, gains);
+			} catch (IllegalArgumentException e) {
+				post(e.getMessage());
+				return;
+			}
+		} else {
+			post("Invalid rolloff " + shape + "; expected linear_db, inverse_square or breakpoints.");
+			return;
+		}
+
+		final PHTGainCurve.Rolloff newRolloff = rolloff;
+		_engine.enqueue(new Runnable() {
+			public void run() {
+				_engine.setRolloff(newRolloff);
+			}
+		});
 	}
 
-	/* ------ Internal methods ------------------------------------- */
+	/** Stops the engine's tick threads when the mxj object is deleted. */
+	protected void notifyDeleted() {
+		if (_scheduler != null) {
+			_scheduler.stop();
+		}
+		_outboxQelem.release();
+		_engine.shutdown();
+		_engine.unshareRig();
+		if (_sink != null) {
+			_sink.close();
+		}
+		if (_recorder != null) {
+			_recorder.close();
+		}
+	}
+
+	/* ------ PHTEngine.Listener ------------------------------------- */
+
+	/** Outputs "<sound-id> <message>" for a dying sound, and drops what status() remembers about it. */
+	public void soundKilled(PHTSound s, String message) {
+		if (logs(kLogDebug)) {
+			post("killing: " + s.id());
+		}
 
-	/* NOTE: These `add` methods are not really useful, since they require the user to add
-	 		all speakers first, and then link them up. Use PHTSpeakerFactory instead (see
-	 		speaker() and make_speaker() for this). */
+		if (message != null) {
+			if (_sink != null) {
+				_sink.killed(s.id(), message);
+			} else {
+				send(new Atom[] { idAtom(s), Atom.newAtom(message) });
+			}
+			if (_recorder != null) {
+				_recorder.killed(s.id(), message);
+			}
+		}
 
-	// // Adds one speaker to the set.
-	// protected void add(PHTSpeaker newSpeaker) {
-	// 	_speakerSet.put(newSpeaker.getIndex(), newSpeaker);
-	// }
+		_statusEncoder.forget(s);
+		_idAtoms.remove(s);
+	}
 
-	// protected void addAll(PHTSpeaker... speakers) {
-	// 	for (PHTSpeaker s : speakers) {
-	// 		add(s);
-	// 	}
-	// }
+	/** Posts a queued message that failed, such as one naming a speaker that does not exist. */
+	public void commandFailed(RuntimeException e) {
+		post("Could not apply a message: " + e);
+	}
+
+	/* ------ Internal methods ------------------------------------- */
 
 	protected PHTSpeaker get(int index) {
-		return _speakerSet.get(index);
+		return _engine.get(index);
 	}
 
-	// Calculates gain factor for each speaker in the set to represent a point sound at the provided `position`.
-	protected Map<PHTSpeaker, Double> spatialize(double[] position) {
-		// post("spatializing...");
-		Map<PHTSpeaker, Double> result = new HashMap<PHTSpeaker, Double>();
+	/* ------ Helpers ------------------------------------- */
 
-		for (Integer i : _speakerSet.keySet()) {
-			result.put(_speakerSet.get(i), distanceToGain(distance3D(position, _speakerSet.get(i).getPosition())));
-			// post(result.get(i) + ": " + result.get(_speakerSet.get(i)));
+	// Ticks unless a tick is already running on another thread; returns whether it did.
+	private boolean tryTick() {
+		if (!_ticking.compareAndSet(false, true)) {
+			return false;
 		}
 
-		return result;
+		try {
+			tick();
+		} finally {
+			_ticking.set(false);
+		}
+		return true;
 	}
 
-	protected void killSound(PHTSound s) {
-		// DEBUG: Post dying sounds.
-		// post("killing: " + s.id());
+	// Goes back to ticking on bangs and the system clock once the scheduler is stopped.
+	private void unschedule() {
+		_scheduled = false;
+		_engine.enqueue(new Runnable() {
+			public void run() {
+				_engine.setClock(new PHTSystemClock());
+			}
+		});
+	}
 
-		Atom[] toOutput = s.kill();
-		if (toOutput != null && toOutput.length > 0) {
-			outlet(0, toOutput);
+	// Ticks the engine, applying queued messages first, then outputs status and blocks.
+	private void tick() {
+		if (_player != null) {
+			replayTick();
+			return;
 		}
 
-		_liveSounds.remove(s.id());
+		long previousTickTime = _lastTickTime;
+
+		_engine.tick();
+		_lastTickTime = _engine.now();
+
+		outputStatus();
+
+		if (_statsInterval > 0 && _engine.now() - _lastStatsTime >= _statsInterval) {
+			outputStats();
+		}
+
+		// Blocks cover the time until the next bang, taken to be as long as the time since the last one.
+		if (_blockRenderer != null && previousTickTime >= 0 && _lastTickTime > previousTickTime) {
+			renderBlocks(_lastTickTime - previousTickTime);
+		}
 	}
 
-	/* ------ Helpers ------------------------------------- */
+	// Plays the next recorded tick to _sink or outlet0, ending the replay after the last.
+	private void replayTick() {
+		// Messages still apply (among them, replay off), but sounds stay where they are.
+		_engine.applyCommands();
+		if (_player == null) {
+			return;
+		}
+
+		try {
+			if (_player.next(_sink != null ? _sink : _outletSink)) {
+				return;
+			}
+			if (logs(kLogInfo)) {
+				post("Replayed " + _player.tickCount() + " ticks from " + _player.getFile().getPath() + ".");
+			}
+		} catch (java.io.IOException e) {
+			post("Could not replay: " + e.getMessage());
+		}
+
+		_player = null;
+		// Live status starts afresh.
+		_statusEncoder.clear();
+	}
+
+	// Writes the `pairs` pairs just encoded for `s` to `sink`.
+	private void statusTo(PHTOutputSink sink, PHTSound s, int pairs) {
+		PHTSpeakerStore speakers = _engine.speakers();
+
+		sink.sound(s.id(), pairs);
+		for (int i = 0; i < pairs; i++) {
+			sink.pair(speakers.getChannel(_statusEncoder.outputSlot(i)), _statusEncoder.outputGain(i));
+		}
+	}
+
+	// Makes the speakers added since the last make_speakers, on the ticking thread.
+	private void makeSpeakers() {
+		_engine.makeSpeakers();
+		PHTSpeakerStore speakers = _engine.speakers();
+
+		rigReplaced();
+
+		if (logs(kLogDebug)) {
+			for (int slot = 0; slot < speakers.size(); slot++) {
+				post(speakers.getChannel(slot) + ": " + speakers.speaker(slot));
+			}
+		}
+	}
+
+	// Resets what status output remembers about the rig, as slots may have new meanings.
+	private void rigReplaced() {
+		_statusEncoder.clear();
+		_channelAtoms = new Atom[0];
+		updateChannelAtoms();
+		_statusSpeakers = _engine.speakers();
+	}
+
+	// Catches status output up with the engine's rig. The rig is a new object after a copy-on-write edit,
+	// 	or a pickup of another object's rig; status carries on unless the slots were renumbered, which only
+	// 	a rebuilt or loaded rig does.
+	private void followRig() {
+		if (_engine.speakers() == _statusSpeakers) {
+			return;
+		}
+
+		if (_engine.speakers().slotLayout() == _statusSpeakers.slotLayout()) {
+			rigCopied();
+		} else {
+			rigReplaced();
+		}
+	}
+
+	// Follows the rig to a copy with the same slots, such as one edited by another object sharing it. What
+	// 	status output remembers stays valid, so removed speakers still get their last 0 in delta mode.
+	private void rigCopied() {
+		updateChannelAtoms();
+		_statusSpeakers = _engine.speakers();
+	}
 
-	private double distance3D(double[] p0, double[] p1) {
-		if (p0.length != 3 || p1.length != 3) {
-			post("Invalid number of dimensions.");
-			return -1;
+	// Posts the IDs of every live sound.
+	private void postSounds() {
+		post("--- SOUNDS ---");
+		for (int n = 0; n < _engine.soundCount(); n++) {
+			post(_engine.soundAt(n).id());
 		}
+	}
 
-		return distance3D(p0[0], p0[1], p0[2], p1[0], p1[1], p1[2]);
+	// True if messages of `level` are posted. Check before building a message, so that nothing is built
+	// 	for a level that is off.
+	private boolean logs(int level) {
+		return level <= _logLevel;
 	}
 
-	private double distance3D(double x0, double y0, double z0, double x1, double y1, double z1) {
-		double deltaX = x1 - x0;
-		double deltaY = y1 - y0;
-		double deltaZ = z1 - z0;
+	// Outputs the engine's stats as "stats ..." messages (see the stats message), and starts them afresh.
+	private void outputStats() {
+		PHTEngineStats stats = _engine.stats();
+		if (stats == null) {
+			return;
+		}
+
+		send(new Atom[] { _statsAtom, Atom.newAtom("ticks"), Atom.newAtom((int)stats.tickCount()),
+			Atom.newAtom(stats.meanTickTime()), Atom.newAtom(stats.maxTickTime()) });
+
+		Atom[] histogram = new Atom[PHTEngineStats.kBucketCount + 2];
+		histogram[0] = _statsAtom;
+		histogram[1] = Atom.newAtom("histogram");
+		for (int bucket = 0; bucket < PHTEngineStats.kBucketCount; bucket++) {
+			histogram[bucket + 2] = Atom.newAtom((int)stats.ticksInBucket(bucket));
+		}
+		send(histogram);
 
-		return (double)Math.sqrt(deltaX * deltaX + deltaY * deltaY + deltaZ * deltaZ);
+		for (int i = 0; i < stats.soundTypeCount(); i++) {
+			send(new Atom[] { _statsAtom, Atom.newAtom("act"), Atom.newAtom(stats.soundType(i).getSimpleName()),
+				Atom.newAtom((int)stats.actCount(i)), Atom.newAtom(stats.meanActTime(i)) });
+		}
+
+		send(new Atom[] { _statsAtom, Atom.newAtom("spatialize"), Atom.newAtom((int)stats.spatializeCount()) });
+		send(new Atom[] { _statsAtom, Atom.newAtom("sounds"), Atom.newAtom(_engine.soundCount()),
+			Atom.newAtom((int)stats.spawnCount()), Atom.newAtom((int)stats.killCount()) });
+		send(new Atom[] { _statsAtom, Atom.newAtom("alloc"), Atom.newAtom(stats.allocationRate()) });
+
+		stats.reset();
+		_lastStatsTime = _engine.now();
 	}
 
-	private double distanceToGain(double distance) {
-		if (distance >= PHTToolbox.kSpatializationDistanceMaximum) {
-			return 0.;
+	// Makes index Atoms for slots added to the rig since they were last made. Slots never change
+	// 	index, so existing Atoms stay valid until make_speakers.
+	private void updateChannelAtoms() {
+		PHTSpeakerStore speakers = _engine.speakers();
+		int oldLength = _channelAtoms.length;
+		if (oldLength == speakers.size()) {
+			return;
 		}
 
-		double gainDB = -80. * distance / PHTToolbox.kSpatializationDistanceMaximum;
-	    double gainFactor = Math.pow(10., (0.05 * gainDB));
+		_channelAtoms = Arrays.copyOf(_channelAtoms, speakers.size());
+		for (int slot = oldLength; slot < _channelAtoms.length; slot++) {
+			_channelAtoms[slot] = Atom.newAtom(speakers.getChannel(slot));
+		}
+	}
 
-	    return gainFactor;
+	// Sends `message` through outlet0, or queues it for Max's thread while the scheduler runs.
+	private void send(final String message) {
+		if (!_scheduled) {
+			outlet(0, message);
+			return;
+		}
+
+		_outbox.add(new Runnable() {
+			public void run() {
+				outlet(0, message);
+			}
+		});
+	}
+
+	// Sends `message` through outlet0, or queues a copy of it for Max's thread while the scheduler runs.
+	private void send(Atom[] message) {
+		if (!_scheduled) {
+			outlet(0, message);
+			return;
+		}
+
+		final Atom[] copy = message.clone();
+		_outbox.add(new Runnable() {
+			public void run() {
+				outlet(0, copy);
+			}
+		});
+	}
+
+	// Returns a pooled Atom array of exactly `length` elements. Max copies outlet arguments, so
+	// 	the array may be reused as soon as outlet() returns.
+	private Atom[] atomBuffer(int length) {
+		while (_atomBuffers.size() <= length) {
+			_atomBuffers.add(null);
+		}
+
+		Atom[] buffer = _atomBuffers.get(length);
+		if (buffer == null) {
+			buffer = new Atom[length];
+			_atomBuffers.set(length, buffer);
+		}
+		return buffer;
+	}
+
+	private Atom idAtom(PHTSound s) {
+		Atom result = _idAtoms.get(s);
+		if (result == null) {
+			result = Atom.newAtom(s.id());
+			_idAtoms.put(s, result);
+		}
+		return result;
+	}
+
+	// Sends sink output through outlet0 as status() does, for replays.
+	private class OutletSink implements PHTOutputSink {
+		private Atom[] _sound; // the sound message being filled
+		private int _counter;
+
+		public void beginTick(long time) {
+			send("begin");
+		}
+
+		public void sound(String id, int pairs) {
+			_sound = atomBuffer(pairs * 2 + 1);
+			_sound[0] = Atom.newAtom(id);
+			_counter = 1;
+			if (pairs == 0) {
+				send(_sound);
+			}
+		}
+
+		public void pair(int channel, double gain) {
+			_sound[_counter++] = Atom.newAtom(channel);
+			_sound[_counter++] = Atom.newAtom(gain);
+			if (_counter == _sound.length) {
+				send(_sound);
+			}
+		}
+
+		public void culled(int count) {
+			send(new Atom[] { Atom.newAtom("culled"), Atom.newAtom(count) });
+		}
+
+		public void killed(String id, String message) {
+			send(new Atom[] { Atom.newAtom(id), Atom.newAtom(message) });
+		}
+
+		public void endTick() {
+			send("done");
+		}
+
+		public void close() {
+		}
 	}
 }
\ No newline at end of file
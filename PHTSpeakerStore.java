@@ -0,0 +1,222 @@
+package PHT;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Compact storage for a set of speakers, holding positions and channel indices in parallel primitive arrays.
+ *	Each speaker occupies a "slot" in [0, size()); PHTSpeaker objects are views onto a slot.
+ *
+ *	Slots are stable for the life of the store: a removed speaker's slot is left inactive rather than
+ *	reused, so sounds and status output holding slots never see them change meaning. Each store has a
+ *	slotLayout() number of its own, shared only by copies of it, which have the same slots. */
+public class PHTSpeakerStore {
+	private static final AtomicLong kSlotLayouts = new AtomicLong(); // last slotLayout() given out
+
+	private double[] _x;
+	private double[] _y;
+	private double[] _z;
+	private int[] _channel; // speaker index (output channel) of each slot
+	private boolean[] _active; // false once a slot's speaker has been removed
+	private int _size; // slots in use, active or not
+	private int _count; // active slots
+
+	// Dense mapping of speaker index to slot, -1 where no speaker has that index.
+	private int[] _slotOfChannel;
+
+	private PHTSpeaker[] _views;
+
+	private PHTLinkGraph _links;
+
+	private long _slotLayout;
+
+	/** Constructs a store of `size` speakers. Slots are filled with set().
+	 *
+	 *	@param 	size 			the number of speakers
+	 *	@param 	maximumChannel 	the largest speaker index that will be stored
+	 */
+	protected PHTSpeakerStore(int size, int maximumChannel) {
+		_x = new double[size];
+		_y = new double[size];
+		_z = new double[size];
+		_channel = new int[size];
+		_active = new boolean[size];
+		_size = size;
+		_count = 0;
+
+		_slotOfChannel = new int[maximumChannel + 1];
+		Arrays.fill(_slotOfChannel, -1);
+
+		_views = new PHTSpeaker[size];
+		_slotLayout = kSlotLayouts.incrementAndGet();
+	}
+
+	/** Returns the number of slots in the store, including those of removed speakers. */
+	public int size() {
+		return _size;
+	}
+
+	/** Returns the number of speakers in the store. */
+	public int count() {
+		return _count;
+	}
+
+	/** Returns true if `slot` holds a speaker, false if its speaker has been removed. */
+	public boolean isActive(int slot) {
+		return _active[slot];
+	}
+
+	/** Returns the slot of the speaker with index `channel`, or -1 if there is none. */
+	public int slotOf(int channel) {
+		if (channel < 0 || channel >= _slotOfChannel.length) {
+			return -1;
+		}
+		return _slotOfChannel[channel];
+	}
+
+	/** Returns the view of the speaker in `slot`. */
+	public PHTSpeaker speaker(int slot) {
+		return _views[slot];
+	}
+
+	/** Returns the view of the speaker with index `channel`, or null if there is none. */
+	public PHTSpeaker speakerWithIndex(int channel) {
+		int slot = slotOf(channel);
+		return slot < 0 ? null : _views[slot];
+	}
+
+	public double getX(int slot) {
+		return _x[slot];
+	}
+
+	public double getY(int slot) {
+		return _y[slot];
+	}
+
+	public double getZ(int slot) {
+		return _z[slot];
+	}
+
+	/** Returns the speaker index (output channel) of the speaker in `slot`. */
+	public int getChannel(int slot) {
+		return _channel[slot];
+	}
+
+	/** Returns a number identifying this store's numbering of slots: different for every store built, but
+	 *	the same for a copy (see PHTRigSnapshot.copy()), in which every speaker keeps its slot. Status that
+	 *	refers to speakers by slot stays meaningful across stores with the same slot layout. */
+	public long slotLayout() {
+		return _slotLayout;
+	}
+
+	/** Gives this store the slot layout of `original`, of which it is a copy. */
+	protected void setSlotLayout(PHTSpeakerStore original) {
+		_slotLayout = original._slotLayout;
+	}
+
+	/** Returns the links between the speakers in this store. */
+	public PHTLinkGraph links() {
+		return _links;
+	}
+
+	protected void setLinks(PHTLinkGraph links) {
+		_links = links;
+	}
+
+	/** Writes the speakers (not their links) to a rig snapshot; see PHTRigSnapshot. */
+	protected void write(DataOutput out) throws IOException {
+		out.writeInt(_size);
+		out.writeInt(_slotOfChannel.length - 1);
+		PHTRigSnapshot.writeInts(out, _channel, _size);
+		for (int slot = 0; slot < _size; slot++) {
+			out.writeBoolean(_active[slot]);
+		}
+		PHTRigSnapshot.writeDoubles(out, _x, _size);
+		PHTRigSnapshot.writeDoubles(out, _y, _size);
+		PHTRigSnapshot.writeDoubles(out, _z, _size);
+	}
+
+	/** Reads speakers written by write(). The store has no links until setLinks(). */
+	protected static PHTSpeakerStore read(ByteBuffer in) throws IOException {
+		int size = in.getInt();
+		PHTSpeakerStore result = new PHTSpeakerStore(size, in.getInt());
+
+		int[] channel = PHTRigSnapshot.readInts(in, size);
+		boolean[] active = new boolean[size];
+		for (int slot = 0; slot < size; slot++) {
+			active[slot] = in.get() != 0;
+		}
+		double[] x = PHTRigSnapshot.readDoubles(in, size);
+		double[] y = PHTRigSnapshot.readDoubles(in, size);
+		double[] z = PHTRigSnapshot.readDoubles(in, size);
+
+		for (int slot = 0; slot < size; slot++) {
+			result.set(slot, channel[slot], x[slot], y[slot], z[slot]);
+			if (!active[slot]) {
+				result.remove(slot);
+			}
+		}
+		return result;
+	}
+
+	/** Fills `slot` with a speaker and creates its view. */
+	protected void set(int slot, int channel, double x, double y, double z) {
+		_x[slot] = x;
+		_y[slot] = y;
+		_z[slot] = z;
+		_channel[slot] = channel;
+		_slotOfChannel[channel] = slot;
+
+		if (!_active[slot]) {
+			_active[slot] = true;
+			_count++;
+		}
+
+		_views[slot] = new PHTSpeaker(this, slot);
+	}
+
+	/** Appends a speaker in a new slot, growing the store.
+	 *	@returns 	the new speaker's slot. */
+	protected int add(int channel, double x, double y, double z) {
+		if (_size == _x.length) {
+			int capacity = Math.max(16, _size * 2);
+			_x = Arrays.copyOf(_x, capacity);
+			_y = Arrays.copyOf(_y, capacity);
+			_z = Arrays.copyOf(_z, capacity);
+			_channel = Arrays.copyOf(_channel, capacity);
+			_active = Arrays.copyOf(_active, capacity);
+			_views = Arrays.copyOf(_views, capacity);
+		}
+
+		if (channel >= _slotOfChannel.length) {
+			int oldLength = _slotOfChannel.length;
+			_slotOfChannel = Arrays.copyOf(_slotOfChannel, Math.max(channel + 1, oldLength * 2));
+			Arrays.fill(_slotOfChannel, oldLength, _slotOfChannel.length, -1);
+		}
+
+		int slot = _size++;
+		set(slot, channel, x, y, z);
+		return slot;
+	}
+
+	/** Moves the speaker in `slot` to ( `x`, `y`, `z` ). */
+	protected void move(int slot, double x, double y, double z) {
+		_x[slot] = x;
+		_y[slot] = y;
+		_z[slot] = z;
+	}
+
+	/** Removes the speaker in `slot`. The slot keeps its last position and channel, but is no longer active
+	 *	and is not reused. */
+	protected void remove(int slot) {
+		if (_active[slot]) {
+			_active[slot] = false;
+			_count--;
+
+			if (_slotOfChannel[_channel[slot]] == slot) {
+				_slotOfChannel[_channel[slot]] = -1;
+			}
+		}
+	}
+}
@@ -0,0 +1,150 @@
+package PHT;
+
+import java.util.*;
+
+/** Works out which speaker/gain pairs of each sound need to be sent on a status update.
+ *
+ *	The encoder remembers the gains last sent for every sound. In full mode, every current pair is
+ *	sent; in delta mode, only pairs whose gain moved by more than the epsilon since it was last sent.
+ *	In both modes a speaker that drops out of a sound's gain map is sent once with a gain of 0. */
+public class PHTStatusEncoder {
+	private boolean _delta;
+	private double _epsilon;
+
+	// Gains last sent for each live sound, keyed by identity.
+	private final Map<PHTSound, PHTGainMap> _lastSent;
+
+	// Dense scratch indexed by slot: last sent gain, and whether the slot is in the current map.
+	private double[] _sentBySlot;
+	private boolean[] _currentBySlot;
+
+	// Output of the last encode(): `_outCount` slot/gain pairs.
+	private int[] _outSlots;
+	private double[] _outGains;
+	private int _outCount;
+
+	private final PHTGainMap _nextSent;
+
+	/** Constructs a PHTStatusEncoder in full mode. */
+	public PHTStatusEncoder() {
+		_delta = false;
+		_epsilon = 0.001;
+		_lastSent = new IdentityHashMap<PHTSound, PHTGainMap>();
+		_sentBySlot = new double[0];
+		_currentBySlot = new boolean[0];
+		_outSlots = new int[8];
+		_outGains = new double[8];
+		_nextSent = new PHTGainMap();
+	}
+
+	/** Selects delta mode (true) or full mode (false). */
+	public void setDelta(boolean delta) {
+		_delta = delta;
+	}
+
+	public boolean isDelta() {
+		return _delta;
+	}
+
+	/** Sets the smallest gain change that is sent in delta mode. */
+	public void setEpsilon(double epsilon) {
+		_epsilon = epsilon;
+	}
+
+	/** Computes the pairs to send for `sound`, readable through outputCount(), outputSlot() and outputGain().
+	 *
+	 *	@param 	sound 		the sound to encode
+	 *	@param 	rigSize 	the number of speaker slots in the current rig
+	 *	@returns 			the number of pairs to send; in delta mode, 0 means the sound need not be sent.
+	 */
+	public int encode(PHTSound sound, int rigSize) {
+		if (_sentBySlot.length < rigSize) {
+			_sentBySlot = new double[rigSize];
+			_currentBySlot = new boolean[rigSize];
+		}
+
+		PHTGainMap current = sound.gainMap();
+		PHTGainMap last = _lastSent.get(sound);
+		if (last == null) {
+			last = new PHTGainMap();
+			_lastSent.put(sound, last);
+		}
+
+		for (int i = 0; i < last.size(); i++) {
+			_sentBySlot[last.slot(i)] = last.gain(i);
+		}
+
+		_outCount = 0;
+		_nextSent.clear();
+
+		for (int i = 0; i < current.size(); i++) {
+			int slot = current.slot(i);
+			double gain = current.gain(i);
+			double sent = _sentBySlot[slot];
+
+			_currentBySlot[slot] = true;
+
+			if (!_delta || Math.abs(gain - sent) > _epsilon) {
+				output(slot, gain);
+				sent = gain;
+			}
+			if (sent != 0.) {
+				_nextSent.add(slot, sent);
+			}
+		}
+
+		// Speakers that dropped out of the map get an explicit zero.
+		for (int i = 0; i < last.size(); i++) {
+			int slot = last.slot(i);
+			if (!_currentBySlot[slot]) {
+				output(slot, 0.);
+			}
+		}
+
+		// Reset scratch for the next sound.
+		for (int i = 0; i < last.size(); i++) {
+			_sentBySlot[last.slot(i)] = 0.;
+		}
+		for (int i = 0; i < current.size(); i++) {
+			_currentBySlot[current.slot(i)] = false;
+		}
+
+		last.copyFrom(_nextSent);
+
+		return _outCount;
+	}
+
+	public int outputCount() {
+		return _outCount;
+	}
+
+	public int outputSlot(int i) {
+		return _outSlots[i];
+	}
+
+	public double outputGain(int i) {
+		return _outGains[i];
+	}
+
+	/** Drops the remembered gains of `sound`; call when it dies. */
+	public void forget(PHTSound sound) {
+		_lastSent.remove(sound);
+	}
+
+	/** Drops the remembered gains of all sounds; call when sounds die en masse or slots are renumbered. */
+	public void clear() {
+		_lastSent.clear();
+	}
+
+	/* ------ Helpers ------------------------------------- */
+
+	private void output(int slot, double gain) {
+		if (_outCount == _outSlots.length) {
+			_outSlots = Arrays.copyOf(_outSlots, _outCount * 2);
+			_outGains = Arrays.copyOf(_outGains, _outCount * 2);
+		}
+		_outSlots[_outCount] = slot;
+		_outGains[_outCount] = gain;
+		_outCount++;
+	}
+}
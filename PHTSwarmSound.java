@@ -0,0 +1,301 @@
+package PHT;
+
+import java.util.*;
+
+/** Represents a swarm of particles, each moving from speaker to speaker over links like a PHTTransectSound,
+ *	as a single sound.
+ *
+ *	Particles are kept in parallel arrays (source, destination, hop start time, hop travel time, progress)
+ *	and advanced together in one loop per tick, sharing one random number generator, so a swarm of
+ *	thousands of particles costs about as much as one array pass. The swarm's gain map sums the particles'
+ *	gains per speaker, each particle weighing 1 / count, so it gives the share of the swarm at each speaker.
+ *	Per-particle gains can be read with particleGainMap(). */
+public class PHTSwarmSound implements PHTSound {
+	private String _id;
+	private long _lifespan;
+	private long _birthTime; // in ms
+
+	private final PHTEngine _engine;
+	private int _linkLayer; // interned id of the link layer the particles travel on
+	private final Random _random;
+
+	// Particles, by index.
+	private int _count;
+	private int[] _src; // momentary source speaker slot
+	private int[] _dst; // momentary destination speaker slot
+	private long[] _startTime; // start of the current hop, in ms
+	private long[] _travelTime; // duration of the current hop, in ms
+	private double[] _progress; // progress in [0., 1.] of the current hop
+	private double[] _progressAt; // scratch for gainMapAt()
+
+	private final PHTGainMap _speakerMap; // map of speaker slot to summed gain factor
+
+	// Scratch for summing gains per speaker: the sum for each slot, and which slots are non-zero.
+	private double[] _slotGain;
+	private int[] _touched;
+	private int _touchedCount;
+
+	/** Constructs a PHTSwarmSound of `count` particles, all starting at `initialPosition`.
+	 *
+	 *	@param	id 					the String ID of this sound
+	 *	@param 	initialPosition		the speaker every particle starts at
+	 *	@param 	count 				the number of particles
+	 *	@param 	lifespan			the duration of this sound, in milliseconds
+	 *	@param 	linkLayer			the id of the link layer to travel on (see PHTLinkGraph.layerId())
+	 *	@param 	engine 				the PHTEngine this sound lives in, for its clock and random numbers
+	 */
+	public PHTSwarmSound(String id, PHTSpeaker initialPosition, int count, long lifespan, int linkLayer, PHTEngine engine) {
+		this(engine);
+		init(id, initialPosition, count, lifespan, linkLayer);
+	}
+
+	/** Constructs a sound to be initialized with init(), for pooling.
+	 *	@param 	engine 				the PHTEngine this sound lives in, for its clock and random numbers
+	 */
+	protected PHTSwarmSound(PHTEngine engine) {
+		_engine = engine;
+		_random = new Random(0);
+		_speakerMap = new PHTGainMap();
+
+		_src = new int[0];
+		_dst = new int[0];
+		_startTime = new long[0];
+		_travelTime = new long[0];
+		_progress = new double[0];
+		_progressAt = new double[0];
+
+		_slotGain = new double[0];
+		_touched = new int[0];
+	}
+
+	/** Returns a swarm sound, reusing one from the engine's pool of dead swarms if there is one. Arguments
+	 *	are as for the constructor. */
+	public static PHTSwarmSound obtain(String id, PHTSpeaker initialPosition, int count, long lifespan, int linkLayer, PHTEngine engine) {
+		PHTSwarmSound result = engine.recycled(PHTSwarmSound.class);
+		if (result == null) {
+			result = new PHTSwarmSound(engine);
+		}
+		result.init(id, initialPosition, count, lifespan, linkLayer);
+		return result;
+	}
+
+	/** (Re)starts this swarm at `initialPosition`, as a new sound born now. */
+	protected void init(String id, PHTSpeaker initialPosition, int count, long lifespan, int linkLayer) {
+		if (count <= 0) {
+			throw new IllegalArgumentException("A swarm needs at least one particle.");
+		}
+
+		_id = id;
+		_lifespan = lifespan;
+		_birthTime = _engine.now();
+		_linkLayer = linkLayer;
+
+		if (_src.length < count) {
+			_src = new int[count];
+			_dst = new int[count];
+			_startTime = new long[count];
+			_travelTime = new long[count];
+			_progress = new double[count];
+			_progressAt = new double[count];
+		}
+		_count = count;
+
+		int slot = initialPosition.getSlot();
+		Arrays.fill(_src, 0, count, slot);
+		Arrays.fill(_dst, 0, count, slot);
+		Arrays.fill(_startTime, 0, count, _birthTime);
+		Arrays.fill(_travelTime, 0, count, 0);
+		Arrays.fill(_progress, 0, count, 1.);
+
+		_speakerMap.clear();
+
+		_random.setSeed(_engine.newSeed());
+	}
+
+	/* ------ Particles ------------------------------------- */
+
+	/** Returns the number of particles in this swarm. */
+	public int particleCount() {
+		return _count;
+	}
+
+	/** Writes the gains of particle `particle` alone, as of the last act(), into `result`. */
+	public void particleGainMap(int particle, PHTGainMap result) {
+		result.clear();
+
+		double progress = _progress[particle];
+		if (_src[particle] != _dst[particle] && isPresent(_src[particle])) {
+			result.add(_src[particle], 1. - progress);
+		}
+		result.add(_dst[particle], progress);
+	}
+
+	/* ------ PHTSound ------------------------------------- */
+
+	/** Updates every particle for time `now`, and sums their gains into this sound's speaker map.
+	 *	@param 	now 	the engine time of this tick, in ms
+	 *	@returns 		true if sound is still alive, else false.
+	 */
+	public boolean act(long now) {
+		if (now - _birthTime > _lifespan) {
+			return false;
+		}
+
+		PHTLinkGraph links = _engine.speakers().links();
+		int layer = _linkLayer;
+
+		for (int p = 0; p < _count; p++) {
+			// Step off any speaker removed from the rig since the last tick.
+			if (!isPresent(_dst[p]) && !rehome(p)) {
+				return false;
+			}
+
+			// Choose new destination if necessary.
+			if (_progress[p] >= 1.) {
+				int src = _dst[p];
+				_src[p] = src;
+
+				int link = links.randomEdge(layer, src, _random);
+				if (link >= 0) {
+					_dst[p] = links.target(layer, link);
+					_travelTime[p] = links.travelTime(layer, link);
+				} else {
+					_travelTime[p] = 0;
+				}
+
+				_startTime[p] = now;
+			}
+
+			// A zero-length hop is complete at once.
+			long travelTime = _travelTime[p];
+			_progress[p] = travelTime > 0 ? Math.min(1., (double)(now - _startTime[p]) / (double)travelTime) : 1.;
+		}
+
+		sumGains(_speakerMap);
+
+		return true;
+	}
+
+	/** Returns a map of speakers to the share of the swarm's particles at each.
+	 *  @returns 	a PHTGainMap of speaker slot to the corresponding gain factor (between 0. and 1.).
+	 */
+	public PHTGainMap gainMap() {
+		return _speakerMap;
+	}
+
+	/** Writes the summed gains the particles will have at engine time `time`, further along their current
+	 *	hops. Hops are not left early: past its end, a particle stays at its destination. */
+	public void gainMapAt(double time, PHTGainMap result) {
+		for (int p = 0; p < _count; p++) {
+			long travelTime = _travelTime[p];
+			_progressAt[p] = travelTime > 0
+				? Math.max(0., Math.min(1., (time - _startTime[p]) / (double)travelTime))
+				: 1.;
+		}
+
+		sumGains(_progressAt, result);
+	}
+
+	/** Returns this sound's String ID. */
+	public String id() {
+		return _id;
+	}
+
+	/** Called on kill. */
+	public String kill() {
+		return "killed";
+	}
+
+	/** Moves every particle's hop onto the new rig, as PHTTransectSound.rigRenumbered() does. */
+	public void rigRenumbered(PHTSpeakerStore from) {
+		for (int p = 0; p < _count; p++) {
+			_src[p] = _engine.renumberedSlot(from, _src[p]);
+			_dst[p] = _engine.renumberedSlot(from, _dst[p]);
+		}
+	}
+
+	public void reset() {
+		_id = null;
+		_speakerMap.clear();
+	}
+
+	/* ------ Helpers ------------------------------------- */
+
+	// True if `slot` still holds a speaker of the engine's rig.
+	private boolean isPresent(int slot) {
+		PHTSpeakerStore speakers = _engine.speakers();
+		return slot >= 0 && slot < speakers.size() && speakers.isActive(slot);
+	}
+
+	// As PHTTransectSound.rehome(), for particle `p`.
+	private boolean rehome(int p) {
+		if (isPresent(_src[p])) {
+			_dst[p] = _src[p];
+		} else {
+			PHTSpeakerStore speakers = _engine.speakers();
+			int dst = _dst[p];
+			PHTSpeaker nearest = dst >= 0 && dst < speakers.size()
+				? _engine.nearest(speakers.getX(dst), speakers.getY(dst), speakers.getZ(dst))
+				: null;
+
+			if (nearest == null) {
+				return false;
+			}
+			_dst[p] = nearest.getSlot();
+		}
+
+		_progress[p] = 1.;
+		return true;
+	}
+
+	// Sums every particle's gains at its current progress per speaker into `result`.
+	private void sumGains(PHTGainMap result) {
+		sumGains(_progress, result);
+	}
+
+	// Sums every particle's gains at `progress` per speaker into `result`, each particle weighing 1 / _count,
+	// 	leaving out speakers below the engine's silence threshold.
+	private void sumGains(double[] progress, PHTGainMap result) {
+		int rigSize = _engine.speakers().size();
+		if (_slotGain.length < rigSize) {
+			_slotGain = new double[rigSize];
+			_touched = new int[rigSize];
+		}
+
+		double weight = 1. / _count;
+		for (int p = 0; p < _count; p++) {
+			int src = _src[p];
+			int dst = _dst[p];
+			double gain = progress[p] * weight;
+
+			if (src != dst && src >= 0 && src < rigSize) {
+				addGain(src, weight - gain);
+			}
+			if (dst >= 0 && dst < rigSize) {
+				addGain(dst, gain);
+			}
+		}
+
+		double threshold = _engine.getSilenceThreshold();
+
+		result.clear();
+		for (int i = 0; i < _touchedCount; i++) {
+			int slot = _touched[i];
+			if (_slotGain[slot] > 0. && _slotGain[slot] >= threshold && _engine.speakers().isActive(slot)) {
+				result.add(slot, _slotGain[slot]);
+			}
+			_slotGain[slot] = 0.;
+		}
+		_touchedCount = 0;
+	}
+
+	private void addGain(int slot, double gain) {
+		if (_slotGain[slot] == 0.) {
+			if (gain == 0.) {
+				return;
+			}
+			_touched[_touchedCount++] = slot;
+		}
+		_slotGain[slot] += gain;
+	}
+}
@@ -1,21 +1,25 @@
 package PHT;
 
 import java.util.*;
-import com.cycling74.max.*;
 
 /** Represents a sound which "sweeps" from one point to another in the sound field. */
-public class PHTSweepSound extends MaxObject implements PHTSound {
-	private final String _id;
-	private Map<PHTSpeaker, Double> _speakerMap;
-	private final PHTSpeakerSet _speakerSet;
+public class PHTSweepSound implements PHTSound {
+	private String _id;
+	private final PHTGainMap _speakerMap;
+	private final PHTEngine _engine;
 
 	private final double[] _startPoint;
 	private final double[] _endPoint;
 	private final double[] _travelVector;
-	private final long _startTime;
-	private final long _travelTime;
+	private long _startTime;
+	private long _travelTime;
 
-	private double[] _currentPosition;
+	private final double[] _currentPosition;
+	private final double[] _positionAt; // scratch for gainMapAt()
+
+	// Sampled gains along the sweep, when the engine has a trajectory cache (see PHTEngine.setTrajectoryCache()).
+	private PHTTrajectoryCache _trajectories;
+	private PHTGainTrajectory _trajectory;
 
 	/** Constructs a PHTSweepSound. 
 	 *
@@ -23,45 +27,82 @@ public class PHTSweepSound extends MaxObject implements PHTSound {
 	 * 	@param 	startPoint 	the starting point of this sound's sweep, in an array of { x, y, z } spatial coordinates
 	 * 	@param 	endPoint 	the end point of this sound's sweep, in an array of { x, y, z } spatial coordinates
 	 * 	@param 	travelTime 	the duration of this sound's travel from startPoint to endPoint, in milliseconds
-	 * 	@param 	speakerSet 	the PHTSpeakerSet this sound will be spatialized into
+	 * 	@param 	engine 		the PHTEngine whose speakers this sound will be spatialized into
 	 */
-	public PHTSweepSound(String id, double[] startPoint, double[] endPoint, int travelTime, PHTSpeakerSet speakerSet) {
+	public PHTSweepSound(String id, double[] startPoint, double[] endPoint, int travelTime, PHTEngine engine) {
+		this(engine);
+		init(id, startPoint, endPoint, travelTime);
+	}
+
+	/** Constructs a sound to be initialized with init(), for pooling. */
+	protected PHTSweepSound(PHTEngine engine) {
+		_startPoint = new double[3];
+		_endPoint = new double[3];
+		_travelVector = new double[3];
+		_currentPosition = new double[3];
+		_positionAt = new double[3];
+
+		_speakerMap = new PHTGainMap();
+		_engine = engine;
+	}
+
+	/** Returns a sweep sound, reusing one from the engine's pool of dead sweep sounds if there is one.
+	 *	Arguments are as for the constructor. */
+	public static PHTSweepSound obtain(String id, double[] startPoint, double[] endPoint, int travelTime, PHTEngine engine) {
+		PHTSweepSound result = engine.recycled(PHTSweepSound.class);
+		if (result == null) {
+			result = new PHTSweepSound(engine);
+		}
+		result.init(id, startPoint, endPoint, travelTime);
+		return result;
+	}
+
+	/** (Re)starts this sound's sweep, as a new sound born now. The points are copied. */
+	protected void init(String id, double[] startPoint, double[] endPoint, int travelTime) {
 		_id = id;
 
-		_startPoint = startPoint;
-		_endPoint = endPoint;
-		_currentPosition = _startPoint;
-		_travelVector = new double[] { _endPoint[0] - _startPoint[0], 
-										_endPoint[1] - _startPoint[1], 
-										_endPoint[2] - _startPoint[2] };
-		
+		for (int d = 0; d < 3; d++) {
+			_startPoint[d] = startPoint[d];
+			_endPoint[d] = endPoint[d];
+			_travelVector[d] = endPoint[d] - startPoint[d];
+			_currentPosition[d] = startPoint[d];
+		}
 
-		_startTime = System.currentTimeMillis();
+		_startTime = _engine.now();
 		_travelTime = travelTime;
 
-		_speakerMap = new HashMap<PHTSpeaker, Double>();
-		_speakerSet = speakerSet;
+		_speakerMap.clear();
+
+		_trajectories = _engine.trajectories();
+		_trajectory = _trajectories != null ? _trajectories.trajectory(_startPoint, _endPoint) : null;
 	}
 
 	/* ------ PHTSound ------------------------------------- */
 
-	/** Updates this sound's speaker map, relying on computer's clock. 
-	 *	@returns 	true if sound is still alive, else false.
+	/** Updates this sound's speaker map for time `now`.
+	 *	@param 	now 	the engine time of this tick, in ms
+	 *	@returns 		true if sound is still alive, else false.
 	 */
-	public boolean act() {
+	public boolean act(long now) {
 		// PHTSpeakerSet.PHTConsole.post("PHTSweepSound: acting");
 
-		double progress = ((double)(System.currentTimeMillis() - _startTime) / (double)_travelTime);
+		double progress = ((double)(now - _startTime) / (double)_travelTime);
 
 		// Check for death.
 		if (progress >= 1.) {
 			return false;
 		}
 
+		// With sampled gains, the position need not be worked out.
+		if (_trajectories != null) {
+			trajectory().gainsAt(progress, _engine.getSilenceThreshold(), _speakerMap);
+			return true;
+		}
+
 		// Update progression.
-		_currentPosition = new double[] { _startPoint[0] + _travelVector[0] * progress, 
-											_startPoint[1] + _travelVector[1] * progress, 
-											_startPoint[2] + _travelVector[2] * progress };
+		_currentPosition[0] = _startPoint[0] + _travelVector[0] * progress;
+		_currentPosition[1] = _startPoint[1] + _travelVector[1] * progress;
+		_currentPosition[2] = _startPoint[2] + _travelVector[2] * progress;
 
 		// DEBUG: Output current position of a single sound.
 		// outlet(0, "pos", new Atom[] {  Atom.newAtom(_currentPosition[0]), 
@@ -74,25 +115,62 @@ public class PHTSweepSound extends MaxObject implements PHTSound {
 	}
 
 	/** Returns a map of speakers to gain factor.
-	 *  @returns 	a Map of PHTSpeaker to the corresponding gain factor (between 0. and 1.).
+	 *  @returns 	a PHTGainMap of speaker slot to the corresponding gain factor (between 0. and 1.).
 	 */
-	public Map<PHTSpeaker, Double> speakerMap() {
+	public PHTGainMap gainMap() {
 		return _speakerMap;
 	}
 
+	/** Writes the gains this sound will have at engine time `time`, further along its sweep. Past the end
+	 *	of the sweep, the sound stays at its end point. */
+	public void gainMapAt(double time, PHTGainMap result) {
+		double progress = Math.max(0., Math.min(1., (time - _startTime) / (double)_travelTime));
+
+		if (_trajectories != null) {
+			trajectory().gainsAt(progress, _engine.getSilenceThreshold(), result);
+			return;
+		}
+
+		_positionAt[0] = _startPoint[0] + _travelVector[0] * progress;
+		_positionAt[1] = _startPoint[1] + _travelVector[1] * progress;
+		_positionAt[2] = _startPoint[2] + _travelVector[2] * progress;
+
+		_engine.spatialize(_positionAt, result);
+	}
+
 	/** Returns this sound's String ID. */
 	public String id() {
 		return _id;
 	}
 
 	/** Called on kill. */
-	public Atom[] kill() {
-		return new Atom[] { Atom.newAtom(_id), Atom.newAtom("killed") };
+	public String kill() {
+		return "killed";
+	}
+
+	/** Holds no slots but those of its gain map, which the next act() rewrites. */
+	public void rigRenumbered(PHTSpeakerStore from) {
+	}
+
+	public void reset() {
+		_id = null;
+		_speakerMap.clear();
+		_trajectories = null;
+		_trajectory = null;
 	}
 
 	/* ------ Helpers ------------------------------------- */
 
+	// Returns the samples of this sweep's line at the current rig version, fetching them again if the rig has
+	// 	changed since they were taken.
+	private PHTGainTrajectory trajectory() {
+		if (_trajectory == null || _trajectory.rigVersion() != _engine.rigVersion()) {
+			_trajectory = _trajectories.trajectory(_startPoint, _endPoint);
+		}
+		return _trajectory;
+	}
+
 	private void updateSpeakerMap() {
-		_speakerMap = _speakerSet.spatialize(_currentPosition);
+		_engine.spatialize(_currentPosition, _speakerMap);
 	}
 }
\ No newline at end of file
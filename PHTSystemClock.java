@@ -0,0 +1,8 @@
+package PHT;
+
+/** PHTClock following the computer's wall clock. */
+public class PHTSystemClock implements PHTClock {
+	public long now() {
+		return System.currentTimeMillis();
+	}
+}
@@ -0,0 +1,175 @@
+package PHT;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/** Plays back a log written by PHTTickRecorder, one tick at a time, into a PHTOutputSink: the same calls,
+ *	with the same times, IDs and (quantized) gains, as were made on the recorder. Nothing is spatialized,
+ *	so playback costs little more than reading the file, which is memory-mapped. */
+public class PHTTickPlayer {
+	private final File _file;
+	private final ByteBuffer _in; // the records of whole ticks
+	private final long _tickCount;
+
+	private long _lastTickTime;
+	private final List<String> _strings;
+	private int[][] _lastGains; // as in PHTTickRecorder
+
+	/** Opens the log in `file`.
+	 *	@throws 	IOException 	if the file cannot be read, or is not a tick log of this version */
+	public PHTTickPlayer(File file) throws IOException {
+		_file = file;
+
+		FileInputStream stream = new FileInputStream(file);
+		try {
+			FileChannel channel = stream.getChannel();
+			if (channel.size() < PHTTickRecorder.kHeaderSize) {
+				throw new IOException(file.getPath() + " is not a tick log.");
+			}
+
+			MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, PHTTickRecorder.kHeaderSize);
+			if (header.getInt() != PHTTickRecorder.kMagic) {
+				throw new IOException(file.getPath() + " is not a tick log.");
+			}
+			int version = header.getInt();
+			if (version != PHTTickRecorder.kVersion) {
+				throw new IOException(file.getPath() + " is a version " + version + " tick log; expected version " + PHTTickRecorder.kVersion + ".");
+			}
+			if (header.getInt() != PHTTickRecorder.kGainSteps) {
+				throw new IOException(file.getPath() + " has gains in unknown steps.");
+			}
+
+			long length = header.getLong(PHTTickRecorder.kLengthPosition);
+			_tickCount = header.getLong(PHTTickRecorder.kTickCountPosition);
+			if (length < 0 || length > channel.size() - PHTTickRecorder.kHeaderSize) {
+				throw new IOException(file.getPath() + " is truncated.");
+			}
+			if (length > Integer.MAX_VALUE) {
+				throw new IOException(file.getPath() + " is too long to play back.");
+			}
+
+			_in = channel.map(FileChannel.MapMode.READ_ONLY, PHTTickRecorder.kHeaderSize, length);
+		} finally {
+			// The mapping stays valid once the file is closed.
+			stream.close();
+		}
+
+		_strings = new ArrayList<String>();
+		_lastGains = new int[16][];
+		rewind();
+	}
+
+	public File getFile() {
+		return _file;
+	}
+
+	/** Returns the number of ticks in the log. */
+	public long tickCount() {
+		return _tickCount;
+	}
+
+	/** Returns true if every tick has been played. */
+	public boolean isDone() {
+		return !_in.hasRemaining();
+	}
+
+	/** Goes back to the start of the log. */
+	public void rewind() {
+		_in.rewind();
+		_lastTickTime = 0;
+		_strings.clear();
+	}
+
+	/** Plays the next tick into `sink`, along with any sounds killed before it.
+	 *	@returns 				false, playing nothing, if every tick has been played
+	 *	@throws 	IOException 	if the log is corrupt */
+	public boolean next(PHTOutputSink sink) throws IOException {
+		if (!_in.hasRemaining()) {
+			return false;
+		}
+
+		try {
+			while (true) {
+				byte kind = _in.get();
+				switch (kind) {
+				case PHTTickRecorder.kDefine:
+					define();
+					break;
+
+				case PHTTickRecorder.kKilled: {
+					int id = string();
+					int message = string();
+					sink.killed(_strings.get(id), _strings.get(message));
+					Arrays.fill(_lastGains[id], 0);
+					break;
+				}
+
+				case PHTTickRecorder.kTick:
+					_lastTickTime += PHTTickRecorder.getVarLong(_in);
+					sink.beginTick(_lastTickTime);
+					break;
+
+				case PHTTickRecorder.kSound: {
+					int id = string();
+					int pairs = PHTTickRecorder.getVarInt(_in);
+					sink.sound(_strings.get(id), pairs);
+
+					int[] gains = _lastGains[id];
+					int channel = 0;
+					for (int i = 0; i < pairs; i++) {
+						channel += PHTTickRecorder.getVarInt(_in);
+						if (channel >= gains.length) {
+							gains = Arrays.copyOf(gains, Math.max(channel + 1, gains.length * 2));
+							_lastGains[id] = gains;
+						}
+						gains[channel] += PHTTickRecorder.getVarInt(_in);
+						sink.pair(channel, (double)gains[channel] / PHTTickRecorder.kGainSteps);
+					}
+					break;
+				}
+
+				case PHTTickRecorder.kCulled:
+					sink.culled(PHTTickRecorder.getVarInt(_in));
+					break;
+
+				case PHTTickRecorder.kTickEnd:
+					sink.endTick();
+					return true;
+
+				default:
+					throw new IOException(_file.getPath() + " is corrupt (unknown record " + kind + ").");
+				}
+			}
+		} catch (java.nio.BufferUnderflowException e) {
+			throw new IOException(_file.getPath() + " is corrupt (record past the end).");
+		} catch (IndexOutOfBoundsException e) {
+			throw new IOException(_file.getPath() + " is corrupt (undefined string).");
+		}
+	}
+
+	/* ------ Helpers ------------------------------------- */
+
+	private void define() throws IOException {
+		byte[] bytes = new byte[PHTTickRecorder.getVarInt(_in)];
+		_in.get(bytes);
+
+		int number = _strings.size();
+		_strings.add(new String(bytes, "UTF-8"));
+		if (number == _lastGains.length) {
+			_lastGains = Arrays.copyOf(_lastGains, number * 2);
+		}
+		_lastGains[number] = new int[0];
+	}
+
+	// Reads a string number, checking that it has been defined.
+	private int string() {
+		int result = PHTTickRecorder.getVarInt(_in);
+		if (result < 0 || result >= _strings.size()) {
+			throw new IndexOutOfBoundsException();
+		}
+		return result;
+	}
+}
@@ -0,0 +1,300 @@
+package PHT;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/** PHTOutputSink that appends each tick's output to a compact binary log, which PHTTickPlayer can play back
+ *	into any sink without running the engine.
+ *
+ *	The file starts with a fixed header:
+ *		int 	magic ("PHTL")
+ *		int 	format version (kVersion); other versions are rejected
+ *		int 	gain steps (kGainSteps); gains are stored as round(gain * steps)
+ *		int 	unused (0)
+ *		long 	length in bytes of the records that follow, counting only whole ticks
+ *		long 	number of ticks recorded
+ *	followed by records (big-endian), each a kind byte and its fields, with ints written as variable-length
+ *	zigzag integers (7 bits a byte, low first):
+ *		kDefine 	<byte-length> <UTF-8 bytes> 	-- the next string number stands for this string
+ *		kKilled 	<id-string> <message-string>
+ *		kTick 		<time - time of last tick>
+ *		kSound 		<id-string> <pairs> [<channel - last channel> <gain - last gain of this channel> ...]
+ *		kCulled 	<count>
+ *		kTickEnd
+ *	where strings are given by number, and each gain by its difference from the last recorded for the same
+ *	sound and speaker (0 before any, and after the sound is killed), so a slowly moving sound costs about
+ *	two bytes per speaker per tick. Replaying a log gives exactly the same gains every time; gains differ
+ *	from those recorded by at most half a step.
+ *
+ *	The file is written through memory-mapped windows of kWindowSize bytes, and grows as windows are mapped,
+ *	so it may end in unused bytes past the length given in the header. */
+public class PHTTickRecorder implements PHTOutputSink {
+	public static final int kMagic = 0x5048544C; // "PHTL"
+	public static final int kVersion = 1;
+
+	/** Steps per unit of gain. */
+	public static final int kGainSteps = 1 << 16;
+
+	protected static final int kHeaderSize = 32;
+	protected static final int kLengthPosition = 16;
+	protected static final int kTickCountPosition = 24;
+
+	// Record kinds.
+	protected static final byte kDefine = 1;
+	protected static final byte kKilled = 2;
+	protected static final byte kTick = 3;
+	protected static final byte kSound = 4;
+	protected static final byte kCulled = 5;
+	protected static final byte kTickEnd = 6;
+
+	private static final int kWindowSize = 1 << 20;
+	private static final int kMaxVarIntSize = 5;
+	private static final int kMaxVarLongSize = 10;
+
+	private final File _file;
+	private final RandomAccessFile _raf;
+	private final FileChannel _channel;
+	private final MappedByteBuffer _header;
+	private MappedByteBuffer _window; // records from _windowStart in the file
+	private long _windowStart;
+
+	private long _tickCount;
+	private long _lastTickTime;
+
+	// Strings defined so far, by number, and the last gain recorded for each string (as sound ID) and speaker.
+	private final Map<String, Integer> _strings;
+	private int[][] _lastGains;
+
+	// The sound whose pairs are being recorded.
+	private int[] _soundGains;
+	private int _soundString;
+	private int _lastChannel;
+
+	/** Starts a log in `file`, replacing anything there.
+	 *	@throws 	IOException 	if the file cannot be written */
+	public PHTTickRecorder(File file) throws IOException {
+		_file = file;
+		_raf = new RandomAccessFile(file, "rw");
+		try {
+			_raf.setLength(0);
+			_channel = _raf.getChannel();
+
+			_header = _channel.map(FileChannel.MapMode.READ_WRITE, 0, kHeaderSize);
+			_header.putInt(kMagic);
+			_header.putInt(kVersion);
+			_header.putInt(kGainSteps);
+			_header.putInt(0);
+			_header.putLong(0);
+			_header.putLong(0);
+
+			_windowStart = kHeaderSize;
+			_window = _channel.map(FileChannel.MapMode.READ_WRITE, _windowStart, kWindowSize);
+		} catch (IOException e) {
+			_raf.close();
+			throw e;
+		}
+
+		_tickCount = 0;
+		_lastTickTime = 0;
+
+		_strings = new HashMap<String, Integer>();
+		_lastGains = new int[16][];
+		_soundGains = null;
+		_soundString = -1;
+	}
+
+	public File getFile() {
+		return _file;
+	}
+
+	/** Returns the number of ticks recorded. */
+	public long tickCount() {
+		return _tickCount;
+	}
+
+	/** Returns the length of the log so far, in bytes. */
+	public long length() {
+		return _windowStart + _window.position();
+	}
+
+	/* ------ PHTOutputSink ------------------------------------- */
+
+	public void beginTick(long time) {
+		ensureRoom(1 + kMaxVarLongSize);
+		_window.put(kTick);
+		putVarLong(time - _lastTickTime);
+		_lastTickTime = time;
+	}
+
+	public void sound(String id, int pairs) {
+		int string = string(id);
+
+		ensureRoom(1 + 3 * kMaxVarIntSize + 2 * kMaxVarIntSize * pairs);
+		_window.put(kSound);
+		putVarInt(string);
+		putVarInt(pairs);
+
+		_soundString = string;
+		_soundGains = _lastGains[string];
+		_lastChannel = 0;
+	}
+
+	public void pair(int channel, double gain) {
+		if (channel >= _soundGains.length) {
+			_soundGains = Arrays.copyOf(_soundGains, Math.max(channel + 1, _soundGains.length * 2));
+			_lastGains[_soundString] = _soundGains;
+		}
+
+		int quantized = (int)Math.round(gain * kGainSteps);
+		putVarInt(channel - _lastChannel);
+		putVarInt(quantized - _soundGains[channel]);
+
+		_lastChannel = channel;
+		_soundGains[channel] = quantized;
+	}
+
+	public void culled(int count) {
+		ensureRoom(1 + kMaxVarIntSize);
+		_window.put(kCulled);
+		putVarInt(count);
+	}
+
+	public void killed(String id, String message) {
+		int idString = string(id);
+		int messageString = string(message);
+
+		ensureRoom(1 + 2 * kMaxVarIntSize);
+		_window.put(kKilled);
+		putVarInt(idString);
+		putVarInt(messageString);
+
+		// A new sound with the same ID starts from silence.
+		Arrays.fill(_lastGains[idString], 0);
+	}
+
+	/** Ends the tick, after which it is part of the log. */
+	public void endTick() {
+		ensureRoom(1);
+		_window.put(kTickEnd);
+
+		_tickCount++;
+		_header.putLong(kLengthPosition, length() - kHeaderSize);
+		_header.putLong(kTickCountPosition, _tickCount);
+	}
+
+	/** Writes the log out and closes the file. A tick not yet ended is left out. */
+	public void close() {
+		try {
+			_header.force();
+			_window.force();
+			_raf.close();
+		} catch (IOException e) {
+			// The header was written last, so the log holds what was ended before this.
+		}
+	}
+
+	/* ------ Encoding ------------------------------------- */
+
+	protected static int zigzag(int value) {
+		return (value << 1) ^ (value >> 31);
+	}
+
+	protected static int unzigzag(int value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	protected static long zigzag(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+
+	protected static long unzigzag(long value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	protected static int getVarInt(ByteBuffer in) {
+		int result = 0;
+		for (int shift = 0; ; shift += 7) {
+			byte b = in.get();
+			result |= (b & 0x7F) << shift;
+			if (b >= 0) {
+				return unzigzag(result);
+			}
+		}
+	}
+
+	protected static long getVarLong(ByteBuffer in) {
+		long result = 0;
+		for (int shift = 0; ; shift += 7) {
+			byte b = in.get();
+			result |= (long)(b & 0x7F) << shift;
+			if (b >= 0) {
+				return unzigzag(result);
+			}
+		}
+	}
+
+	/* ------ Helpers ------------------------------------- */
+
+	private void putVarInt(int value) {
+		int v = zigzag(value);
+		while ((v & ~0x7F) != 0) {
+			_window.put((byte)((v & 0x7F) | 0x80));
+			v >>>= 7;
+		}
+		_window.put((byte)v);
+	}
+
+	private void putVarLong(long value) {
+		long v = zigzag(value);
+		while ((v & ~0x7FL) != 0) {
+			_window.put((byte)((v & 0x7F) | 0x80));
+			v >>>= 7;
+		}
+		_window.put((byte)v);
+	}
+
+	// Returns the number of `s`, defining it first if it is new.
+	private int string(String s) {
+		Integer known = _strings.get(s);
+		if (known != null) {
+			return known;
+		}
+
+		int result = _strings.size();
+		_strings.put(s, result);
+		if (result == _lastGains.length) {
+			_lastGains = Arrays.copyOf(_lastGains, result * 2);
+		}
+		_lastGains[result] = new int[0];
+
+		byte[] bytes;
+		try {
+			bytes = s.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+		ensureRoom(1 + kMaxVarIntSize + bytes.length);
+		_window.put(kDefine);
+		putVarInt(bytes.length);
+		_window.put(bytes);
+
+		return result;
+	}
+
+	// Maps a new window from the end of the log if the current one has less than `bytes` left.
+	private void ensureRoom(int bytes) {
+		if (_window.remaining() >= bytes) {
+			return;
+		}
+
+		_windowStart = length();
+		try {
+			_window = _channel.map(FileChannel.MapMode.READ_WRITE, _windowStart, Math.max(kWindowSize, bytes));
+		} catch (IOException e) {
+			throw new IllegalStateException("Could not extend " + _file.getPath() + ": " + e.getMessage());
+		}
+	}
+}
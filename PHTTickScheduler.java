@@ -0,0 +1,235 @@
+package PHT;
+
+import java.util.concurrent.locks.LockSupport;
+
+/** Runs a tick on a dedicated thread at a fixed rate, timed by System.nanoTime() rather than by
+ *	whoever sends bangs.
+ *
+ *	Ticks are due on a grid of deadlines, one period apart from start(), so lateness in waking never
+ *	accumulates. The thread sleeps until just before each deadline and spins the rest of the way. When it
+ *	wakes more than a period late, it catches up by running the missed ticks back to back, up to
+ *	kMaxCatchUpTicks, and skips any more so as to rejoin the grid at the present.
+ *
+ *	As a PHTClock, the scheduler reads as the deadline of the tick being run, so an engine given it as
+ *	its clock (see PHTEngine.setClock()) sees ticks exactly one period apart, however late each ran.
+ *
+ *	Lateness (jitter) and overruns are measured for every tick, and kept until resetStats().
+ *
+ *	A tick that throws a RuntimeException is counted and passed to the FailureHandler, if there is one,
+ *	and ticking goes on. Anything worse ends the thread, after which isRunning() returns false. */
+public class PHTTickScheduler implements PHTClock {
+	/** Most missed ticks run back to back after a late wake; any more are skipped. */
+	public static final int kMaxCatchUpTicks = 4;
+
+	// Left to spin rather than sleep before a deadline, since sleeps overshoot by about this much.
+	private static final long kSpinNanos = 500000L;
+
+	/** Receives the exceptions thrown by ticks, on the scheduler thread. */
+	public interface FailureHandler {
+		public void tickFailed(RuntimeException e);
+	}
+
+	private final Runnable _tick;
+	private final FailureHandler _failureHandler; // or null
+	private volatile long _periodNanos;
+	private volatile Thread _thread; // null while stopped
+
+	private volatile long _deadline; // nanoTime at which the tick being run was due
+
+	// Stats since the last resetStats(), written only by the scheduler thread.
+	private volatile long _tickCount;
+	private volatile long _latenessSumNanos;
+	private volatile long _latenessMaxNanos;
+	private volatile long _overrunCount; // ticks that ran past the next deadline
+	private volatile long _skippedCount; // deadlines dropped instead of caught up
+
+	private volatile long _failureCount; // since construction
+
+	/** Constructs a stopped PHTTickScheduler that will run `tick` at each deadline. */
+	public PHTTickScheduler(Runnable tick) {
+		this(tick, null);
+	}
+
+	/** Constructs a stopped PHTTickScheduler that will run `tick` at each deadline.
+	 *	@param 	tick 			run at each deadline
+	 *	@param 	failureHandler 	receives what `tick` throws, or null to only count it */
+	public PHTTickScheduler(Runnable tick, FailureHandler failureHandler) {
+		_tick = tick;
+		_failureHandler = failureHandler;
+		_periodNanos = 10000000L;
+		_thread = null;
+		_deadline = System.nanoTime();
+	}
+
+	/** Sets the tick rate, taking effect from the next tick.
+	 *	@param 	rate 	ticks per second; must be positive */
+	public void setRate(double rate) {
+		if (!(rate > 0.)) {
+			throw new IllegalArgumentException("Tick rate must be positive.");
+		}
+		_periodNanos = Math.max(1L, Math.round(1e9 / rate));
+	}
+
+	/** Returns the number of ticks per second. */
+	public double getRate() {
+		return 1e9 / _periodNanos;
+	}
+
+	/** Starts ticking on a new thread, with the first tick due at once. Does nothing if already running. */
+	public synchronized void start() {
+		if (_thread != null) {
+			return;
+		}
+
+		_deadline = System.nanoTime();
+		_thread = new Thread("PHT tick") {
+			public void run() {
+				loop(this);
+			}
+		};
+		_thread.setDaemon(true);
+		_thread.setPriority(Thread.MAX_PRIORITY);
+		_thread.start();
+	}
+
+	/** Stops ticking, waiting for a tick in progress to finish. Does nothing if not running, and must not
+	 *	be called from a tick. */
+	public synchronized void stop() {
+		Thread thread = _thread;
+		if (thread == null) {
+			return;
+		}
+
+		_thread = null;
+		LockSupport.unpark(thread);
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/** Returns true from start() until stop(), or until the thread dies of an error. */
+	public boolean isRunning() {
+		return _thread != null;
+	}
+
+	/** Returns the number of ticks that have thrown, over the scheduler's life. */
+	public long failureCount() {
+		return _failureCount;
+	}
+
+	/** Returns the deadline of the tick being run (or last run), in milliseconds on System.nanoTime()'s scale. */
+	public long now() {
+		return _deadline / 1000000L;
+	}
+
+	/* ------ Stats ------------------------------------- */
+
+	/** Returns the number of ticks run since the last resetStats(). */
+	public long tickCount() {
+		return _tickCount;
+	}
+
+	/** Returns the mean time by which ticks started after their deadlines, in milliseconds. */
+	public double meanJitter() {
+		long ticks = _tickCount;
+		return ticks > 0 ? _latenessSumNanos / 1e6 / ticks : 0.;
+	}
+
+	/** Returns the most by which a tick started after its deadline, in milliseconds. */
+	public double maxJitter() {
+		return _latenessMaxNanos / 1e6;
+	}
+
+	/** Returns the number of ticks that were still running at the next deadline. */
+	public long overrunCount() {
+		return _overrunCount;
+	}
+
+	/** Returns the number of ticks skipped after falling more than kMaxCatchUpTicks behind. */
+	public long skippedCount() {
+		return _skippedCount;
+	}
+
+	/** Zeroes the stats. Safe to call from any thread, though a tick finishing at the same time may be lost. */
+	public void resetStats() {
+		_tickCount = 0;
+		_latenessSumNanos = 0;
+		_latenessMaxNanos = 0;
+		_overrunCount = 0;
+		_skippedCount = 0;
+	}
+
+	/* ------ Helpers ------------------------------------- */
+
+	// Body of the scheduler thread `self`, which runs until it is no longer _thread.
+	private void loop(Thread self) {
+		try {
+			tickUntilStopped(self);
+		} finally {
+			// Dying of an error, rather than stopped: say so through isRunning(). (Not synchronized, as
+			// 	stop() holds the lock while it waits for this thread.)
+			if (_thread == self) {
+				_thread = null;
+			}
+		}
+	}
+
+	private void tickUntilStopped(Thread self) {
+		long deadline = _deadline;
+
+		while (_thread == self) {
+			waitUntil(deadline, self);
+			if (_thread != self) {
+				break;
+			}
+
+			long start = System.nanoTime();
+			long lateness = start - deadline;
+			_deadline = deadline;
+
+			try {
+				_tick.run();
+			} catch (RuntimeException e) {
+				_failureCount++;
+				if (_failureHandler != null) {
+					_failureHandler.tickFailed(e);
+				}
+			}
+
+			long end = System.nanoTime();
+			long period = _periodNanos;
+
+			_tickCount++;
+			_latenessSumNanos += lateness;
+			if (lateness > _latenessMaxNanos) {
+				_latenessMaxNanos = lateness;
+			}
+			if (end > deadline + period) {
+				_overrunCount++;
+			}
+
+			// Next deadline on the grid; if more than kMaxCatchUpTicks have already passed, drop the
+			// 	oldest so the catch-up ends near the present.
+			deadline += period;
+			long behind = (end - deadline) / period;
+			if (behind > kMaxCatchUpTicks) {
+				long skipped = behind - kMaxCatchUpTicks;
+				deadline += skipped * period;
+				_skippedCount += skipped;
+			}
+		}
+	}
+
+	// Sleeps until shortly before `deadline`, then spins until it; returns early if `self` is stopped.
+	private void waitUntil(long deadline, Thread self) {
+		long remaining;
+		while ((remaining = deadline - System.nanoTime()) > kSpinNanos && _thread == self) {
+			LockSupport.parkNanos(remaining - kSpinNanos);
+		}
+		while (deadline - System.nanoTime() > 0 && _thread == self) {
+			Thread.yield();
+		}
+	}
+}
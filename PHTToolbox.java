@@ -3,6 +3,6 @@ package PHT;
 /** Holds constants and convenience methods for the PHT package. */
 public class PHTToolbox {
 	protected static final double kDistanceToTimeRatio = 100.;
-	// Sounds past this distance will be silenced.
-	protected static double kSpatializationDistanceMaximum = 10.;
+	// Default distance past which sounds will be silenced (see PHTEngine.setMaximumDistance()).
+	protected static final double kSpatializationDistanceMaximum = 10.;
 }
\ No newline at end of file
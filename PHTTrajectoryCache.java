@@ -0,0 +1,111 @@
+package PHT;
+
+import java.util.*;
+
+/** Least recently used cache of PHTGainTrajectories, so that sweeps along the same line share one set of
+ *	samples. Sweeps are matched by their endpoints, rounded to a quantum, and the number of intervals;
+ *	the trajectory is sampled between the rounded endpoints, so whichever sweep builds it, it is the same.
+ *	Entries sampled at an older rig version are rebuilt on lookup.
+ *
+ *	Lookups may come from the threads of a parallel tick, so the map is guarded by this cache's lock.
+ *	Trajectories are built outside the lock; two threads missing at once may both build one. */
+public class PHTTrajectoryCache {
+	private final PHTEngine _engine;
+	private final double _spacing; // distance between samples
+	private final double _quantum; // endpoints are rounded to multiples of this
+	private final Map<Key, PHTGainTrajectory> _entries;
+
+	/** Most intervals a trajectory is sampled at, however long its line. */
+	public static final int kMaxIntervals = 1024;
+
+	/** Constructs an empty PHTTrajectoryCache.
+	 *
+	 *	@param 	engine 		the PHTEngine whose gains are sampled
+	 *	@param 	spacing 	the distance between samples along a trajectory; must be positive
+	 *	@param 	capacity 	the most trajectories kept; the least recently used is dropped past it
+	 */
+	public PHTTrajectoryCache(PHTEngine engine, double spacing, final int capacity) {
+		if (!(spacing > 0.) || capacity <= 0) {
+			throw new IllegalArgumentException("Trajectory spacing and cache capacity must be positive.");
+		}
+
+		_engine = engine;
+		_spacing = spacing;
+		_quantum = spacing / 8.;
+		_entries = new LinkedHashMap<Key, PHTGainTrajectory>(16, 0.75f, true) {
+			protected boolean removeEldestEntry(Map.Entry<Key, PHTGainTrajectory> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+
+	public double getSpacing() {
+		return _spacing;
+	}
+
+	/** Returns the number of trajectories cached. */
+	public synchronized int size() {
+		return _entries.size();
+	}
+
+	/** Drops every cached trajectory. */
+	public synchronized void clear() {
+		_entries.clear();
+	}
+
+	/** Returns the trajectory of the line from `start` to `end` at the engine's current rig version,
+	 *	building it if it is not cached. */
+	public PHTGainTrajectory trajectory(double[] start, double[] end) {
+		Key key = new Key();
+		double length = 0.;
+		for (int d = 0; d < 3; d++) {
+			key._start[d] = Math.round(start[d] / _quantum);
+			key._end[d] = Math.round(end[d] / _quantum);
+			double extent = (key._end[d] - key._start[d]) * _quantum;
+			length += extent * extent;
+		}
+		key._intervals = (int)Math.max(1, Math.min(kMaxIntervals, Math.ceil(Math.sqrt(length) / _spacing)));
+
+		long rigVersion = _engine.rigVersion();
+		PHTGainTrajectory result;
+		synchronized (this) {
+			result = _entries.get(key);
+		}
+		if (result != null && result.rigVersion() == rigVersion) {
+			return result;
+		}
+
+		double[] quantizedStart = new double[3];
+		double[] quantizedEnd = new double[3];
+		for (int d = 0; d < 3; d++) {
+			quantizedStart[d] = key._start[d] * _quantum;
+			quantizedEnd[d] = key._end[d] * _quantum;
+		}
+		result = new PHTGainTrajectory(_engine, quantizedStart, quantizedEnd, key._intervals);
+
+		synchronized (this) {
+			_entries.put(key, result);
+		}
+		return result;
+	}
+
+	/* ------ Helpers ------------------------------------- */
+
+	private static class Key {
+		final long[] _start = new long[3];
+		final long[] _end = new long[3];
+		int _intervals;
+
+		public boolean equals(Object other) {
+			if (!(other instanceof Key)) {
+				return false;
+			}
+			Key key = (Key)other;
+			return _intervals == key._intervals && Arrays.equals(_start, key._start) && Arrays.equals(_end, key._end);
+		}
+
+		public int hashCode() {
+			return 31 * (31 * Arrays.hashCode(_start) + Arrays.hashCode(_end)) + _intervals;
+		}
+	}
+}
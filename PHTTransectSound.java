@@ -1,94 +1,158 @@
 package PHT;
 
 import java.util.*;
-import com.cycling74.max.*;
 
 /* Represents a sound that moves from a single speaker to a single other speaker. */
 public class PHTTransectSound implements PHTSound {
-	private final String _id;
-	private final long _lifespan;
+	private String _id;
+	private long _lifespan;
 	private long _age;
 	private long _birthTime; // in ms
 
-	private PHTSpeaker _src; // momentary source speaker for travel from speaker to speaker
-	private PHTSpeaker _dst; // momentary destination speaker for travel from speaker to speaker
+	private final PHTEngine _engine;
+	private int _linkLayer; // interned id of the link layer this sound travels on
+
+	private int _src; // momentary source speaker slot for travel from speaker to speaker
+	private int _dst; // momentary destination speaker slot for travel from speaker to speaker
 	private long _startTime; // in ms
 	private long _travelTime; // time for the current travel in ms
 	private double _progress; // progress in [0., 1.] of current travel
 
-	private Map<PHTSpeaker, Double> _speakerMap; // map of PHTSpeaker to gain factor
+	private final PHTGainMap _speakerMap; // map of speaker slot to gain factor
 
-	private java.util.Random _random;
+	private final java.util.Random _random;
 
 	/** Constructor for immortal transect sound.
 	 *
 	 *	@param	id 					the String ID of this sound
 	 *	@param 	initialPosition		the initial speaker for this sound
+	 *	@param 	engine 				the PHTEngine this sound lives in, for its clock and random numbers
+	 */
+	public PHTTransectSound(String id, PHTSpeaker initialPosition, PHTEngine engine) {
+		this(id, initialPosition, Long.MAX_VALUE, engine);
+	}
+
+	/** Constructs a PHTTransectSound with a lifespan, traveling on the default link layer.
+	 *
+	 *	@param	id 					the String ID of this sound
+	 *	@param 	initialPosition		the initial speaker for this sound
+	 *	@param 	lifespan			the duration of this sound, in milliseconds
+	 *	@param 	engine 				the PHTEngine this sound lives in, for its clock and random numbers
 	 */
-	public PHTTransectSound(String id, PHTSpeaker initialPosition) {
-		this(id, initialPosition, Long.MAX_VALUE);
+	public PHTTransectSound(String id, PHTSpeaker initialPosition, long lifespan, PHTEngine engine) {
+		this(id, initialPosition, lifespan, PHTLinkGraph.kDefaultLayerId, engine);
 	}
 
-	/** Constructs a PHTTransectSound with a lifespan.
+	/** Constructs a PHTTransectSound with a lifespan, traveling on a given link layer.
 	 *
 	 *	@param	id 					the String ID of this sound
 	 *	@param 	initialPosition		the initial speaker for this sound
 	 *	@param 	lifespan			the duration of this sound, in milliseconds
+	 *	@param 	linkLayer			the id of the link layer to travel on (see PHTLinkGraph.layerId())
+	 *	@param 	engine 				the PHTEngine this sound lives in, for its clock and random numbers
+	 */
+	public PHTTransectSound(String id, PHTSpeaker initialPosition, long lifespan, int linkLayer, PHTEngine engine) {
+		this(engine);
+		init(id, initialPosition, lifespan, linkLayer);
+	}
+
+	/** Constructs a sound to be initialized with init(), for pooling.
+	 *	@param 	engine 				the PHTEngine this sound lives in, for its clock and random numbers
 	 */
-	public PHTTransectSound(String id, PHTSpeaker initialPosition, long lifespan) {
+	protected PHTTransectSound(PHTEngine engine) {
+		_engine = engine;
+		_speakerMap = new PHTGainMap();
+		_random = new java.util.Random(0);
+	}
+
+	/** Returns a transect sound with a lifespan, traveling on a given link layer, reusing one from the
+	 *	engine's pool of dead transect sounds if there is one. Arguments are as for the constructor. */
+	public static PHTTransectSound obtain(String id, PHTSpeaker initialPosition, long lifespan, int linkLayer, PHTEngine engine) {
+		PHTTransectSound result = engine.recycled(PHTTransectSound.class);
+		if (result == null) {
+			result = new PHTTransectSound(engine);
+		}
+		result.init(id, initialPosition, lifespan, linkLayer);
+		return result;
+	}
+
+	/** (Re)starts this sound at `initialPosition`, as a new sound born now. */
+	protected void init(String id, PHTSpeaker initialPosition, long lifespan, int linkLayer) {
 		_id = id;
 		_age = 0;
 		_lifespan = lifespan;
 
-		_src = initialPosition;
-		_dst = initialPosition;
+		_linkLayer = linkLayer;
+
+		_src = initialPosition.getSlot();
+		_dst = initialPosition.getSlot();
 		_progress = 1.;
-		_startTime = System.currentTimeMillis();
-		_birthTime = System.currentTimeMillis();
+		_travelTime = 0;
+		_startTime = _engine.now();
+		_birthTime = _engine.now();
 
-		_speakerMap = new HashMap<PHTSpeaker, Double>();
+		_speakerMap.clear();
 
-		_random = new java.util.Random();
+		_random.setSeed(_engine.newSeed());
 	}
 
-	/** Chooses next speaker for sound to travel to. 
+	/** Chooses the link for sound to travel next. 
 	 * 
-	 * 	@param 	from		the speaker from which the sound is traveling
-	 *	@param	linkLayer	the ID for the link layer from which to draw the link to follow
+	 * 	@param 	from		the slot of the speaker from which the sound is traveling
+	 *	@param	linkLayer	the id of the link layer from which to draw the link to follow
+	 *	@returns 			an edge of `linkLayer` in the rig's PHTLinkGraph, or -1 to stay at `from`
 	 */
-	protected PHTSpeaker chooseNextDestination(PHTSpeaker from, String linkLayer) {
-		return from.randomLinked(linkLayer);
+	protected int chooseNextLink(int from, int linkLayer) {
+		return _engine.speakers().links().randomEdge(linkLayer, from, _random);
+	}
+
+	protected PHTEngine engine() {
+		return _engine;
 	}
 
 	/* ------ PHTSound ------------------------------------- */
 
-	/** Updates this sound's speaker map, relying on computer's clock. 
-	 *	@returns 	true if sound is still alive, else false.
+	/** Updates this sound's speaker map for time `now`.
+	 *	@param 	now 	the engine time of this tick, in ms
+	 *	@returns 		true if sound is still alive, else false.
 	 */
-	public boolean act() {
+	public boolean act(long now) {
 		// Update age.
-		_age = System.currentTimeMillis() - _birthTime;
+		_age = now - _birthTime;
 
 		// Check for death.
 		if (willDie()) {
 			return false;
 		}
 
+		// Step off any speaker removed from the rig since the last tick.
+		if (!isPresent(_dst) && !rehome()) {
+			return false;
+		}
+
 		// Choose new destination if necessary.
 		if (_progress >= 1.) {
 			_src = _dst;
-			_dst = chooseNextDestination(_src, "--default");
 			_progress = 0.;
-			_travelTime = (long)(distance3D(_src.getPosition(), _dst.getPosition()) * PHTToolbox.kDistanceToTimeRatio);
 
-			_startTime = System.currentTimeMillis();
+			int link = chooseNextLink(_src, _linkLayer);
+			if (link >= 0) {
+				PHTLinkGraph links = _engine.speakers().links();
+				_dst = links.target(_linkLayer, link);
+				_travelTime = links.travelTime(_linkLayer, link);
+			} else {
+				_travelTime = 0;
+			}
+
+			_startTime = now;
 
 			// DEBUG: Posting which sound is traveling where.
-			// post(id() + ": moving from " + _src.getIndex() + " to " + _dst.getIndex() + " over " + _travelTime + " ms.");
+			// post(id() + ": moving from " + _src + " to " + _dst + " over " + _travelTime + " ms.");
 		}
 
 		// Update progression.
-		_progress = ((double)(System.currentTimeMillis() - _startTime) / (double)_travelTime);
+		// A zero-length hop (e.g. staying put at a goal) is complete at once.
+		_progress = _travelTime > 0 ? ((double)(now - _startTime) / (double)_travelTime) : 1.;
 
 		// DEBUG: Outputting progress / age for a single sound.
 		// outlet(0, "progress", new Atom[] {Atom.newAtom(_progress)});
@@ -100,20 +164,39 @@ public class PHTTransectSound implements PHTSound {
 	}
 
 	/** Returns a map of speakers to gain factor.
-	 *  @returns 	a Map of PHTSpeaker to the corresponding gain factor (between 0. and 1.).
+	 *  @returns 	a PHTGainMap of speaker slot to the corresponding gain factor (between 0. and 1.).
 	 */
-	public Map<PHTSpeaker, Double> speakerMap() {
+	public PHTGainMap gainMap() {
 		return _speakerMap;
 	}
 
+	/** Writes the gains this sound will have at engine time `time`, further along its current hop. The hop is
+	 *	not left early: past its end, the sound stays at its destination. */
+	public void gainMapAt(double time, PHTGainMap result) {
+		double progress = _travelTime > 0 ? (time - _startTime) / _travelTime : 1.;
+		writeSpeakerMap(Math.max(0., Math.min(1., progress)), result);
+	}
+
 	/** Returns this sound's String ID. */
 	public String id() {
 		return _id;
 	}
 
 	/** Called on kill. */
-	public Atom[] kill() {
-		return new Atom[] { Atom.newAtom(_id), Atom.newAtom("killed") };
+	public String kill() {
+		return "killed";
+	}
+
+	/** Moves the hop under way onto the new rig: to the same speakers where they remain, or else to the
+	 *	speakers nearest where they were. */
+	public void rigRenumbered(PHTSpeakerStore from) {
+		_src = _engine.renumberedSlot(from, _src);
+		_dst = _engine.renumberedSlot(from, _dst);
+	}
+
+	public void reset() {
+		_id = null;
+		_speakerMap.clear();
 	}
 
 	/* ------ Helpers ------------------------------------- */
@@ -122,25 +205,49 @@ public class PHTTransectSound implements PHTSound {
 		return _age > _lifespan;
 	}
 
-	private void updateSpeakerMap() {
-		_speakerMap.clear();
-		_speakerMap.put(_src, 1. - _progress);
-		_speakerMap.put(_dst, _progress);
+	// True if `slot` still holds a speaker of the engine's rig.
+	private boolean isPresent(int slot) {
+		PHTSpeakerStore speakers = _engine.speakers();
+		return slot >= 0 && slot < speakers.size() && speakers.isActive(slot);
 	}
 
-	private double distance3D(double[] p0, double[] p1) {
-		if (p0.length != 3 || p1.length != 3) {
-			return -1;
+	// Called when the destination speaker has been removed: settles back on the source speaker, or failing
+	// 	that on the speaker nearest the destination, ready to choose a new link. Returns false if the rig
+	// 	has no speakers left.
+	private boolean rehome() {
+		if (isPresent(_src)) {
+			_dst = _src;
+		} else {
+			PHTSpeakerStore speakers = _engine.speakers();
+			PHTSpeaker nearest = _dst >= 0 && _dst < speakers.size()
+				? _engine.nearest(speakers.getX(_dst), speakers.getY(_dst), speakers.getZ(_dst))
+				: null;
+
+			if (nearest == null) {
+				return false;
+			}
+			_dst = nearest.getSlot();
 		}
 
-		return distance3D(p0[0], p0[1], p0[2], p1[0], p1[1], p1[2]);
+		_progress = 1.;
+		return true;
+	}
+
+	private void updateSpeakerMap() {
+		writeSpeakerMap(_progress, _speakerMap);
 	}
 
-	private double distance3D(double x0, double y0, double z0, double x1, double y1, double z1) {
-		double deltaX = x1 - x0;
-		double deltaY = y1 - y0;
-		double deltaZ = z1 - z0;
+	// Writes the gains at `progress` along the hop from _src to _dst into `result`, leaving out either end
+	// 	if it is below the engine's silence threshold.
+	private void writeSpeakerMap(double progress, PHTGainMap result) {
+		double threshold = _engine.getSilenceThreshold();
 
-		return (double)Math.sqrt(deltaX * deltaX + deltaY * deltaY + deltaZ * deltaZ);
+		result.clear();
+		if (_src != _dst && isPresent(_src) && 1. - progress >= threshold) {
+			result.add(_src, 1. - progress);
+		}
+		if (progress >= threshold) {
+			result.add(_dst, progress);
+		}
 	}
-}
\ No newline at end of file
+}
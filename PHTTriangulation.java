@@ -0,0 +1,665 @@
+package PHT;
+
+import java.util.*;
+
+/** Triangulation of the speakers of a rig, for vector-base amplitude panning (VBAP): a point is panned over
+ *	the two or three speakers of the triangle it falls in.
+ *
+ *	Speakers are projected onto the plane that best fits them (through their centroid, along their two
+ *	principal axes) and Delaunay-triangulated there, so flat rigs at any angle, and rigs that are roughly
+ *	flat, triangulate as expected. A uniform grid over the plane finds the triangle under a point, and
+ *	points outside the rig are panned onto its nearest edge. Speakers in a line are panned between
+ *	neighbouring pairs instead. A speaker whose projection coincides with another's is left out.
+ *
+ *	A triangulation describes the speakers as they were when it was built; the engine builds a new one after
+ *	the rig changes. Lookups are safe from several threads at once. */
+public class PHTTriangulation {
+	// Variance along the second principal axis, relative to the first, below which a rig is a line.
+	private static final double kFlatness = 1e-9;
+
+	// Slack on barycentric coordinates, so points on a shared edge are found in either triangle.
+	private static final double kEdgeTolerance = 1e-9;
+
+	// Cells per side of the lookup grid are capped at this.
+	private static final int kMaximumGridCells = 2048;
+
+	private final PHTSpeakerStore _speakers;
+
+	// Plane of projection: origin and two unit axes. A line rig uses only _axisU.
+	private final double[] _origin;
+	private final double[] _axisU;
+	private final double[] _axisV;
+
+	// Line rigs: speaker slots in order along _axisU, and their positions along it. Null for a plane.
+	private final int[] _lineSlots;
+	private final double[] _linePositions;
+
+	// Plane rigs: triangle t has corners _corners[3t .. 3t + 2] (speaker slots), counterclockwise in the
+	// 	plane, projected to _cornerU / _cornerV in the same layout. Null for a line.
+	private final int[] _corners;
+	private final double[] _cornerU, _cornerV;
+
+	// Grid over the plane: cell c lists triangles _cellTriangles[_cellStart[c]] up to _cellTriangles[_cellStart[c + 1]].
+	private double _gridMinU, _gridMinV, _gridCellSize;
+	private int _gridCellsU, _gridCellsV;
+	private int[] _cellStart;
+	private int[] _cellTriangles;
+
+	/** Triangulates the active speakers of `speakers`. */
+	public PHTTriangulation(PHTSpeakerStore speakers) {
+		_speakers = speakers;
+
+		int[] slots = activeSlots(speakers);
+		int count = slots.length;
+
+		_origin = new double[3];
+		for (int slot : slots) {
+			_origin[0] += speakers.getX(slot) / count;
+			_origin[1] += speakers.getY(slot) / count;
+			_origin[2] += speakers.getZ(slot) / count;
+		}
+
+		double[][] axes = new double[3][];
+		double[] variances = principalAxes(speakers, slots, _origin, axes);
+		_axisU = axes[0];
+		_axisV = axes[1];
+
+		double[] u = new double[count];
+		double[] v = new double[count];
+		for (int i = 0; i < count; i++) {
+			u[i] = along(speakers.getX(slots[i]), speakers.getY(slots[i]), speakers.getZ(slots[i]), _axisU);
+			v[i] = along(speakers.getX(slots[i]), speakers.getY(slots[i]), speakers.getZ(slots[i]), _axisV);
+		}
+
+		boolean line = count < 3 || variances[1] <= kFlatness * variances[0];
+		int[] triangles = line ? new int[0] : delaunay(u, v);
+
+		if (triangles.length == 0) {
+			Integer[] order = sortedBy(u);
+
+			_lineSlots = new int[count];
+			_linePositions = new double[count];
+			for (int i = 0; i < count; i++) {
+				_lineSlots[i] = slots[order[i]];
+				_linePositions[i] = u[order[i]];
+			}
+
+			_corners = null;
+			_cornerU = null;
+			_cornerV = null;
+			return;
+		}
+
+		_lineSlots = null;
+		_linePositions = null;
+
+		_corners = new int[triangles.length];
+		_cornerU = new double[triangles.length];
+		_cornerV = new double[triangles.length];
+		for (int i = 0; i < triangles.length; i++) {
+			_corners[i] = slots[triangles[i]];
+			_cornerU[i] = u[triangles[i]];
+			_cornerV[i] = v[triangles[i]];
+		}
+
+		buildGrid(u, v);
+	}
+
+	/** Returns the number of triangles, or 0 for a rig panned along a line. */
+	public int triangleCount() {
+		return _corners == null ? 0 : _corners.length / 3;
+	}
+
+	/** Pans the point `position` over the speakers of the triangle (or, for a line rig, the pair) it lies in,
+	 *	writing constant-power gains into `result`: at most three speakers, whose squared gains sum to 1.
+	 *	A point off the plane of the rig is panned as if projected onto it.
+	 *
+	 *	@param 	position 	{ x, y, z } of the point
+	 *	@param 	result 		receives speaker slot to gain factor, replacing its contents; left empty if the
+	 *						rig has no speakers
+	 *	@returns 			the distance from `position` to where the gains place the sound, between the
+	 *						speakers panned over; 0 within a flat rig, more off or outside it.
+	 */
+	public double pan(double[] position, PHTGainMap result) {
+		result.clear();
+
+		double u = along(position[0], position[1], position[2], _axisU);
+
+		if (_corners == null) {
+			return panAlongLine(position, u, result);
+		}
+
+		double v = along(position[0], position[1], position[2], _axisV);
+
+		// Search the point's cell, then rings of cells around it until some triangle turns up. The best
+		// 	triangle holds the point, or failing that has the least negative barycentric coordinate.
+		int cellU = cellAlong(u, _gridMinU, _gridCellsU);
+		int cellV = cellAlong(v, _gridMinV, _gridCellsV);
+
+		int best = -1;
+		double bestMinimum = -Double.MAX_VALUE;
+		double bestW0 = 0., bestW1 = 0.;
+
+		int maximumRing = Math.max(_gridCellsU, _gridCellsV);
+		for (int ring = 0; ring <= maximumRing && best < 0; ring++) {
+			for (int cv = cellV - ring; cv <= cellV + ring; cv++) {
+				if (cv < 0 || cv >= _gridCellsV) {
+					continue;
+				}
+
+				// Only the outline of the ring is new.
+				int stepU = (cv == cellV - ring || cv == cellV + ring) ? 1 : Math.max(1, 2 * ring);
+				for (int cu = cellU - ring; cu <= cellU + ring; cu += stepU) {
+					if (cu < 0 || cu >= _gridCellsU) {
+						continue;
+					}
+
+					int c = cv * _gridCellsU + cu;
+					for (int i = _cellStart[c]; i < _cellStart[c + 1]; i++) {
+						int t = 3 * _cellTriangles[i];
+
+						double u0 = _cornerU[t], v0 = _cornerV[t];
+						double u1 = _cornerU[t + 1], v1 = _cornerV[t + 1];
+						double u2 = _cornerU[t + 2], v2 = _cornerV[t + 2];
+
+						double determinant = (v1 - v2) * (u0 - u2) + (u2 - u1) * (v0 - v2);
+						double w0 = ((v1 - v2) * (u - u2) + (u2 - u1) * (v - v2)) / determinant;
+						double w1 = ((v2 - v0) * (u - u2) + (u0 - u2) * (v - v2)) / determinant;
+						double minimum = Math.min(w0, Math.min(w1, 1. - w0 - w1));
+
+						if (minimum > bestMinimum) {
+							best = t;
+							bestMinimum = minimum;
+							bestW0 = w0;
+							bestW1 = w1;
+						}
+					}
+
+					if (bestMinimum >= -kEdgeTolerance) {
+						break;
+					}
+				}
+			}
+		}
+
+		double w0 = bestW0;
+		double w1 = bestW1;
+		double w2 = 1. - bestW0 - bestW1;
+
+		// Outside the rig, move the point to the nearest point of the triangle: on the edge it lies beyond,
+		// 	or at the corner if it lies beyond two.
+		if (bestMinimum < -kEdgeTolerance) {
+			if (w0 < 0. && w1 >= 0. && w2 >= 0.) {
+				w1 = alongEdge(best + 2, best + 1, u, v);
+				w2 = 1. - w1;
+				w0 = 0.;
+			} else if (w1 < 0. && w0 >= 0. && w2 >= 0.) {
+				w2 = alongEdge(best, best + 2, u, v);
+				w0 = 1. - w2;
+				w1 = 0.;
+			} else if (w2 < 0. && w0 >= 0. && w1 >= 0.) {
+				w0 = alongEdge(best + 1, best, u, v);
+				w1 = 1. - w0;
+				w2 = 0.;
+			} else {
+				w0 = w0 > 0. ? 1. : 0.;
+				w1 = w1 > 0. ? 1. : 0.;
+				w2 = w2 > 0. ? 1. : 0.;
+			}
+		}
+		double sum = w0 + w1 + w2;
+
+		double norm = 1. / Math.sqrt(w0 * w0 + w1 * w1 + w2 * w2);
+		addGain(_corners[best], w0 * norm, result);
+		addGain(_corners[best + 1], w1 * norm, result);
+		addGain(_corners[best + 2], w2 * norm, result);
+
+		return distance(position, _corners[best], w0 / sum, _corners[best + 1], w1 / sum, _corners[best + 2], w2 / sum);
+	}
+
+	/* ------ Helpers ------------------------------------- */
+
+	// Weight of corner `to` at the point of the edge from corner `from` to corner `to` (both indices into
+	// 	_cornerU / _cornerV) nearest ( `u`, `v` ).
+	private double alongEdge(int from, int to, double u, double v) {
+		double edgeU = _cornerU[to] - _cornerU[from];
+		double edgeV = _cornerV[to] - _cornerV[from];
+		double t = ((u - _cornerU[from]) * edgeU + (v - _cornerV[from]) * edgeV) / (edgeU * edgeU + edgeV * edgeV);
+		return Math.max(0., Math.min(1., t));
+	}
+
+	// Pans `position`, at `u` along the line of speakers, between the two either side of it.
+	private double panAlongLine(double[] position, double u, PHTGainMap result) {
+		int count = _lineSlots.length;
+		if (count == 0) {
+			return 0.;
+		}
+
+		int below = Arrays.binarySearch(_linePositions, u);
+		if (below < 0) {
+			below = -below - 2; // last position below u
+		}
+
+		if (below < 0 || below >= count - 1 || _linePositions[below + 1] == _linePositions[below]) {
+			int slot = _lineSlots[Math.max(0, Math.min(count - 1, below))];
+			result.add(slot, 1.);
+			return distance(position, slot, 1., slot, 0., slot, 0.);
+		}
+
+		double w1 = (u - _linePositions[below]) / (_linePositions[below + 1] - _linePositions[below]);
+		double w0 = 1. - w1;
+
+		double norm = 1. / Math.sqrt(w0 * w0 + w1 * w1);
+		addGain(_lineSlots[below], w0 * norm, result);
+		addGain(_lineSlots[below + 1], w1 * norm, result);
+
+		return distance(position, _lineSlots[below], w0, _lineSlots[below + 1], w1, _lineSlots[below], 0.);
+	}
+
+	// Distance from `position` to the weighted sum of three speaker positions, with weights summing to 1.
+	private double distance(double[] position, int a, double weightA, int b, double weightB, int c, double weightC) {
+		double dx = position[0] - (_speakers.getX(a) * weightA + _speakers.getX(b) * weightB + _speakers.getX(c) * weightC);
+		double dy = position[1] - (_speakers.getY(a) * weightA + _speakers.getY(b) * weightB + _speakers.getY(c) * weightC);
+		double dz = position[2] - (_speakers.getZ(a) * weightA + _speakers.getZ(b) * weightB + _speakers.getZ(c) * weightC);
+		return Math.sqrt(dx * dx + dy * dy + dz * dz);
+	}
+
+	private static void addGain(int slot, double gain, PHTGainMap result) {
+		if (gain > 0.) {
+			result.add(slot, gain);
+		}
+	}
+
+	// Distance of ( `x`, `y`, `z` ) from the origin along `axis`.
+	private double along(double x, double y, double z, double[] axis) {
+		return (x - _origin[0]) * axis[0] + (y - _origin[1]) * axis[1] + (z - _origin[2]) * axis[2];
+	}
+
+	private int cellAlong(double value, double minimum, int cells) {
+		return Math.max(0, Math.min(cells - 1, (int)Math.floor((value - minimum) / _gridCellSize)));
+	}
+
+	// Lays out the lookup grid, about two triangles to a cell, filing each triangle in every cell its
+	// 	bounding box touches.
+	private void buildGrid(double[] u, double[] v) {
+		double minU = Double.MAX_VALUE, minV = Double.MAX_VALUE;
+		double maxU = -Double.MAX_VALUE, maxV = -Double.MAX_VALUE;
+		for (int i = 0; i < u.length; i++) {
+			minU = Math.min(minU, u[i]);
+			minV = Math.min(minV, v[i]);
+			maxU = Math.max(maxU, u[i]);
+			maxV = Math.max(maxV, v[i]);
+		}
+
+		int triangles = triangleCount();
+		double cellSize = Math.sqrt((maxU - minU) * (maxV - minV) * 2. / triangles);
+		cellSize = Math.max(cellSize, Math.max(maxU - minU, maxV - minV) / kMaximumGridCells);
+
+		_gridMinU = minU;
+		_gridMinV = minV;
+		_gridCellSize = cellSize;
+		_gridCellsU = Math.min((int)((maxU - minU) / cellSize), kMaximumGridCells - 1) + 1;
+		_gridCellsV = Math.min((int)((maxV - minV) / cellSize), kMaximumGridCells - 1) + 1;
+
+		int cells = _gridCellsU * _gridCellsV;
+		_cellStart = new int[cells + 1];
+		for (int pass = 0; pass < 2; pass++) {
+			int[] fill = pass == 0 ? null : Arrays.copyOf(_cellStart, cells);
+
+			for (int t = 0; t < triangles; t++) {
+				int u0 = cellAlong(Math.min(_cornerU[3 * t], Math.min(_cornerU[3 * t + 1], _cornerU[3 * t + 2])), minU, _gridCellsU);
+				int u1 = cellAlong(Math.max(_cornerU[3 * t], Math.max(_cornerU[3 * t + 1], _cornerU[3 * t + 2])), minU, _gridCellsU);
+				int v0 = cellAlong(Math.min(_cornerV[3 * t], Math.min(_cornerV[3 * t + 1], _cornerV[3 * t + 2])), minV, _gridCellsV);
+				int v1 = cellAlong(Math.max(_cornerV[3 * t], Math.max(_cornerV[3 * t + 1], _cornerV[3 * t + 2])), minV, _gridCellsV);
+
+				for (int cv = v0; cv <= v1; cv++) {
+					for (int cu = u0; cu <= u1; cu++) {
+						int c = cv * _gridCellsU + cu;
+						if (pass == 0) {
+							_cellStart[c + 1]++;
+						} else {
+							_cellTriangles[fill[c]++] = t;
+						}
+					}
+				}
+			}
+
+			if (pass == 0) {
+				for (int c = 0; c < cells; c++) {
+					_cellStart[c + 1] += _cellStart[c];
+				}
+				_cellTriangles = new int[_cellStart[cells]];
+			}
+		}
+	}
+
+	private static int[] activeSlots(PHTSpeakerStore speakers) {
+		int[] result = new int[speakers.count()];
+		int count = 0;
+		for (int slot = 0; slot < speakers.size(); slot++) {
+			if (speakers.isActive(slot)) {
+				result[count++] = slot;
+			}
+		}
+		return result;
+	}
+
+	// Indices of `keys` in increasing order of key.
+	private static Integer[] sortedBy(final double[] keys) {
+		Integer[] order = new Integer[keys.length];
+		for (int i = 0; i < order.length; i++) {
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return Double.compare(keys[a], keys[b]);
+			}
+		});
+		return order;
+	}
+
+	// Finds the principal axes of the speakers in `slots` about `origin`, by Jacobi rotations of their
+	// 	covariance matrix. Writes unit axes into `axes` in decreasing order of variance and returns the variances.
+	private static double[] principalAxes(PHTSpeakerStore speakers, int[] slots, double[] origin, double[][] axes) {
+		double[][] a = new double[3][3];
+		for (int slot : slots) {
+			double[] d = new double[] {
+				speakers.getX(slot) - origin[0], speakers.getY(slot) - origin[1], speakers.getZ(slot) - origin[2]
+			};
+			for (int i = 0; i < 3; i++) {
+				for (int j = 0; j < 3; j++) {
+					a[i][j] += d[i] * d[j];
+				}
+			}
+		}
+
+		double[][] vectors = new double[][] { { 1., 0., 0. }, { 0., 1., 0. }, { 0., 0., 1. } };
+
+		for (int sweep = 0; sweep < 50; sweep++) {
+			double offDiagonal = Math.abs(a[0][1]) + Math.abs(a[0][2]) + Math.abs(a[1][2]);
+			if (offDiagonal <= 1e-15 * (Math.abs(a[0][0]) + Math.abs(a[1][1]) + Math.abs(a[2][2]))) {
+				break;
+			}
+
+			for (int p = 0; p < 2; p++) {
+				for (int q = p + 1; q < 3; q++) {
+					if (a[p][q] == 0.) {
+						continue;
+					}
+
+					double theta = (a[q][q] - a[p][p]) / (2. * a[p][q]);
+					double t = Math.signum(theta) / (Math.abs(theta) + Math.sqrt(theta * theta + 1.));
+					if (theta == 0.) {
+						t = 1.;
+					}
+					double c = 1. / Math.sqrt(t * t + 1.);
+					double s = t * c;
+
+					// a = Jt a J, for the rotation J in the (p, q) plane.
+					for (int k = 0; k < 3; k++) {
+						double akp = a[k][p];
+						double akq = a[k][q];
+						a[k][p] = c * akp - s * akq;
+						a[k][q] = s * akp + c * akq;
+					}
+					for (int k = 0; k < 3; k++) {
+						double apk = a[p][k];
+						double aqk = a[q][k];
+						a[p][k] = c * apk - s * aqk;
+						a[q][k] = s * apk + c * aqk;
+					}
+					for (int k = 0; k < 3; k++) {
+						double vkp = vectors[k][p];
+						double vkq = vectors[k][q];
+						vectors[k][p] = c * vkp - s * vkq;
+						vectors[k][q] = s * vkp + c * vkq;
+					}
+				}
+			}
+		}
+
+		Integer[] order = sortedBy(new double[] { -a[0][0], -a[1][1], -a[2][2] });
+
+		double[] variances = new double[3];
+		for (int i = 0; i < 3; i++) {
+			int column = order[i];
+			variances[i] = Math.max(0., a[column][column]);
+			axes[i] = new double[] { vectors[0][column], vectors[1][column], vectors[2][column] };
+		}
+		return variances;
+	}
+
+	// Delaunay triangulation of the points ( `u`[i], `v`[i] ) by Bowyer-Watson insertion, inside a super
+	// 	triangle that is dropped at the end. Returns the corners (point indices) of each triangle,
+	// 	counterclockwise, three to a triangle; empty if the points are all in a line.
+	private static int[] delaunay(double[] u, double[] v) {
+		int count = u.length;
+
+		double minU = Double.MAX_VALUE, minV = Double.MAX_VALUE;
+		double maxU = -Double.MAX_VALUE, maxV = -Double.MAX_VALUE;
+		for (int i = 0; i < count; i++) {
+			minU = Math.min(minU, u[i]);
+			minV = Math.min(minV, v[i]);
+			maxU = Math.max(maxU, u[i]);
+			maxV = Math.max(maxV, v[i]);
+		}
+		double span = Math.max(maxU - minU, maxV - minV);
+		if (span == 0.) {
+			return new int[0];
+		}
+		double midU = (minU + maxU) / 2.;
+		double midV = (minV + maxV) / 2.;
+
+		Mesh mesh = new Mesh(Arrays.copyOf(u, count + 3), Arrays.copyOf(v, count + 3));
+		mesh.u[count] = midU - 20. * span;
+		mesh.v[count] = midV - span;
+		mesh.u[count + 1] = midU + 20. * span;
+		mesh.v[count + 1] = midV - span;
+		mesh.u[count + 2] = midU;
+		mesh.v[count + 2] = midV + 20. * span;
+		mesh.addTriangle(count, count + 1, count + 2, -1, -1, -1);
+
+		// Inserting points in a snaking row order over a coarse grid keeps each search for the triangle
+		// 	under the next point short.
+		int side = Math.max(1, (int)Math.sqrt(count / 4.));
+		double[] keys = new double[count];
+		for (int i = 0; i < count; i++) {
+			int row = Math.min(side - 1, (int)((v[i] - minV) / span * side));
+			int column = Math.min(side - 1, (int)((u[i] - minU) / span * side));
+			keys[i] = row * side + (row % 2 == 0 ? column : side - 1 - column);
+		}
+
+		for (int i : sortedBy(keys)) {
+			mesh.insert(i);
+		}
+
+		int[] result = new int[3 * mesh.triangles];
+		int size = 0;
+		for (int t = 0; t < mesh.triangles; t++) {
+			int a = mesh.corners[3 * t], b = mesh.corners[3 * t + 1], c = mesh.corners[3 * t + 2];
+			if (!mesh.dead[t] && a < count && b < count && c < count
+				&& orientation(mesh.u, mesh.v, a, b, c) > 0.) {
+				result[size++] = a;
+				result[size++] = b;
+				result[size++] = c;
+			}
+		}
+		return Arrays.copyOf(result, size);
+	}
+
+	// Twice the signed area of triangle ( a, b, c ); positive if counterclockwise.
+	private static double orientation(double[] u, double[] v, int a, int b, int c) {
+		return (u[b] - u[a]) * (v[c] - v[a]) - (v[b] - v[a]) * (u[c] - u[a]);
+	}
+
+	// Triangle mesh under construction by delaunay(). Triangle t has counterclockwise corners
+	// 	corners[3t .. 3t + 2], and neighbors[3t + i] is the triangle across the edge opposite corner i, or -1.
+	private static class Mesh {
+		final double[] u, v;
+		int[] corners;
+		int[] neighbors;
+		boolean[] dead;
+		int triangles;
+
+		// Scratch for insert(): per-triangle visit marks, and the new triangle starting / ending at each point.
+		private int[] _mark;
+		private int _stamp;
+		private final int[] _startingAt, _endingAt;
+		private int[] _cavity;
+		private int _last;
+
+		Mesh(double[] u, double[] v) {
+			this.u = u;
+			this.v = v;
+			corners = new int[48];
+			neighbors = new int[48];
+			dead = new boolean[16];
+			_mark = new int[16];
+			_cavity = new int[16];
+			_startingAt = new int[u.length];
+			_endingAt = new int[u.length];
+		}
+
+		int addTriangle(int a, int b, int c, int acrossA, int acrossB, int acrossC) {
+			if (triangles == dead.length) {
+				corners = Arrays.copyOf(corners, 6 * triangles);
+				neighbors = Arrays.copyOf(neighbors, 6 * triangles);
+				dead = Arrays.copyOf(dead, 2 * triangles);
+				_mark = Arrays.copyOf(_mark, 2 * triangles);
+			}
+
+			int t = triangles++;
+			corners[3 * t] = a;
+			corners[3 * t + 1] = b;
+			corners[3 * t + 2] = c;
+			neighbors[3 * t] = acrossA;
+			neighbors[3 * t + 1] = acrossB;
+			neighbors[3 * t + 2] = acrossC;
+			return t;
+		}
+
+		// Adds point `p`: removes every triangle whose circumcircle holds it and fans the hole out from it.
+		void insert(int p) {
+			int t = locate(p);
+			for (int i = 0; i < 3; i++) {
+				int corner = corners[3 * t + i];
+				if (u[corner] == u[p] && v[corner] == v[p]) {
+					return; // coincides with a point already in
+				}
+			}
+
+			// Flood out from the triangle under `p`; marks of _stamp are in the cavity, of _stamp + 1 are not.
+			_stamp += 2;
+			int cavitySize = 0;
+			_mark[t] = _stamp;
+			_cavity[cavitySize++] = t;
+			for (int i = 0; i < cavitySize; i++) {
+				int current = _cavity[i];
+				for (int e = 0; e < 3; e++) {
+					int next = neighbors[3 * current + e];
+					if (next < 0 || _mark[next] >= _stamp) {
+						continue;
+					}
+					if (inCircumcircle(next, p)) {
+						_mark[next] = _stamp;
+						if (cavitySize == _cavity.length) {
+							_cavity = Arrays.copyOf(_cavity, 2 * cavitySize);
+						}
+						_cavity[cavitySize++] = next;
+					} else {
+						_mark[next] = _stamp + 1;
+					}
+				}
+			}
+
+			// Each edge of the cavity's outline becomes a triangle with `p`.
+			int firstNew = triangles;
+			for (int i = 0; i < cavitySize; i++) {
+				int current = _cavity[i];
+				for (int e = 0; e < 3; e++) {
+					int outside = neighbors[3 * current + e];
+					if (outside >= 0 && _mark[outside] == _stamp) {
+						continue;
+					}
+
+					int a = corners[3 * current + (e + 1) % 3];
+					int b = corners[3 * current + (e + 2) % 3];
+					int created = addTriangle(p, a, b, outside, -1, -1);
+					_startingAt[a] = created;
+					_endingAt[b] = created;
+
+					if (outside >= 0) {
+						for (int f = 0; f < 3; f++) {
+							if (neighbors[3 * outside + f] == current) {
+								neighbors[3 * outside + f] = created;
+							}
+						}
+					}
+				}
+			}
+
+			// New triangle ( p, a, b ) meets the one ending at `a` across ( p, a ), and the one starting at `b` across ( b, p ).
+			for (int created = firstNew; created < triangles; created++) {
+				int a = corners[3 * created + 1];
+				int b = corners[3 * created + 2];
+				neighbors[3 * created + 1] = _startingAt[b];
+				neighbors[3 * created + 2] = _endingAt[a];
+			}
+
+			for (int i = 0; i < cavitySize; i++) {
+				dead[_cavity[i]] = true;
+			}
+			_last = firstNew;
+		}
+
+		// Finds a live triangle holding `p` by walking towards it from the last triangle made.
+		private int locate(int p) {
+			int t = _last;
+			for (int steps = 0; steps < 4 * triangles; steps++) {
+				int next = -1;
+				for (int e = 0; e < 3 && next < 0; e++) {
+					int a = corners[3 * t + (e + 1) % 3];
+					int b = corners[3 * t + (e + 2) % 3];
+					if (orientation(u, v, a, b, p) < 0.) {
+						next = neighbors[3 * t + e];
+					}
+				}
+				if (next < 0) {
+					return t;
+				}
+				t = next;
+			}
+
+			// The walk can cycle on nearly degenerate input; fall back to trying every triangle.
+			int best = t;
+			double bestMinimum = -Double.MAX_VALUE;
+			for (int candidate = 0; candidate < triangles; candidate++) {
+				if (dead[candidate]) {
+					continue;
+				}
+				double minimum = Double.MAX_VALUE;
+				for (int e = 0; e < 3; e++) {
+					minimum = Math.min(minimum, orientation(u, v,
+						corners[3 * candidate + (e + 1) % 3], corners[3 * candidate + (e + 2) % 3], p));
+				}
+				if (minimum > bestMinimum) {
+					best = candidate;
+					bestMinimum = minimum;
+				}
+			}
+			return best;
+		}
+
+		private boolean inCircumcircle(int t, int p) {
+			int a = corners[3 * t], b = corners[3 * t + 1], c = corners[3 * t + 2];
+			double au = u[a] - u[p], av = v[a] - v[p];
+			double bu = u[b] - u[p], bv = v[b] - v[p];
+			double cu = u[c] - u[p], cv = v[c] - v[p];
+
+			double determinant = (au * au + av * av) * (bu * cv - cu * bv)
+								- (bu * bu + bv * bv) * (au * cv - cu * av)
+								+ (cu * cu + cv * cv) * (au * bv - bu * av);
+			return determinant > 0.;
+		}
+	}
+}
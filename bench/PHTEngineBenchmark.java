@@ -0,0 +1,183 @@
+package PHT;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/** JMH benchmarks for the engine hot paths: tick throughput, spatialize cost, gain
+ *	conversion, swarm particles and status encoding.
+ *	Rigs are either one of the layouts in test/ or a synthetic grid of the given number of speakers.
+ *	Build and run from the repository root with bench/build.sh. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class PHTEngineBenchmark {
+	// Distance between neighbouring speakers of a synthetic rig.
+	private static final double kSyntheticSpacing = 2.;
+	// Number of precomputed spatialize() query points; a power of 2.
+	private static final int kQueryPoints = 1024;
+
+	/** "synthetic-<speaker-count>", or the path of a layout file relative to the repository root. */
+	@Param({ "synthetic-100", "synthetic-1000", "synthetic-10000", "test/kitchen-setup", "test/speakers_cycle" })
+	public String rig;
+
+	/** Number of live sounds, half transect and half sweep. */
+	@Param({ "100", "1000" })
+	public int sounds;
+
+	/** Live sounds from which ticks run in parallel; 0 for serial ticks. */
+	@Param({ "0", "256" })
+	public int parallelThreshold;
+
+	private PHTEngine _engine;
+	private PHTStatusEncoder _statusEncoder;
+	private double[][] _queryPoints;
+	private PHTGainMap _gainMap;
+	private PHTGainCurve _gainCurve;
+	private double[] _distances;
+	private double[] _gains;
+	private int _cursor;
+	private PHTSwarmSound _swarm;
+	private long _swarmTime;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		_engine = new PHTEngine();
+		_engine.setParallelThreshold(parallelThreshold);
+
+		if (rig.startsWith("synthetic-")) {
+			addSyntheticRig(_engine, Integer.parseInt(rig.substring("synthetic-".length())));
+		} else {
+			_engine.loadLayout(new File(rig));
+		}
+		_engine.makeSpeakers();
+
+		PHTSpeakerStore speakers = _engine.speakers();
+		double[] min = new double[] { Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE };
+		double[] max = new double[] { -Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE };
+		for (int slot = 0; slot < speakers.size(); slot++) {
+			min[0] = Math.min(min[0], speakers.getX(slot));
+			min[1] = Math.min(min[1], speakers.getY(slot));
+			min[2] = Math.min(min[2], speakers.getZ(slot));
+			max[0] = Math.max(max[0], speakers.getX(slot));
+			max[1] = Math.max(max[1], speakers.getY(slot));
+			max[2] = Math.max(max[2], speakers.getZ(slot));
+		}
+
+		Random random = new Random(1);
+
+		// Sweeps cross the rig slowly enough to stay alive for the whole run.
+		for (int i = 0; i < sounds; i++) {
+			if (i % 2 == 0) {
+				PHTSpeaker initial = speakers.speaker(random.nextInt(speakers.size()));
+				_engine.addSound(new PHTTransectSound("transect-" + i, initial, _engine));
+			} else {
+				_engine.addSound(new PHTSweepSound("sweep-" + i, randomPoint(random, min, max), randomPoint(random, min, max),
+													Integer.MAX_VALUE, _engine));
+			}
+		}
+
+		_queryPoints = new double[kQueryPoints][];
+		for (int i = 0; i < kQueryPoints; i++) {
+			_queryPoints[i] = randomPoint(random, min, max);
+		}
+
+		_gainMap = new PHTGainMap();
+
+		_gainCurve = PHTGainCurve.standard(PHTToolbox.kSpatializationDistanceMaximum);
+		_distances = new double[kQueryPoints];
+		_gains = new double[kQueryPoints];
+		for (int i = 0; i < kQueryPoints; i++) {
+			_distances[i] = random.nextDouble() * PHTToolbox.kSpatializationDistanceMaximum;
+		}
+		_statusEncoder = new PHTStatusEncoder();
+
+		// The swarm is acted on its own, not ticked with the engine's sounds.
+		_swarm = new PHTSwarmSound("swarm", speakers.speaker(0), sounds * 10, Long.MAX_VALUE,
+									PHTLinkGraph.kDefaultLayerId, _engine);
+		_swarmTime = _engine.now();
+
+		// Give every sound a gain map before status encoding is measured.
+		_engine.tick();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		_engine.shutdown();
+	}
+
+	/** One engine tick over all live sounds. */
+	@Benchmark
+	public void tick() {
+		_engine.tick();
+	}
+
+	/** One spatialize() call at a point within the rig's bounds. */
+	@Benchmark
+	public int spatialize() {
+		_engine.spatialize(_queryPoints[_cursor++ & (kQueryPoints - 1)], _gainMap);
+		return _gainMap.size();
+	}
+
+	/** Distance to gain conversion of one block of kQueryPoints distances, spread over the whole curve. */
+	@Benchmark
+	public double[] gainCurve() {
+		System.arraycopy(_distances, 0, _gains, 0, kQueryPoints);
+		_gainCurve.gains(_gains, kQueryPoints);
+		return _gains;
+	}
+
+	/** One act() of a swarm of ten particles per live sound, 10 ms on from the last. */
+	@Benchmark
+	public PHTGainMap swarmAct() {
+		_swarmTime += 10;
+		_swarm.act(_swarmTime);
+		return _swarm.gainMap();
+	}
+
+	/** Status encoding of every live sound, in full mode. */
+	@Benchmark
+	public void statusEncode(Blackhole blackhole) {
+		int rigSize = _engine.speakers().size();
+		for (int i = 0; i < _engine.soundCount(); i++) {
+			blackhole.consume(_statusEncoder.encode(_engine.soundAt(i), rigSize));
+		}
+	}
+
+	/* ------ Helpers ------------------------------------- */
+
+	// Square grid of `count` speakers, each linked to its horizontal and vertical neighbours.
+	private static void addSyntheticRig(PHTEngine engine, int count) {
+		int side = (int)Math.ceil(Math.sqrt(count));
+
+		for (int i = 0; i < count; i++) {
+			int column = i % side;
+			int row = i / side;
+			List<Integer> links = new ArrayList<Integer>();
+
+			if (column > 0) links.add(i - 1);
+			if (column < side - 1 && i + 1 < count) links.add(i + 1);
+			if (row > 0) links.add(i - side);
+			if (i + side < count) links.add(i + side);
+
+			int[] linkedIndices = new int[links.size()];
+			for (int l = 0; l < linkedIndices.length; l++) {
+				linkedIndices[l] = links.get(l);
+			}
+
+			engine.addSpeaker(i, column * kSyntheticSpacing, row * kSyntheticSpacing, 0., linkedIndices);
+		}
+	}
+
+	private static double[] randomPoint(Random random, double[] min, double[] max) {
+		return new double[] { min[0] + random.nextDouble() * (max[0] - min[0]),
+								min[1] + random.nextDouble() * (max[1] - min[1]),
+								min[2] + random.nextDouble() * (max[2] - min[2]) };
+	}
+}
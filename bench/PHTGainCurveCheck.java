@@ -0,0 +1,94 @@
+package PHT;
+
+import java.util.Random;
+
+/** Checks PHTGainCurve's bulk gains() against per-distance gain(), which it must match exactly, and both
+ *	against the rolloff evaluated directly (the Math.pow path for the default curve), which the table
+ *	must follow to within one table step, over random distances for every rolloff.
+ *	Exits with status 1 on the first mismatch. After bench/build.sh has compiled into derived-bench, run
+ *	from the repository root with:
+ *		java -classpath "../../lib/max.jar:derived-bench" PHT.PHTGainCurveCheck */
+public class PHTGainCurveCheck {
+	// Distances drawn per curve; a fifth of them past the maximum distance.
+	private static final int kDistances = 1 << 16;
+
+	// As PHTGainCurve's table resolution; used only to bound interpolation error.
+	private static final int kTableResolution = 4096;
+
+	public static void main(String[] args) {
+		Random random = new Random(1);
+		double[] maximumDistances = new double[] { 1., PHTToolbox.kSpatializationDistanceMaximum, 250. };
+
+		PHTGainCurve.Rolloff[] rolloffs = new PHTGainCurve.Rolloff[] {
+			new PHTGainCurve.LinearDBRolloff(-80.),
+			new PHTGainCurve.LinearDBRolloff(-24.),
+			new PHTGainCurve.InverseSquareRolloff(1.),
+			new PHTGainCurve.InverseSquareRolloff(0.05),
+			new PHTGainCurve.BreakpointRolloff(new double[] { 0., 1., 5., 20. }, new double[] { 1., 0.8, 0.2, 0. }),
+			new PHTGainCurve.BreakpointRolloff(new double[] { 2. }, new double[] { 0.5 })
+		};
+
+		int checked = 0;
+		for (double maximumDistance : maximumDistances) {
+			for (PHTGainCurve.Rolloff rolloff : rolloffs) {
+				checked += check(new PHTGainCurve(rolloff, maximumDistance), random);
+			}
+			checked += check(PHTGainCurve.standard(maximumDistance), random);
+		}
+
+		System.out.println("PHTGainCurve: " + checked + " gains match.");
+	}
+
+	// Checks kDistances random distances on `curve`; returns the number checked.
+	private static int check(PHTGainCurve curve, Random random) {
+		PHTGainCurve.Rolloff rolloff = curve.getRolloff();
+		double maximumDistance = curve.getMaximumDistance();
+		double step = maximumDistance / kTableResolution;
+
+		double[] distances = new double[kDistances];
+		for (int n = 0; n < kDistances; n++) {
+			distances[n] = random.nextDouble() * maximumDistance * 1.25;
+		}
+		// Edges: zero, the last table entry, and the cutoff itself.
+		distances[0] = 0.;
+		distances[1] = maximumDistance - step;
+		distances[2] = maximumDistance;
+
+		double[] gains = distances.clone();
+		curve.gains(gains, kDistances);
+
+		for (int n = 0; n < kDistances; n++) {
+			double distance = distances[n];
+			double gain = curve.gain(distance);
+
+			if (Double.doubleToLongBits(gains[n]) != Double.doubleToLongBits(gain)) {
+				fail(rolloff, maximumDistance, distance, "gains() gave " + gains[n] + ", gain() gave " + gain);
+			}
+
+			if (distance >= maximumDistance) {
+				if (gain != 0.) {
+					fail(rolloff, maximumDistance, distance, "gain past the maximum distance is " + gain);
+				}
+				continue;
+			}
+
+			// Every rolloff here is monotonic, so both the exact gain and the interpolated one lie between
+			// 	the exact gains a table step either side.
+			double exact = rolloff.gain(distance, maximumDistance);
+			double before = rolloff.gain(Math.max(0., distance - step), maximumDistance);
+			double after = rolloff.gain(distance + step, maximumDistance);
+			double tolerance = Math.abs(before - after) + 1e-12;
+
+			if (Math.abs(gain - exact) > tolerance) {
+				fail(rolloff, maximumDistance, distance, "gain() gave " + gain + ", the rolloff gave " + exact);
+			}
+		}
+
+		return kDistances;
+	}
+
+	private static void fail(PHTGainCurve.Rolloff rolloff, double maximumDistance, double distance, String message) {
+		System.out.println(rolloff.getClass().getSimpleName() + " to " + maximumDistance + ", at " + distance + ": " + message);
+		System.exit(1);
+	}
+}
@@ -0,0 +1,248 @@
+package PHT;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.*;
+
+/** Checks what PHTOscSink sends, by receiving it on a loopback socket and parsing every bundle: sizes,
+ *	type tags, IDs and speaker/gain pairs, and that a tick too big for one datagram is split across several
+ *	complete bundles without losing or reordering anything.
+ *	Exits with status 1 on the first mismatch. After bench/build.sh has compiled into derived-bench, run
+ *	from the repository root with:
+ *		java -classpath "../../lib/max.jar:derived-bench" PHT.PHTOscSinkCheck */
+public class PHTOscSinkCheck {
+	// Longest to wait for a datagram, in milliseconds.
+	private static final long kReceiveTimeout = 2000;
+
+	// For the split tick: sounds, and pairs per sound, making a tick several datagrams long.
+	private static final int kSplitSounds = 40;
+	private static final int kSplitPairs = 500;
+
+	// One OSC message as parsed: address, type tags, and arguments (String, Integer, Float or Long).
+	private static class Message {
+		final String _address;
+		final String _typeTags;
+		final List<Object> _args;
+
+		Message(String address, String typeTags, List<Object> args) {
+			_address = address;
+			_typeTags = typeTags;
+			_args = args;
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		DatagramChannel receiver = DatagramChannel.open();
+		receiver.setOption(StandardSocketOptions.SO_RCVBUF, 1 << 22);
+		receiver.bind(new InetSocketAddress("127.0.0.1", 0));
+		receiver.configureBlocking(false);
+
+		PHTOscSink sink = new PHTOscSink((InetSocketAddress)receiver.getLocalAddress());
+		try {
+			checkTick(sink, receiver);
+			checkSplitTick(sink, receiver);
+		} finally {
+			sink.close();
+			receiver.close();
+		}
+
+		System.out.println("PHTOscSink: bundles match.");
+	}
+
+	// A small tick: one bundle holding every kind of message, in the order sent.
+	private static void checkTick(PHTOscSink sink, DatagramChannel receiver) throws IOException {
+		sink.killed("old", "dead");
+		sink.beginTick(1234567890123L);
+		sink.sound("a", 2);
+		sink.pair(3, 0.5);
+		sink.pair(7, 0.25);
+		sink.sound("bb", 0);
+		sink.sound("ccc\u00e9\u4e00", 1);
+		sink.pair(0, 1.);
+		sink.culled(5);
+		sink.endTick();
+
+		List<Message> messages = parseBundle(receive(receiver));
+		expect(messages.size() == 6, "6 messages in the bundle, got " + messages.size());
+
+		expectMessage(messages.get(0), "/pht/killed", ",ss", "old", "dead");
+		expectMessage(messages.get(1), "/pht/tick", ",h", 1234567890123L);
+		expectMessage(messages.get(2), "/pht/gains", ",sifif", "a", 3, 0.5f, 7, 0.25f);
+		expectMessage(messages.get(3), "/pht/gains", ",s", "bb");
+		expectMessage(messages.get(4), "/pht/gains", ",sif", "ccc\u00e9?", 0, 1.f);
+		expectMessage(messages.get(5), "/pht/culled", ",i", 5);
+
+		expect(receiveNone(receiver), "one bundle for a small tick");
+		expect(sink.sentCount() == 1 && sink.droppedCount() == 0, "1 bundle sent, none dropped");
+	}
+
+	// A tick bigger than kMaxDatagram: split into several bundles, which together hold it all, in order.
+	private static void checkSplitTick(PHTOscSink sink, DatagramChannel receiver) throws IOException {
+		long sentBefore = sink.sentCount();
+
+		sink.beginTick(42);
+		for (int n = 0; n < kSplitSounds; n++) {
+			sink.sound("sound-" + n, kSplitPairs);
+			for (int i = 0; i < kSplitPairs; i++) {
+				sink.pair(i * 2, gain(n, i));
+			}
+		}
+		sink.culled(0);
+		sink.endTick();
+
+		List<Message> messages = new ArrayList<Message>();
+		int bundles = 0;
+		// Up to the /pht/culled that ends the tick.
+		while (messages.isEmpty() || !messages.get(messages.size() - 1)._address.equals("/pht/culled")) {
+			ByteBuffer datagram = receive(receiver);
+			expect(datagram.remaining() <= PHTOscSink.kMaxDatagram, "datagram within kMaxDatagram, got " + datagram.remaining());
+			List<Message> bundle = parseBundle(datagram);
+			expect(!bundle.isEmpty(), "no empty bundles");
+			messages.addAll(bundle);
+			bundles++;
+		}
+		expect(receiveNone(receiver), "nothing after the tick");
+
+		expect(bundles > 1, "a tick of " + kSplitSounds * kSplitPairs + " pairs split into several bundles, got " + bundles);
+		expect(sink.sentCount() - sentBefore == bundles && sink.droppedCount() == 0, "every bundle sent was received");
+		expect(messages.size() == kSplitSounds + 2, (kSplitSounds + 2) + " messages across the bundles, got " + messages.size());
+
+		expectMessage(messages.get(0), "/pht/tick", ",h", 42L);
+		for (int n = 0; n < kSplitSounds; n++) {
+			Message message = messages.get(n + 1);
+			StringBuilder typeTags = new StringBuilder(",s");
+			Object[] expected = new Object[1 + 2 * kSplitPairs];
+			expected[0] = "sound-" + n;
+			for (int i = 0; i < kSplitPairs; i++) {
+				typeTags.append("if");
+				expected[1 + 2 * i] = i * 2;
+				expected[2 + 2 * i] = (float)gain(n, i);
+			}
+			expectMessage(message, "/pht/gains", typeTags.toString(), expected);
+		}
+		expectMessage(messages.get(kSplitSounds + 1), "/pht/culled", ",i", 0);
+	}
+
+	private static double gain(int sound, int pair) {
+		return ((sound * 31 + pair) % 1000) / 1000.;
+	}
+
+	/* ------ Parsing ------------------------------------- */
+
+	// Parses a whole bundle, checking its header, timetag and element sizes.
+	private static List<Message> parseBundle(ByteBuffer in) {
+		expect(readString(in).equals("#bundle"), "#bundle header");
+		expect(in.getLong() == 1L, "timetag \"immediately\"");
+
+		List<Message> result = new ArrayList<Message>();
+		while (in.hasRemaining()) {
+			int size = in.getInt();
+			expect(size > 0 && size % 4 == 0 && size <= in.remaining(), "element size " + size + " within the bundle, a multiple of 4");
+
+			int end = in.position() + size;
+			ByteBuffer element = (ByteBuffer)in.slice().limit(size);
+			result.add(parseMessage(element));
+			expect(!element.hasRemaining(), "element of " + size + " bytes holds exactly one message");
+			in.position(end);
+		}
+		return result;
+	}
+
+	private static Message parseMessage(ByteBuffer in) {
+		String address = readString(in);
+		String typeTags = readString(in);
+		expect(typeTags.startsWith(","), "type tags start with ','");
+
+		List<Object> args = new ArrayList<Object>();
+		for (int i = 1; i < typeTags.length(); i++) {
+			switch (typeTags.charAt(i)) {
+			case 's':
+				args.add(readString(in));
+				break;
+			case 'i':
+				args.add(in.getInt());
+				break;
+			case 'f':
+				args.add(in.getFloat());
+				break;
+			case 'h':
+				args.add(in.getLong());
+				break;
+			default:
+				fail("unexpected type tag " + typeTags.charAt(i) + " in " + typeTags);
+			}
+		}
+		return new Message(address, typeTags, args);
+	}
+
+	// Reads an OSC string as Latin-1, checking its terminator and padding.
+	private static String readString(ByteBuffer in) {
+		StringBuilder result = new StringBuilder();
+		byte b;
+		while ((b = in.get()) != 0) {
+			result.append((char)(b & 0xFF));
+		}
+		int length = result.length() + 1;
+		for (; length % 4 != 0; length++) {
+			expect(in.get() == 0, "string padded with 0 bytes");
+		}
+		return result.toString();
+	}
+
+	/* ------ Helpers ------------------------------------- */
+
+	private static ByteBuffer receive(DatagramChannel receiver) throws IOException {
+		ByteBuffer result = receiveOrNull(receiver);
+		expect(result != null, "a datagram within " + kReceiveTimeout + " ms");
+		return result;
+	}
+
+	// Returns the next datagram, or null if none comes within kReceiveTimeout.
+	private static ByteBuffer receiveOrNull(DatagramChannel receiver) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(PHTOscSink.kMaxDatagram + 1);
+		long giveUp = System.currentTimeMillis() + kReceiveTimeout;
+		while (receiver.receive(buffer) == null) {
+			if (System.currentTimeMillis() > giveUp) {
+				return null;
+			}
+			try {
+				Thread.sleep(1);
+			} catch (InterruptedException e) {
+				return null;
+			}
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	// Returns true if no datagram is waiting, after giving any in flight a moment to arrive.
+	private static boolean receiveNone(DatagramChannel receiver) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(PHTOscSink.kMaxDatagram + 1);
+		try {
+			Thread.sleep(50);
+		} catch (InterruptedException e) {
+			// Check now.
+		}
+		return receiver.receive(buffer) == null;
+	}
+
+	private static void expectMessage(Message message, String address, String typeTags, Object... args) {
+		expect(message._address.equals(address), "address " + address + ", got " + message._address);
+		expect(message._typeTags.equals(typeTags), "type tags " + typeTags + " for " + address + ", got " + message._typeTags);
+		expect(message._args.equals(Arrays.asList(args)), "arguments " + Arrays.asList(args) + " for " + address + ", got " + message._args);
+	}
+
+	private static void expect(boolean condition, String expected) {
+		if (!condition) {
+			fail("expected " + expected);
+		}
+	}
+
+	private static void fail(String message) {
+		System.out.println("PHTOscSink: " + message);
+		System.exit(1);
+	}
+}
@@ -0,0 +1,236 @@
+package PHT;
+
+import java.io.*;
+import java.util.*;
+
+/** Checks that a rig snapshot reads back as the rig that was saved, and that PHTRigSnapshot.read() and
+ *	PHTEngine.loadRig() reject what they should: a bad magic number, another format version, a payload
+ *	that fails its CRC, a file truncated in the header or the payload (with or without its header patched
+ *	to match), and, for loadRig(), a snapshot whose layout file has changed since it was saved.
+ *	Exits with status 1 on the first mismatch. After bench/build.sh has compiled into derived-bench, run
+ *	from the repository root with:
+ *		java -classpath "../../lib/max.jar:derived-bench" PHT.PHTRigSnapshotCheck */
+public class PHTRigSnapshotCheck {
+	// Enough speakers that routing tables are built on first use, so that only some are saved.
+	private static final int kSpeakers = 600;
+	private static final int kLinks = 3;
+	private static final int kRoutedGoals = 30;
+
+	private static final int kQueries = 2000;
+	private static final double kRadius = 15.;
+
+	// Where the header's payload length and CRC are; see PHTRigSnapshot.
+	private static final int kHeaderSize = 32;
+	private static final int kLengthPosition = 16;
+
+	public static void main(String[] args) throws IOException {
+		Random random = new Random(11);
+
+		File layout = temporaryFile(".txt");
+		writeLayout(layout, random);
+		long sourceChecksum = PHTRigSnapshot.checksum(layout);
+
+		PHTEngine engine = new PHTEngine();
+		engine.loadLayout(layout);
+		engine.makeSpeakers();
+		for (int goal = 0; goal < kRoutedGoals; goal++) {
+			engine.routing().nextHop(kSpeakers - 1, goal);
+		}
+
+		File file = temporaryFile(".phtr");
+		engine.saveRig(file, sourceChecksum);
+
+		PHTRigSnapshot snapshot = PHTRigSnapshot.read(file);
+		expect(snapshot.sourceChecksum() == sourceChecksum, "source checksum " + sourceChecksum + ", got " + snapshot.sourceChecksum());
+		checkSameRig(engine, snapshot, random);
+
+		byte[] bytes = readAll(file);
+		checkRejected(withInt(bytes, 0, 0x50485400), "is not a rig snapshot", "bad magic");
+		checkRejected(withInt(bytes, 4, PHTRigSnapshot.kVersion + 1), "is a version " + (PHTRigSnapshot.kVersion + 1), "wrong version");
+
+		byte[] flipped = bytes.clone();
+		flipped[kHeaderSize + (bytes.length - kHeaderSize) / 2] ^= 0x10;
+		checkRejected(flipped, "checksum mismatch", "a flipped payload byte");
+
+		checkRejected(Arrays.copyOf(bytes, kHeaderSize - 4), "is not a rig snapshot", "truncation in the header");
+		byte[] cut = Arrays.copyOf(bytes, kHeaderSize + (bytes.length - kHeaderSize) / 2);
+		checkRejected(cut, "checksum mismatch", "truncation in the payload");
+		checkRejected(withPayloadHeader(cut), "is truncated", "truncation in the payload, header patched to match");
+
+		checkStale(file, layout, sourceChecksum);
+
+		System.out.println("PHTRigSnapshot: " + kSpeakers + " speakers read back; bad files rejected.");
+	}
+
+	// `engine`'s rig and `snapshot` must have the same speakers, links, spatial index results and routes.
+	private static void checkSameRig(PHTEngine engine, PHTRigSnapshot snapshot, Random random) {
+		PHTSpeakerStore expected = engine.speakers();
+		PHTSpeakerStore actual = snapshot.speakers();
+		expect(actual.size() == expected.size() && actual.count() == expected.count(), expected.size() + " slots read back, got " + actual.size());
+
+		PHTLinkGraph expectedLinks = expected.links();
+		PHTLinkGraph actualLinks = actual.links();
+		expect(actualLinks.layerCount() == expectedLinks.layerCount(), expectedLinks.layerCount() + " link layers, got " + actualLinks.layerCount());
+
+		for (int slot = 0; slot < expected.size(); slot++) {
+			expect(actual.isActive(slot) == expected.isActive(slot) && actual.getChannel(slot) == expected.getChannel(slot)
+				&& actual.getX(slot) == expected.getX(slot) && actual.getY(slot) == expected.getY(slot) && actual.getZ(slot) == expected.getZ(slot),
+				"speaker " + expected.speaker(slot) + " in slot " + slot + ", got " + actual.speaker(slot));
+			expect(actual.slotOf(expected.getChannel(slot)) == slot, "index " + expected.getChannel(slot) + " in slot " + slot);
+
+			for (int layer = 0; layer < expectedLinks.layerCount(); layer++) {
+				int degree = expectedLinks.degree(layer, slot);
+				expect(actualLinks.degree(layer, slot) == degree, degree + " links from slot " + slot + " on layer " + layer);
+				for (int i = 0; i < degree; i++) {
+					int expectedEdge = expectedLinks.rowStart(layer, slot) + i;
+					int actualEdge = actualLinks.rowStart(layer, slot) + i;
+					expect(actualLinks.target(layer, actualEdge) == expectedLinks.target(layer, expectedEdge)
+						&& actualLinks.length(layer, actualEdge) == expectedLinks.length(layer, expectedEdge)
+						&& actualLinks.travelTime(layer, actualEdge) == expectedLinks.travelTime(layer, expectedEdge),
+						"link " + i + " from slot " + slot + " on layer " + layer + " read back");
+				}
+			}
+		}
+
+		PHTSpatialIndex expectedIndex = new PHTSpatialIndex(expected, kRadius);
+		PHTSpatialIndex actualIndex = snapshot.spatialIndex();
+		int[] expectedSlots = new int[expected.size()];
+		int[] actualSlots = new int[expected.size()];
+		double[] distances = new double[expected.size()];
+		for (int n = 0; n < kQueries; n++) {
+			double x = random.nextDouble() * 120 - 10;
+			double y = random.nextDouble() * 120 - 10;
+			double z = random.nextDouble() * 20 - 5;
+			int expectedCount = expectedIndex.query(x, y, z, kRadius, expectedSlots, distances);
+			int actualCount = actualIndex.query(x, y, z, kRadius, actualSlots, distances);
+			Arrays.sort(expectedSlots, 0, expectedCount);
+			Arrays.sort(actualSlots, 0, actualCount);
+			expect(actualCount == expectedCount && Arrays.equals(Arrays.copyOf(actualSlots, actualCount), Arrays.copyOf(expectedSlots, expectedCount)),
+				expectedCount + " speakers within " + kRadius + " of (" + x + ", " + y + ", " + z + "), got " + actualCount);
+			expect(actualIndex.nearest(x, y, z) == expectedIndex.nearest(x, y, z), "the same nearest speaker to (" + x + ", " + y + ", " + z + ")");
+		}
+
+		// The saved goals and as many that were not.
+		for (int goal = 0; goal < 2 * kRoutedGoals; goal++) {
+			for (int from = 0; from < expected.size(); from++) {
+				int hop = engine.routing().nextHop(from, goal);
+				expect(snapshot.routing().nextHop(from, goal) == hop, "next hop " + hop + " from slot " + from + " to slot " + goal);
+			}
+		}
+	}
+
+	// loadRig() must take the snapshot for its own layout or for any, and leave the rig alone for a changed layout.
+	private static void checkStale(File file, File layout, long sourceChecksum) throws IOException {
+		PHTEngine engine = new PHTEngine();
+		expect(engine.loadRig(file, sourceChecksum), "loadRig() to take a snapshot of the same layout");
+		expect(engine.speakers().size() == kSpeakers, kSpeakers + " speakers loaded, got " + engine.speakers().size());
+
+		FileWriter out = new FileWriter(layout, true);
+		try {
+			out.write("moved, " + kSpeakers + " 1 2 3;\n");
+		} finally {
+			out.close();
+		}
+		long changedChecksum = PHTRigSnapshot.checksum(layout);
+		expect(changedChecksum != sourceChecksum, "a different checksum for a changed layout");
+
+		PHTEngine other = new PHTEngine();
+		PHTSpeakerStore before = other.speakers();
+		expect(!other.loadRig(file, changedChecksum), "loadRig() to reject a snapshot of a changed layout");
+		expect(other.speakers() == before, "the rig left alone by a stale snapshot");
+
+		expect(other.loadRig(file, PHTRigSnapshot.kNoSource), "loadRig() to take any snapshot for kNoSource");
+		expect(other.speakers().size() == kSpeakers, kSpeakers + " speakers loaded for kNoSource, got " + other.speakers().size());
+	}
+
+	// Writing `bytes` out, read() must throw an IOException saying `reason`.
+	private static void checkRejected(byte[] bytes, String reason, String what) throws IOException {
+		File file = temporaryFile(".phtr");
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(bytes);
+		} finally {
+			out.close();
+		}
+
+		try {
+			PHTRigSnapshot.read(file);
+		} catch (IOException e) {
+			expect(e.getMessage() != null && e.getMessage().contains(reason), "\"" + reason + "\" for " + what + ", got \"" + e.getMessage() + "\"");
+			return;
+		}
+		fail("expected " + what + " to be rejected");
+	}
+
+	/* ------ Helpers ------------------------------------- */
+
+	// Speakers scattered over 100 x 100 x 10, at non-consecutive indices, each linked to kLinks others.
+	private static void writeLayout(File layout, Random random) throws IOException {
+		Writer out = new BufferedWriter(new FileWriter(layout));
+		try {
+			for (int i = 0; i < kSpeakers; i++) {
+				out.write("\"speaker " + i + "\", " + index(i) + " " + coordinate(random, 100) + " " + coordinate(random, 100) + " " + coordinate(random, 10));
+				for (int link = 0; link < kLinks; link++) {
+					out.write(" " + index(random.nextInt(kSpeakers)));
+				}
+				out.write(";\n");
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	private static int index(int i) {
+		return 3 * i + 1;
+	}
+
+	private static String coordinate(Random random, int range) {
+		return String.format(Locale.US, "%.3f", random.nextDouble() * range);
+	}
+
+	private static byte[] readAll(File file) throws IOException {
+		byte[] result = new byte[(int)file.length()];
+		DataInputStream in = new DataInputStream(new FileInputStream(file));
+		try {
+			in.readFully(result);
+		} finally {
+			in.close();
+		}
+		return result;
+	}
+
+	private static byte[] withInt(byte[] bytes, int position, int value) {
+		byte[] result = bytes.clone();
+		java.nio.ByteBuffer.wrap(result).putInt(position, value);
+		return result;
+	}
+
+	// Returns `bytes` with the header's payload length and CRC made to match the payload it has.
+	private static byte[] withPayloadHeader(byte[] bytes) {
+		java.util.zip.CRC32 crc = new java.util.zip.CRC32();
+		crc.update(bytes, kHeaderSize, bytes.length - kHeaderSize);
+
+		byte[] result = bytes.clone();
+		java.nio.ByteBuffer header = java.nio.ByteBuffer.wrap(result);
+		header.putLong(kLengthPosition, bytes.length - kHeaderSize);
+		header.putLong(kLengthPosition + 8, crc.getValue());
+		return result;
+	}
+
+	private static File temporaryFile(String suffix) throws IOException {
+		File result = File.createTempFile("pht-rig-snapshot", suffix);
+		result.deleteOnExit();
+		return result;
+	}
+
+	private static void expect(boolean condition, String expected) {
+		if (!condition) {
+			fail("expected " + expected);
+		}
+	}
+
+	private static void fail(String message) {
+		System.out.println("PHTRigSnapshot: " + message);
+		System.exit(1);
+	}
+}
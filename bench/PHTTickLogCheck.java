@@ -0,0 +1,217 @@
+package PHT;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+/** Checks that a tick log plays back what was recorded: a seeded scene is rendered on a fixed-step clock
+ *	into both a PHTTickRecorder and a capturing sink, and the log is replayed through PHTTickPlayer into
+ *	another. The calls must match one for one, with each gain quantized to exactly the nearest of
+ *	kGainSteps steps; a tick begun but not ended when the recorder is closed must be left out; and playing
+ *	the log again after rewind() must give exactly the same calls.
+ *	Exits with status 1 on the first mismatch. After bench/build.sh has compiled into derived-bench, run
+ *	from the repository root with:
+ *		java -classpath "../../lib/max.jar:derived-bench" PHT.PHTTickLogCheck */
+public class PHTTickLogCheck {
+	private static final int kSpeakers = 30;
+	private static final int kTicks = 400;
+	private static final long kStep = 20;
+
+	// Sound IDs are drawn from this many, so that IDs come back after their sounds die.
+	private static final int kSoundIds = 12;
+
+	// One call on a sink: its kind, its string argument(s), its number (time, pairs, channel or count)
+	// and, for a pair, its gain.
+	private static class Call {
+		final String _kind;
+		final String _text;
+		final long _number;
+		final double _gain;
+
+		Call(String kind, String text, long number, double gain) {
+			_kind = kind;
+			_text = text;
+			_number = number;
+			_gain = gain;
+		}
+
+		// True if all but the gain match.
+		boolean matches(Call other) {
+			return _kind.equals(other._kind) && _text.equals(other._text) && _number == other._number;
+		}
+
+		public String toString() {
+			return _kind + " " + _text + " " + _number + " " + _gain;
+		}
+	}
+
+	// Sink that keeps every call made on it.
+	private static class CapturingSink implements PHTOutputSink {
+		final List<Call> _calls = new ArrayList<Call>();
+
+		public void beginTick(long time) {
+			_calls.add(new Call("tick", "", time, 0.));
+		}
+
+		public void sound(String id, int pairs) {
+			_calls.add(new Call("sound", id, pairs, 0.));
+		}
+
+		public void pair(int channel, double gain) {
+			_calls.add(new Call("pair", "", channel, gain));
+		}
+
+		public void culled(int count) {
+			_calls.add(new Call("culled", "", count, 0.));
+		}
+
+		public void killed(String id, String message) {
+			_calls.add(new Call("killed", id + " " + message, 0, 0.));
+		}
+
+		public void endTick() {
+			_calls.add(new Call("end", "", 0, 0.));
+		}
+
+		public void close() {
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		File file = File.createTempFile("pht-tick-log", ".phtl");
+		file.deleteOnExit();
+
+		CapturingSink rendered = new CapturingSink();
+		long droppedTime = render(file, rendered);
+
+		PHTTickPlayer player = new PHTTickPlayer(file);
+		expect(player.tickCount() == kTicks, kTicks + " ticks in the log, got " + player.tickCount());
+
+		CapturingSink replayed = replay(player);
+		expect(replayed._calls.size() == rendered._calls.size(), rendered._calls.size() + " calls replayed, got " + replayed._calls.size());
+
+		int pairs = 0;
+		int kills = 0;
+		for (int n = 0; n < rendered._calls.size(); n++) {
+			Call expected = rendered._calls.get(n);
+			Call actual = replayed._calls.get(n);
+			expect(actual.matches(expected), "call " + n + " to be " + expected + ", got " + actual);
+
+			if (expected._kind.equals("pair")) {
+				double quantized = Math.round(expected._gain * PHTTickRecorder.kGainSteps) / (double)PHTTickRecorder.kGainSteps;
+				expect(actual._gain == quantized, "gain " + quantized + " for " + expected + ", got " + actual._gain);
+				pairs++;
+			} else if (expected._kind.equals("killed")) {
+				kills++;
+			} else if (expected._kind.equals("tick")) {
+				expect(expected._number != droppedTime, "the unended tick at " + droppedTime + " left out");
+			}
+		}
+		expect(pairs > 0 && kills > 0, "a render with both pairs and kills, got " + pairs + " pairs and " + kills + " kills");
+
+		player.rewind();
+		CapturingSink again = replay(player);
+		expect(again._calls.size() == replayed._calls.size(), "the same number of calls after rewind()");
+		for (int n = 0; n < replayed._calls.size(); n++) {
+			Call first = replayed._calls.get(n);
+			Call second = again._calls.get(n);
+			expect(second.matches(first) && second._gain == first._gain, "call " + n + " replayed as " + first + " after rewind(), got " + second);
+		}
+
+		System.out.println("PHTTickLog: " + kTicks + " ticks, " + pairs + " pairs and " + kills + " kills replay as recorded.");
+	}
+
+	// Renders the seeded scene into a recorder on `file` and into `sink`, then begins one more tick on the
+	// recorder alone and closes it without ending that tick.
+	// @returns 	the time of the tick left unended
+	private static long render(File file, CapturingSink sink) throws IOException {
+		final PHTTickRecorder recorder = new PHTTickRecorder(file);
+		final CapturingSink captured = sink;
+		final PHTStatusEncoder encoder = new PHTStatusEncoder();
+		// Kills are reported before the tick they happen in, so those in the unended tick go only to the
+		// recorder, which must leave them out along with the tick.
+		final boolean[] ending = new boolean[] { false };
+
+		PHTEngine engine = new PHTEngine();
+		engine.setClock(new PHTFixedStepClock(0, kStep));
+		engine.setListener(new PHTEngine.Listener() {
+			public void soundKilled(PHTSound sound, String message) {
+				encoder.forget(sound);
+				if (message != null) {
+					recorder.killed(sound.id(), message);
+					if (!ending[0]) {
+						captured.killed(sound.id(), message);
+					}
+				}
+			}
+
+			public void commandFailed(RuntimeException e) {
+				throw e;
+			}
+		});
+
+		// A ring, each speaker linked to the next two.
+		for (int i = 0; i < kSpeakers; i++) {
+			double angle = 2 * Math.PI * i / kSpeakers;
+			engine.addSpeaker(i, 10 * Math.cos(angle), 10 * Math.sin(angle), 0,
+				new int[] { (i + 1) % kSpeakers, (i + 2) % kSpeakers });
+		}
+		engine.makeSpeakers();
+
+		Random random = new Random(7);
+		for (int t = 0; t < kTicks; t++) {
+			if (random.nextInt(3) == 0) {
+				String id = "sound-" + random.nextInt(kSoundIds);
+				engine.addSound(PHTTransectSound.obtain(id, engine.get(random.nextInt(kSpeakers)),
+					200 + random.nextInt(2000), PHTLinkGraph.kDefaultLayerId, engine));
+			}
+			engine.tick();
+
+			recorder.beginTick(engine.now());
+			captured.beginTick(engine.now());
+			for (int n = 0; n < engine.soundCount(); n++) {
+				PHTSound s = engine.soundAt(n);
+				int pairs = encoder.encode(s, engine.speakers().size());
+				statusTo(recorder, engine, encoder, s, pairs);
+				statusTo(captured, engine, encoder, s, pairs);
+			}
+			recorder.endTick();
+			captured.endTick();
+		}
+
+		ending[0] = true;
+		engine.tick();
+		long dropped = engine.now();
+		recorder.beginTick(dropped);
+		recorder.sound("unended", 1);
+		recorder.pair(0, 1.);
+		recorder.close();
+		return dropped;
+	}
+
+	private static void statusTo(PHTOutputSink sink, PHTEngine engine, PHTStatusEncoder encoder, PHTSound s, int pairs) {
+		sink.sound(s.id(), pairs);
+		for (int i = 0; i < pairs; i++) {
+			sink.pair(engine.speakers().getChannel(encoder.outputSlot(i)), encoder.outputGain(i));
+		}
+	}
+
+	// Plays every tick left in `player`, checking that it then reports itself done.
+	private static CapturingSink replay(PHTTickPlayer player) throws IOException {
+		CapturingSink result = new CapturingSink();
+		int ticks = 0;
+		while (player.next(result)) {
+			ticks++;
+		}
+		expect(ticks == kTicks, kTicks + " ticks played, got " + ticks);
+		expect(player.isDone(), "the player done after the last tick");
+		return result;
+	}
+
+	private static void expect(boolean condition, String expected) {
+		if (!condition) {
+			System.out.println("PHTTickLog: expected " + expected);
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,10 @@
+#!/bin/bash
+# Builds and runs the JMH benchmarks. Run from the repository root; arguments are passed to JMH,
+# 	e.g. `bash bench/build.sh -p rig=synthetic-10000 spatialize`.
+# The gain curve, OSC sink, tick log and rig snapshot checks (bench/PHTGainCurveCheck.java,
+# 	bench/PHTOscSinkCheck.java, bench/PHTTickLogCheck.java, bench/PHTRigSnapshotCheck.java) are built
+# 	alongside; see their class comments to run them.
+# Expects the JMH jars (jmh-core, jmh-generator-annprocess, jopt-simple, commons-math3) in $JMH_LIB.
+JMH_LIB=${JMH_LIB:-../../lib/jmh}
+javac -classpath "../../lib/max.jar:$JMH_LIB/*" -d derived-bench *.java bench/*.java && \
+java -classpath "../../lib/max.jar:$JMH_LIB/*:derived-bench" org.openjdk.jmh.Main "$@"